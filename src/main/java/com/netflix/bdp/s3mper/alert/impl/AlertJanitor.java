@@ -19,7 +19,6 @@
 
 package com.netflix.bdp.s3mper.alert.impl;
 
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.sqs.AmazonSQSClient;
 import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
 import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
@@ -27,6 +26,7 @@ import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.netflix.bdp.s3mper.common.AwsClients;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -67,7 +67,7 @@ public class AlertJanitor {
         keyId = conf.get("fs."+uri.getScheme()+".override.awsAccessKeyId", keyId);
         keySecret = conf.get("fs."+uri.getScheme()+".override.awsSecretAccessKey", keySecret);
         
-        sqs = new AmazonSQSClient(new BasicAWSCredentials(keyId, keySecret));
+        sqs = AwsClients.sqs(keyId, keySecret, AwsClients.configuration(conf));
         
         //SQS Consistency Queue
         consistencyQueue = conf.get("fs"+uri.getScheme()+".alert.sqs.queue", consistencyQueue);
@@ -20,7 +20,7 @@
 package com.netflix.bdp.s3mper.alert.impl;
 
 import com.netflix.bdp.s3mper.alert.AlertDispatcher;
-import com.amazonaws.auth.BasicAWSCredentials;
+import com.netflix.bdp.s3mper.common.AwsClients;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClient;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
@@ -107,12 +107,12 @@ public class CloudWatchAlertDispatcher implements AlertDispatcher {
     
     private void initCloudWatch(String keyId, String keySecret) {
         log.debug("Initializing CloudWatch Client");
-        cloudWatch = new AmazonCloudWatchAsyncClient(new BasicAWSCredentials(keyId, keySecret));
+        cloudWatch = AwsClients.cloudWatchAsync(keyId, keySecret, AwsClients.configuration(conf));
     }
     
     private void initSqs(String keyId, String keySecret) {
         log.debug("Initializing SQS Client");
-        sqs = new AmazonSQSClient(new BasicAWSCredentials(keyId, keySecret));
+        sqs = AwsClients.sqs(keyId, keySecret, AwsClients.configuration(conf));
         
         //SQS Consistency Queue
         consistencyQueue = conf.get("s3mper.alert.sqs.queue", consistencyQueue);
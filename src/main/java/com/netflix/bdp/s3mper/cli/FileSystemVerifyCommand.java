@@ -19,8 +19,8 @@
 
 package com.netflix.bdp.s3mper.cli;
 
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.netflix.bdp.s3mper.common.AwsClients;
 import com.netflix.bdp.s3mper.common.PathUtil;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
@@ -62,7 +62,7 @@ public class FileSystemVerifyCommand extends Command {
         String keyId = conf.get("fs.s3n.awsAccessKeyId");
         String keySecret = conf.get("fs.s3n.awsSecretAccessKey");
         
-        s3 = new AmazonS3Client(new BasicAWSCredentials(keyId, keySecret));
+        s3 = AwsClients.s3(keyId, keySecret, AwsClients.configuration(conf));
         
         try {
             parser.parseArgument(args);
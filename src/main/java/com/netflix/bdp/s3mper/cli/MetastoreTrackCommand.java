@@ -0,0 +1,89 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.cli;
+
+import com.netflix.bdp.s3mper.common.PathUtil;
+import com.netflix.bdp.s3mper.metastore.Metastore;
+import com.netflix.bdp.s3mper.metastore.impl.TrackingMetastore;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.OptionHandlerFilter;
+
+/**
+ * Registers the prefixes of directories written before prefix tracking was
+ * enabled and, once all of them are registered, marks the registries of
+ * their buckets complete.
+ */
+public class MetastoreTrackCommand extends Command {
+
+    @Option(name="-c",usage="Mark the registries of the buckets complete")
+    private boolean complete = false;
+    
+    @Argument
+    private List<String> args = new ArrayList<String>();
+    
+    @Override
+    public void execute(Configuration conf, String[] args) throws Exception {
+        CmdLineParser parser = new CmdLineParser(this);
+        
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            System.err.println("java SampleMain [options...] arguments...");
+            // print the list of available options
+            parser.printUsage(System.err);
+            System.err.println();
+
+            System.err.println(" Example: s3mper metastore "+parser.printExample(OptionHandlerFilter.ALL));
+
+            return;
+        }
+        
+        // Registry entries are written directly, not tracked themselves
+        conf.setBoolean("s3mper.metastore.tracking.enabled", false);
+        
+        TrackingMetastore tracking = new TrackingMetastore(Metastore.getFilesystemMetastore(conf));
+        tracking.initalize(PathUtil.S3N, conf);
+        
+        List<Path> dirs = new ArrayList<Path>();
+        
+        for (String path : this.args) {
+            dirs.add(new Path(path));
+        }
+        
+        tracking.track(dirs);
+        
+        if (complete) {
+            for (Path dir : dirs) {
+                tracking.complete(dir);
+            }
+        }
+        
+        tracking.close();
+    }
+    
+}
@@ -57,6 +57,9 @@ public class S3mper extends Configured implements Tool {
                 case SQS:
                     processSQS(popArg(args));
                     break;
+                case SIDECAR:
+                    new SidecarCommand().execute(getConf(), popArg(args));
+                    break;
                 default:
                     usage();                
             }
@@ -67,9 +70,9 @@ public class S3mper extends Configured implements Tool {
         return 0;
     }
     
-    enum CMD { FS, FILESYSTEM, META, METASTORE, SQS };
+    enum CMD { FS, FILESYSTEM, META, METASTORE, SQS, SIDECAR };
     enum SQS_CMD { LOG, PURGE };
-    enum META_CMD { LIST, RESOLVE, DELETE_PATH, DELETE_TS };
+    enum META_CMD { LIST, RESOLVE, DELETE_PATH, DELETE_TS, SEAL, TRACK };
     
     public static void main(String[] args) throws Exception {    
         ToolRunner.run(new Configuration(), new S3mper(), args);
@@ -89,6 +92,8 @@ public class S3mper extends Configured implements Tool {
         commands.put(META_CMD.RESOLVE, new MetastoreResolveCommand());
         commands.put(META_CMD.DELETE_PATH, new MetastorePathDeleteCommand());
         commands.put(META_CMD.DELETE_TS, new MetastoreTimeseriesDeleteCommand());
+        commands.put(META_CMD.SEAL, new MetastoreSealCommand());
+        commands.put(META_CMD.TRACK, new MetastoreTrackCommand());
         try {
             
             META_CMD cmd = META_CMD.valueOf(args[0].toUpperCase());
@@ -96,7 +101,7 @@ public class S3mper extends Configured implements Tool {
             Command command = commands.get(cmd);
             command.execute(getConf(), popArg(args));
         } catch (Exception e) {
-            System.out.println("Command options are: list, resolve, delete_path, delete_ts\n");
+            System.out.println("Command options are: list, resolve, delete_path, delete_ts, seal, track\n");
             
             e.printStackTrace();
         }
@@ -137,7 +142,7 @@ public class S3mper extends Configured implements Tool {
     }
     
     private void usage() {
-        System.out.println("Command options are: filesystem, metastore, sqs.\n");
+        System.out.println("Command options are: filesystem, metastore, sqs, sidecar.\n");
     }
     
 }
@@ -0,0 +1,42 @@
+package com.netflix.bdp.s3mper.cli;
+
+import com.netflix.bdp.s3mper.common.PathUtil;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.impl.BigTableMetastore;
+import com.netflix.bdp.s3mper.metastore.impl.MetastoreSidecar;
+import java.net.URI;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Runs the metastore sidecar in the foreground until the process is stopped.
+ */
+public class SidecarCommand extends Command {
+
+    @Override
+    public void execute(Configuration conf, String[] args) throws Exception {
+        try {
+            URI uri = args.length > 0 ? URI.create(args[0]) : PathUtil.S3N;
+
+            Class<?> backendImpl = conf.getClass("s3mper.sidecar.backend.impl", BigTableMetastore.class);
+            FileSystemMetastore backend = (FileSystemMetastore) ReflectionUtils.newInstance(backendImpl, conf);
+
+            final MetastoreSidecar sidecar = new MetastoreSidecar(backend);
+            sidecar.start(uri, conf);
+
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    sidecar.close();
+                }
+            });
+
+            sidecar.join();
+        } catch (Exception e) {
+            System.out.println("Usage: s3mper sidecar [<filesystem uri>]\n");
+
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.committer;
+
+import com.google.common.base.Charsets;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.Metastore;
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.log4j.Logger;
+
+/**
+ * Registration of job output shared by the mapred and mapreduce committers.
+ * 
+ * At task commit the files of the attempt are written to a manifest named
+ * after the committed task directory, and only the manifest is registered.
+ * At job commit the manifests are read and their files registered at their
+ * final location in one batch, along with an expected-count marker in every
+ * output directory.
+ */
+class BulkRegistration {
+    private static final Logger log = Logger.getLogger(BulkRegistration.class.getName());
+    
+    static final String MANIFEST_DIR = "s3mper";
+    
+    private final Configuration conf;
+    private final Path outputPath;
+    private final FileSystem fs;
+    
+    BulkRegistration(Configuration conf, Path outputPath) throws IOException {
+        this.conf = conf;
+        this.fs = outputPath.getFileSystem(conf);
+        this.outputPath = fs.makeQualified(outputPath);
+    }
+    
+    private Path manifestDir() {
+        return new Path(new Path(outputPath, PendingOutputs.TEMPORARY_DIR), MANIFEST_DIR);
+    }
+    
+    /**
+     * Writes and registers the manifest of a task attempt before it is committed.
+     * 
+     * @param attemptPath directory the attempt wrote to
+     * @param committedTaskPath directory the attempt is committed to
+     */
+    void commitTask(Path attemptPath, Path committedTaskPath) throws IOException {
+        attemptPath = fs.makeQualified(attemptPath);
+        
+        Set<String> files = new TreeSet<String>(PendingOutputs.files(attemptPath));
+        
+        //Files written without going through the aspect are only found by listing
+        try {
+            String prefix = attemptPath.toUri().getPath() + "/";
+            
+            for (RemoteIterator<LocatedFileStatus> i = fs.listFiles(attemptPath, true); i.hasNext();) {
+                String path = i.next().getPath().toUri().getPath();
+                
+                if (path.startsWith(prefix)) {
+                    files.add(path.substring(prefix.length()));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            log.debug("No output for task attempt: " + attemptPath);
+        }
+        
+        Path manifest = new Path(manifestDir(), committedTaskPath.getName());
+        Writer out = new OutputStreamWriter(fs.create(manifest, true), Charsets.UTF_8);
+        
+        try {
+            for (String file : files) {
+                out.write(file);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        
+        try {
+            metastore().add(manifest, false);
+        } catch (Exception e) {
+            failed("Failed to register output manifest: " + manifest, e, true);
+        }
+        
+        log.info("Wrote manifest of " + files.size() + " files for " + committedTaskPath.getName());
+    }
+    
+    /**
+     * Forgets the pending outputs of a committed task attempt.
+     */
+    void taskCommitted(Path attemptPath, Path committedTaskPath) {
+        PendingOutputs.remove(fs.makeQualified(attemptPath));
+        PendingOutputs.remove(fs.makeQualified(committedTaskPath));
+    }
+    
+    /**
+     * Reads the manifests of the committed tasks and records their files as
+     * pending, so that merging them into the output sees them all.
+     * 
+     * @param jobAttemptPath directory holding the committed task directories
+     * @return the files of the job relative to the output directory
+     */
+    List<String> prepareJob(Path jobAttemptPath) throws IOException {
+        jobAttemptPath = fs.makeQualified(jobAttemptPath);
+        
+        Set<String> files = new TreeSet<String>();
+        FileStatus [] manifests;
+        
+        try {
+            manifests = fs.listStatus(manifestDir());
+        } catch (FileNotFoundException e) {
+            manifests = new FileStatus[0];
+        }
+        
+        for (FileStatus manifest : manifests) {
+            Path committedTaskPath = new Path(jobAttemptPath, manifest.getPath().getName());
+            BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(manifest.getPath()), Charsets.UTF_8));
+            
+            try {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    
+                    files.add(line);
+                    PendingOutputs.add(new Path(committedTaskPath, line), false);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        
+        log.info("Read " + manifests.length + " manifests with " + files.size() + " files");
+        
+        return new ArrayList<String>(files);
+    }
+    
+    /**
+     * Registers the files of a committed job along with an expected-count
+     * marker in every output directory.
+     */
+    void commitJob(List<String> files) throws IOException {
+        Map<Path, Integer> counts = new LinkedHashMap<Path, Integer>();
+        List<FileInfo> entries = new ArrayList<FileInfo>();
+        
+        for (String file : files) {
+            Path path = new Path(outputPath, file);
+            Integer count = counts.get(path.getParent());
+            
+            counts.put(path.getParent(), count == null ? 1 : count + 1);
+            entries.add(new FileInfo(path, false, false));
+        }
+        
+        if (conf.getBoolean("s3mper.listing.directory.tracking", false)) {
+            Set<Path> directories = new HashSet<Path>();
+            
+            for (Path dir : counts.keySet()) {
+                for (Path p = dir; p != null && !p.equals(outputPath) && directories.add(p); p = p.getParent()) {
+                    entries.add(new FileInfo(p, false, true));
+                }
+            }
+        }
+        
+        for (Map.Entry<Path, Integer> count : counts.entrySet()) {
+            Path marker = new Path(count.getKey(), PendingOutputs.EXPECTED_MARKER);
+            FSDataOutputStream out = fs.create(marker, true);
+            
+            try {
+                out.write(String.valueOf(count.getValue()).getBytes(Charsets.UTF_8));
+            } finally {
+                out.close();
+            }
+            
+            entries.add(new FileInfo(marker, false, false));
+        }
+        
+        try {
+            if (!entries.isEmpty()) {
+                metastore().add(entries);
+            }
+            
+            log.info("Registered " + files.size() + " output files in " + counts.size() + " directories");
+        } catch (Exception e) {
+            failed("Failed to register output of " + outputPath, e, false);
+        } finally {
+            PendingOutputs.remove(outputPath);
+        }
+    }
+    
+    private FileSystemMetastore metastore() throws Exception {
+        return Metastore.getInitializedMetastore(fs.getUri(), conf);
+    }
+    
+    private void failed(String message, Exception e, boolean task) throws IOException {
+        log.error(message, e);
+        
+        String key = task ? "s3mper.task.failOnError" : "s3mper.failOnError";
+        
+        if (conf.getBoolean(key, Boolean.getBoolean(key))) {
+            throw new IOException(message, e);
+        }
+    }
+}
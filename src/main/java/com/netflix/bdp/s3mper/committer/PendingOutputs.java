@@ -0,0 +1,149 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.committer;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.apache.hadoop.fs.Path;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.*;
+
+/**
+ * Paths written by this process that are registered in bulk when the job
+ * commits instead of one at a time.
+ * 
+ * With bulk registration enabled, files created under a _temporary directory
+ * and expected-count markers are recorded here rather than in the metastore.
+ * Listings check them like metastore entries, and renames move them, so the
+ * committer sees consistent listings of its attempt and task directories.
+ */
+public final class PendingOutputs {
+    
+    public static final String TEMPORARY_DIR = "_temporary";
+    
+    public static final String EXPECTED_MARKER = "_S3MPER_EXPECTED";
+    
+    private static final ConcurrentSkipListMap<String, FileInfo> paths = new ConcurrentSkipListMap<String, FileInfo>();
+    
+    private PendingOutputs() {
+    }
+    
+    /**
+     * Whether the path is registered by the committer rather than when it is created.
+     */
+    public static boolean isPending(Path path) {
+        if (EXPECTED_MARKER.equals(path.getName())) {
+            return true;
+        }
+        
+        for (Path p = path; p != null; p = p.getParent()) {
+            if (TEMPORARY_DIR.equals(p.getName())) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    public static void add(Path path, boolean directory) {
+        paths.put(normalize(path), new FileInfo(path, false, directory));
+    }
+    
+    /**
+     * Lists the children of the given directories.  Descendants deeper down
+     * are listed as the directories containing them.
+     */
+    public static List<FileInfo> list(List<Path> parents) {
+        Map<String, FileInfo> children = new LinkedHashMap<String, FileInfo>();
+        
+        for (Path parent : parents) {
+            String prefix = normalize(parent) + "/";
+            
+            for (FileInfo info : under(prefix).values()) {
+                String relative = normalize(info.getPath()).substring(prefix.length());
+                int slash = relative.indexOf('/');
+                
+                if (slash < 0) {
+                    children.put(relative, info);
+                } else if (!children.containsKey(relative.substring(0, slash))) {
+                    children.put(relative.substring(0, slash), 
+                            new FileInfo(new Path(parent, relative.substring(0, slash)), false, true));
+                }
+            }
+        }
+        
+        return new ArrayList<FileInfo>(children.values());
+    }
+    
+    /**
+     * Moves the path and everything below it.
+     */
+    public static void rename(Path src, Path dst) {
+        String prefix = normalize(src);
+        
+        FileInfo self = paths.remove(prefix);
+        
+        if (self != null) {
+            add(dst, self.isDirectory());
+        }
+        
+        for (FileInfo info : new ArrayList<FileInfo>(under(prefix + "/").values())) {
+            String relative = normalize(info.getPath()).substring(prefix.length() + 1);
+            
+            paths.remove(normalize(info.getPath()));
+            add(new Path(dst, relative), info.isDirectory());
+        }
+    }
+    
+    /**
+     * Forgets the path and everything below it.
+     */
+    public static void remove(Path path) {
+        String prefix = normalize(path);
+        
+        paths.remove(prefix);
+        under(prefix + "/").clear();
+    }
+    
+    /**
+     * Returns the files below the path, relative to it.
+     */
+    public static List<String> files(Path path) {
+        String prefix = normalize(path) + "/";
+        List<String> result = new ArrayList<String>();
+        
+        for (Map.Entry<String, FileInfo> entry : under(prefix).entrySet()) {
+            if (!entry.getValue().isDirectory()) {
+                result.add(entry.getKey().substring(prefix.length()));
+            }
+        }
+        
+        return result;
+    }
+    
+    private static ConcurrentNavigableMap<String, FileInfo> under(String prefix) {
+        return paths.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+}
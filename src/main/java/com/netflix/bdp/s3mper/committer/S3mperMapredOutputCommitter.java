@@ -0,0 +1,121 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.committer;
+
+import java.io.IOException;
+import java.util.List;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputCommitter;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobContext;
+import org.apache.hadoop.mapred.OutputCommitter;
+import org.apache.hadoop.mapred.TaskAttemptContext;
+
+/**
+ * FileOutputCommitter for the mapred API that registers the job output in
+ * the metastore in bulk when the job commits.  Enabled by setting
+ * mapred.output.committer.class to this class.
+ * 
+ * See S3mperOutputCommitter.
+ */
+public class S3mperMapredOutputCommitter extends OutputCommitter {
+    private final FileOutputCommitter delegate = new FileOutputCommitter();
+    
+    private static Path outputPath(JobConf conf) {
+        return FileOutputFormat.getOutputPath(conf);
+    }
+
+    @Override
+    public void setupJob(JobContext context) throws IOException {
+        delegate.setupJob(context);
+    }
+
+    @Override
+    public void commitJob(JobContext context) throws IOException {
+        Path outputPath = outputPath(context.getJobConf());
+        
+        if (outputPath == null) {
+            delegate.commitJob(context);
+            return;
+        }
+        
+        BulkRegistration registration = new BulkRegistration(context.getJobConf(), outputPath);
+        
+        List<String> files = registration.prepareJob(
+                org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter.getJobAttemptPath(context, outputPath));
+        delegate.commitJob(context);
+        registration.commitJob(files);
+    }
+
+    @Override
+    public void cleanupJob(JobContext context) throws IOException {
+        delegate.cleanupJob(context);
+    }
+
+    @Override
+    public void abortJob(JobContext context, int runState) throws IOException {
+        delegate.abortJob(context, runState);
+    }
+
+    @Override
+    public void setupTask(TaskAttemptContext context) throws IOException {
+        delegate.setupTask(context);
+    }
+
+    @Override
+    public boolean needsTaskCommit(TaskAttemptContext context) throws IOException {
+        return delegate.needsTaskCommit(context);
+    }
+
+    @Override
+    public void commitTask(TaskAttemptContext context) throws IOException {
+        Path outputPath = outputPath(context.getJobConf());
+        
+        if (outputPath == null) {
+            delegate.commitTask(context);
+            return;
+        }
+        
+        BulkRegistration registration = new BulkRegistration(context.getJobConf(), outputPath);
+        Path attemptPath = delegate.getTaskAttemptPath(context);
+        Path committedTaskPath = 
+                org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter.getCommittedTaskPath(context, outputPath);
+        
+        registration.commitTask(attemptPath, committedTaskPath);
+        delegate.commitTask(context);
+        registration.taskCommitted(attemptPath, committedTaskPath);
+    }
+
+    @Override
+    public void abortTask(TaskAttemptContext context) throws IOException {
+        delegate.abortTask(context);
+    }
+
+    @Override
+    public boolean isRecoverySupported() {
+        return delegate.isRecoverySupported();
+    }
+
+    @Override
+    public void recoverTask(TaskAttemptContext context) throws IOException {
+        delegate.recoverTask(context);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.committer;
+
+import java.io.IOException;
+import java.util.List;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+
+/**
+ * FileOutputCommitter for the mapreduce API that registers the job output in
+ * the metastore in bulk when the job commits.  Output formats return it from
+ * getOutputCommitter() in place of a FileOutputCommitter.
+ * 
+ * Combined with s3mper.committer.bulk, files written to attempt directories
+ * are not registered one at a time, neither when created nor when moved by
+ * the commit, which leaves a manifest per task and a batch add per job.
+ */
+public class S3mperOutputCommitter extends OutputCommitter {
+    private final FileOutputCommitter delegate;
+    private final Path outputPath;
+    
+    public S3mperOutputCommitter(Path outputPath, TaskAttemptContext context) throws IOException {
+        this(outputPath, new FileOutputCommitter(outputPath, context));
+    }
+    
+    public S3mperOutputCommitter(Path outputPath, JobContext context) throws IOException {
+        this(outputPath, new FileOutputCommitter(outputPath, context));
+    }
+    
+    public S3mperOutputCommitter(Path outputPath, FileOutputCommitter delegate) {
+        this.outputPath = outputPath;
+        this.delegate = delegate;
+    }
+    
+    public Path getWorkPath() throws IOException {
+        return delegate.getWorkPath();
+    }
+
+    @Override
+    public void setupJob(JobContext context) throws IOException {
+        delegate.setupJob(context);
+    }
+
+    @Override
+    public void commitJob(JobContext context) throws IOException {
+        BulkRegistration registration = new BulkRegistration(context.getConfiguration(), outputPath);
+        
+        List<String> files = registration.prepareJob(delegate.getJobAttemptPath(context));
+        delegate.commitJob(context);
+        registration.commitJob(files);
+    }
+
+    @Override
+    public void abortJob(JobContext context, JobStatus.State state) throws IOException {
+        delegate.abortJob(context, state);
+    }
+
+    @Override
+    public void setupTask(TaskAttemptContext context) throws IOException {
+        delegate.setupTask(context);
+    }
+
+    @Override
+    public boolean needsTaskCommit(TaskAttemptContext context) throws IOException {
+        return delegate.needsTaskCommit(context);
+    }
+
+    @Override
+    public void commitTask(TaskAttemptContext context) throws IOException {
+        BulkRegistration registration = new BulkRegistration(context.getConfiguration(), outputPath);
+        Path attemptPath = delegate.getTaskAttemptPath(context);
+        Path committedTaskPath = delegate.getCommittedTaskPath(context);
+        
+        registration.commitTask(attemptPath, committedTaskPath);
+        delegate.commitTask(context);
+        registration.taskCommitted(attemptPath, committedTaskPath);
+    }
+
+    @Override
+    public void abortTask(TaskAttemptContext context) throws IOException {
+        delegate.abortTask(context);
+    }
+
+    @Override
+    public boolean isRecoverySupported() {
+        return delegate.isRecoverySupported();
+    }
+
+    @Override
+    public void recoverTask(TaskAttemptContext context) throws IOException {
+        delegate.recoverTask(context);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.common;
+
+import com.google.common.util.concurrent.RateLimiter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A RateLimiter whose rate follows the throttling responses of the backend
+ * (additive increase, multiplicative decrease).
+ * 
+ * Every successful request raises the rate by increase/rate, which adds up
+ * to the increase per second while requests flow at the current rate.  A
+ * throttled request multiplies the rate by the decrease factor, at most once
+ * per cooldown so a burst of throttles caused by the same overload only
+ * counts once.  Many clients limited this way share the provisioned
+ * capacity between them instead of retrying into it in lockstep.
+ */
+public class AdaptiveRateLimiter {
+    private final RateLimiter limiter;
+    
+    private final double minRate;
+    private final double maxRate;
+    private final double increase;
+    private final double decrease;
+    private final long cooldown;
+    
+    private double rate;
+    private long lastDecrease = 0;
+    
+    public AdaptiveRateLimiter(double initialRate, double minRate, double maxRate, double increase, double decrease, long cooldown) {
+        this.rate = initialRate;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.increase = increase;
+        this.decrease = decrease;
+        this.cooldown = cooldown;
+        this.limiter = RateLimiter.create(initialRate);
+    }
+    
+    /**
+     * Creates the limiter for metastore reads or writes from the configuration.
+     * 
+     * @param kind read or write
+     * @return the limiter or null if rate limiting is disabled
+     */
+    public static AdaptiveRateLimiter fromConfiguration(Configuration conf, String kind) {
+        if (!conf.getBoolean("s3mper.metastore.ratelimit.enabled", false)) {
+            return null;
+        }
+        
+        String prefix = "s3mper.metastore.ratelimit." + kind;
+        
+        return new AdaptiveRateLimiter(
+                conf.getFloat(prefix + ".initial", 50),
+                conf.getFloat(prefix + ".min", 1),
+                conf.getFloat(prefix + ".max", 1000),
+                conf.getFloat("s3mper.metastore.ratelimit.increase", 1),
+                conf.getFloat("s3mper.metastore.ratelimit.decrease", 0.5f),
+                conf.getLong("s3mper.metastore.ratelimit.cooldown", 1000));
+    }
+    
+    /**
+     * Waits for the permits, no longer than the current Deadline allows.
+     * 
+     * @throws TimeoutException if the permits are not available before the deadline
+     */
+    public void acquire(int permits) throws TimeoutException {
+        if (Deadline.current() == null) {
+            limiter.acquire(permits);
+        } else if (!limiter.tryAcquire(permits, Math.max(0, Deadline.remaining()), TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("Rate limit wait exceeds deadline");
+        }
+    }
+    
+    /**
+     * Takes the permits only if that needs no waiting.
+     */
+    public boolean tryAcquire(int permits) {
+        return limiter.tryAcquire(permits);
+    }
+    
+    public synchronized void onSuccess() {
+        if (rate < maxRate) {
+            update(Math.min(maxRate, rate + increase / rate));
+        }
+    }
+    
+    public synchronized void onThrottle() {
+        long now = System.currentTimeMillis();
+        
+        if (now - lastDecrease >= cooldown) {
+            lastDecrease = now;
+            update(Math.max(minRate, rate * decrease));
+        }
+    }
+    
+    private void update(double newRate) {
+        rate = newRate;
+        
+        //Changing the rate resynchronizes the limiter, so skip tiny steps
+        if (Math.abs(limiter.getRate() - rate) >= limiter.getRate() * 0.01) {
+            limiter.setRate(rate);
+        }
+    }
+    
+    public synchronized double getRate() {
+        return rate;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.common;
+
+import java.util.concurrent.Callable;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A per operation timeout derived from recently observed latencies: a high
+ * percentile plus a margin, clamped between a floor and a ceiling.  Until
+ * enough samples are available, or if adaptation is disabled, the ceiling
+ * (normally s3mper.metastore.timeout) is used.  The ceiling follows the
+ * metastore's setTimeout, so a disabled timeout is exactly the fixed one.
+ * 
+ * Attempts that time out are recorded at the timeout they were given and
+ * the next attempt gets that timeout plus the margin, so a store that slows
+ * down pushes the timeout up towards the ceiling instead of failing every
+ * retry at the old value.  The escalation ends with the next success.
+ */
+public class AdaptiveTimeout {
+    private static final int MIN_SAMPLES = 20;
+    
+    private final LatencyTracker latencies = new LatencyTracker(1024);
+    
+    private final boolean enabled;
+    private final double percentile;
+    private final double margin;
+    private final long floor;
+    private volatile long ceiling;
+    
+    private volatile long escalated = 0;
+    
+    public AdaptiveTimeout(boolean enabled, double percentile, double margin, long floor, long ceiling) {
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.margin = margin;
+        this.floor = floor;
+        this.ceiling = ceiling;
+    }
+    
+    /**
+     * Creates the timeout for a metastore operation from the configuration.
+     * 
+     * @param timeout the fixed timeout used as the default ceiling
+     */
+    public static AdaptiveTimeout fromConfiguration(Configuration conf, int timeout) {
+        return new AdaptiveTimeout(
+                conf.getBoolean("s3mper.metastore.timeout.adaptive", false),
+                conf.getFloat("s3mper.metastore.timeout.percentile", 99),
+                conf.getFloat("s3mper.metastore.timeout.margin", 0.5f),
+                conf.getLong("s3mper.metastore.timeout.floor", 250),
+                conf.getLong("s3mper.metastore.timeout.ceiling", timeout));
+    }
+    
+    /**
+     * @return the timeout (in Milliseconds) for the next attempt
+     */
+    public long getTimeout() {
+        if (!enabled || latencies.size() < MIN_SAMPLES) {
+            return ceiling;
+        }
+        
+        long max = ceiling;
+        long estimate = Math.max(escalated, (long) (latencies.percentile(percentile) * (1 + margin)));
+        
+        return Math.max(Math.min(floor, max), Math.min(max, estimate));
+    }
+    
+    /**
+     * Replaces the ceiling, which is also the timeout while adaptation is
+     * disabled or has too few samples.
+     */
+    public void setCeiling(long ceiling) {
+        this.ceiling = ceiling;
+    }
+    
+    /**
+     * Records an attempt that was abandoned after the given timeout.
+     */
+    public void recordTimeout(long timeout) {
+        if (enabled) {
+            latencies.record(timeout);
+            escalated = (long) (timeout * (1 + margin));
+        }
+    }
+    
+    public LatencyTracker getLatencies() {
+        return latencies;
+    }
+    
+    /**
+     * Wraps the target so that the latency of every successful call is recorded.
+     */
+    <T> Callable<T> timed(final Callable<T> target) {
+        if (!enabled) {
+            return target;
+        }
+        
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.currentTimeMillis();
+                T result = target.call();
+                latencies.record(System.currentTimeMillis() - start);
+                escalated = 0;
+                return result;
+            }
+        };
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.common;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClient;
+import com.amazonaws.services.dynamodb.AmazonDynamoDBAsyncClient;
+import com.amazonaws.services.dynamodb.AmazonDynamoDBClient;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of the AWS clients used by s3mper in this JVM.
+ * 
+ * Clients are shared by every component asking for the same type of client
+ * with the same credentials, endpoint and client configuration, so they
+ * share one connection pool and reuse its open connections instead of each
+ * setting up their own.  Shared clients live as long as the JVM and must
+ * not be shut down by their users.
+ */
+public final class AwsClients {
+    private static final Logger log = Logger.getLogger(AwsClients.class.getName());
+    
+    private static final Map<List<Object>, AmazonWebServiceClient> clients = new HashMap<List<Object>, AmazonWebServiceClient>();
+    
+    private AwsClients() {
+    }
+    
+    /**
+     * Creates the client configuration from the s3mper.aws.* settings.
+     * Callers may adjust it before asking for a client.
+     */
+    public static ClientConfiguration configuration(Configuration conf) {
+        ClientConfiguration clientConf = new ClientConfiguration();
+        
+        clientConf.setMaxConnections(conf.getInt("s3mper.aws.connections.max", 128));
+        clientConf.setConnectionTimeout(conf.getInt("s3mper.aws.timeout.connection", clientConf.getConnectionTimeout()));
+        clientConf.setSocketTimeout(conf.getInt("s3mper.aws.timeout.socket", clientConf.getSocketTimeout()));
+        
+        int maxErrorRetry = conf.getInt("s3mper.aws.retry.max", -1);
+        
+        if (maxErrorRetry >= 0) {
+            clientConf.setMaxErrorRetry(maxErrorRetry);
+        }
+        
+        return clientConf;
+    }
+    
+    public static AmazonDynamoDBClient dynamoDB(String keyId, String keySecret, ClientConfiguration clientConf, String endpoint) {
+        return get(AmazonDynamoDBClient.class, keyId, keySecret, clientConf, endpoint, new Factory<AmazonDynamoDBClient>() {
+            @Override
+            public AmazonDynamoDBClient create(AWSCredentials credentials, ClientConfiguration clientConf) {
+                return new AmazonDynamoDBClient(credentials, clientConf);
+            }
+        });
+    }
+    
+    public static AmazonDynamoDBAsyncClient dynamoDBAsync(String keyId, String keySecret, ClientConfiguration clientConf, String endpoint) {
+        return get(AmazonDynamoDBAsyncClient.class, keyId, keySecret, clientConf, endpoint, new Factory<AmazonDynamoDBAsyncClient>() {
+            @Override
+            public AmazonDynamoDBAsyncClient create(AWSCredentials credentials, ClientConfiguration clientConf) {
+                return new AmazonDynamoDBAsyncClient(credentials, clientConf, executor(clientConf, "dynamodb"));
+            }
+        });
+    }
+    
+    public static AmazonSQSClient sqs(String keyId, String keySecret, ClientConfiguration clientConf) {
+        return get(AmazonSQSClient.class, keyId, keySecret, clientConf, null, new Factory<AmazonSQSClient>() {
+            @Override
+            public AmazonSQSClient create(AWSCredentials credentials, ClientConfiguration clientConf) {
+                return new AmazonSQSClient(credentials, clientConf);
+            }
+        });
+    }
+    
+    public static AmazonCloudWatchAsyncClient cloudWatchAsync(String keyId, String keySecret, ClientConfiguration clientConf) {
+        return get(AmazonCloudWatchAsyncClient.class, keyId, keySecret, clientConf, null, new Factory<AmazonCloudWatchAsyncClient>() {
+            @Override
+            public AmazonCloudWatchAsyncClient create(AWSCredentials credentials, ClientConfiguration clientConf) {
+                return new AmazonCloudWatchAsyncClient(credentials, clientConf, executor(clientConf, "cloudwatch"));
+            }
+        });
+    }
+    
+    public static AmazonS3Client s3(String keyId, String keySecret, ClientConfiguration clientConf) {
+        return get(AmazonS3Client.class, keyId, keySecret, clientConf, null, new Factory<AmazonS3Client>() {
+            @Override
+            public AmazonS3Client create(AWSCredentials credentials, ClientConfiguration clientConf) {
+                return new AmazonS3Client(credentials, clientConf);
+            }
+        });
+    }
+    
+    private interface Factory<T extends AmazonWebServiceClient> {
+        T create(AWSCredentials credentials, ClientConfiguration clientConf);
+    }
+    
+    private static synchronized <T extends AmazonWebServiceClient> T get(Class<T> type, String keyId, String keySecret, 
+            ClientConfiguration clientConf, String endpoint, Factory<T> factory) {
+        List<Object> key = Arrays.<Object>asList(type, keyId, keySecret, endpoint, 
+                clientConf.getMaxConnections(), clientConf.getMaxErrorRetry(),
+                clientConf.getConnectionTimeout(), clientConf.getSocketTimeout());
+        
+        AmazonWebServiceClient client = clients.get(key);
+        
+        if (client == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Creating " + type.getSimpleName() + (endpoint == null ? "" : " for " + endpoint));
+            }
+            
+            client = factory.create(new BasicAWSCredentials(keyId, keySecret), clientConf);
+            
+            if (endpoint != null) {
+                client.setEndpoint(endpoint);
+            }
+            
+            clients.put(key, client);
+        }
+        
+        return type.cast(client);
+    }
+    
+    /**
+     * Async clients run each call on their executor; it is bounded by the
+     * connection pool since more threads would only wait for a connection.
+     */
+    private static ExecutorService executor(ClientConfiguration clientConf, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(clientConf.getMaxConnections(), clientConf.getMaxConnections(), 
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3mper-" + name + "-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        
+        return executor;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.common;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+/**
+ * A circuit breaker driven by the error rate and the rate of slow calls over
+ * the most recent calls.
+ * 
+ * While closed every call is allowed.  Once enough calls have been seen and
+ * either rate reaches its threshold the circuit opens and calls are rejected
+ * without being attempted.  After the open duration a limited number of probe
+ * calls are let through (half-open); a fast success closes the circuit again,
+ * anything else reopens it.
+ */
+public class CircuitBreaker {
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class.getName());
+    
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+    
+    private final double failureRate;
+    private final double slowRate;
+    private final long slowCall;
+    private final int minCalls;
+    private final long openDuration;
+    private final int probes;
+    
+    private final boolean[] failures;
+    private final boolean[] slowCalls;
+    private int count = 0;
+    private int next = 0;
+    private int failureCount = 0;
+    private int slowCount = 0;
+    
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesInFlight;
+    private boolean openNotice = false;
+    
+    public CircuitBreaker(int window, int minCalls, double failureRate, double slowRate, long slowCall,
+            long openDuration, int probes) {
+        this.failures = new boolean[window];
+        this.slowCalls = new boolean[window];
+        this.minCalls = Math.min(minCalls, window);
+        this.failureRate = failureRate;
+        this.slowRate = slowRate;
+        this.slowCall = slowCall;
+        this.openDuration = openDuration;
+        this.probes = probes;
+    }
+    
+    public static CircuitBreaker fromConfiguration(Configuration conf) {
+        return new CircuitBreaker(
+                conf.getInt("s3mper.metastore.circuit.window", 20),
+                conf.getInt("s3mper.metastore.circuit.min.calls", 10),
+                conf.getFloat("s3mper.metastore.circuit.failure.rate", 0.5f),
+                conf.getFloat("s3mper.metastore.circuit.slow.rate", 0.8f),
+                conf.getLong("s3mper.metastore.circuit.slow.call", 2000),
+                conf.getLong("s3mper.metastore.circuit.open.duration", 30000),
+                conf.getInt("s3mper.metastore.circuit.probes", 1));
+    }
+    
+    /**
+     * @return true if a call may be made now; the caller must report its
+     *         outcome with onSuccess(), onFailure() or release()
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openDuration) {
+                return false;
+            }
+            
+            transition(State.HALF_OPEN);
+            probesInFlight = 0;
+        }
+        
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= probes) {
+                return false;
+            }
+            
+            probesInFlight++;
+        }
+        
+        return true;
+    }
+    
+    public synchronized void onSuccess(long latency) {
+        boolean slow = latency > slowCall;
+        
+        if (state == State.HALF_OPEN) {
+            if (slow) {
+                open();
+            } else {
+                transition(State.CLOSED);
+                reset();
+            }
+        } else if (state == State.CLOSED) {
+            record(false, slow);
+        }
+    }
+    
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true, false);
+        }
+    }
+    
+    /**
+     * Reports a call that ended without telling anything about the backend,
+     * e.g. because it never reached it.  Only frees its probe slot.
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN && probesInFlight > 0) {
+            probesInFlight--;
+        }
+    }
+    
+    /**
+     * Opens the circuit regardless of the recorded calls.
+     */
+    public synchronized void open() {
+        transition(State.OPEN);
+        openedAt = System.currentTimeMillis();
+        openNotice = true;
+        reset();
+    }
+    
+    public synchronized State getState() {
+        return state;
+    }
+    
+    /**
+     * Returns true once after each time the circuit opens, so that exactly one
+     * caller reports it.
+     */
+    public synchronized boolean takeOpenNotice() {
+        boolean notice = openNotice;
+        openNotice = false;
+        return notice;
+    }
+    
+    private void record(boolean failure, boolean slow) {
+        if (count == failures.length) {
+            failureCount -= failures[next] ? 1 : 0;
+            slowCount -= slowCalls[next] ? 1 : 0;
+        } else {
+            count++;
+        }
+        
+        failures[next] = failure;
+        slowCalls[next] = slow;
+        failureCount += failure ? 1 : 0;
+        slowCount += slow ? 1 : 0;
+        next = (next + 1) % failures.length;
+        
+        if (count >= minCalls
+                && (failureCount >= failureRate * count || slowCount >= slowRate * count)) {
+            open();
+        }
+    }
+    
+    private void reset() {
+        count = 0;
+        next = 0;
+        failureCount = 0;
+        slowCount = 0;
+    }
+    
+    private void transition(State target) {
+        if (state != target) {
+            log.info("Metastore circuit " + state + " -> " + target);
+            state = target;
+        }
+    }
+}
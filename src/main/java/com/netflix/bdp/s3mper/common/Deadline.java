@@ -0,0 +1,81 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.common;
+
+/**
+ * A latency budget for the current thread.  Callers such as the listing
+ * advice start a deadline before invoking the metastore and every RetryTask
+ * run on that thread shares it: attempts are cut short to the time that is
+ * left and no new attempt starts once it has passed.
+ * 
+ * Deadlines nest; a nested start never extends the deadline already in
+ * effect.
+ */
+public final class Deadline {
+    private static final ThreadLocal<Long> expiry = new ThreadLocal<Long>();
+    
+    private Deadline() {
+    }
+    
+    /**
+     * Starts a deadline the given number of milliseconds from now.  A budget
+     * of zero or less leaves the current deadline unchanged.
+     * 
+     * @return the previous deadline, to be passed to restore()
+     */
+    public static Long start(long budget) {
+        Long previous = expiry.get();
+        
+        if (budget > 0) {
+            long end = System.currentTimeMillis() + budget;
+            
+            expiry.set(previous == null ? end : Math.min(previous, end));
+        }
+        
+        return previous;
+    }
+    
+    /**
+     * Reinstates the deadline returned by start() (or current()).
+     */
+    public static void restore(Long previous) {
+        if (previous == null) {
+            expiry.remove();
+        } else {
+            expiry.set(previous);
+        }
+    }
+    
+    /**
+     * @return the deadline of the current thread in epoch milliseconds or null
+     */
+    public static Long current() {
+        return expiry.get();
+    }
+    
+    /**
+     * @return milliseconds left before the deadline or Long.MAX_VALUE if none is set
+     */
+    public static long remaining() {
+        Long end = expiry.get();
+        
+        return end == null ? Long.MAX_VALUE : end - System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.common;
+
+import java.util.Random;
+
+/**
+ * Provides capped exponential backoff with decorrelated jitter: each delay is
+ * drawn uniformly between the base delay and three times the previous delay,
+ * but never exceeds the cap.  Clients retrying after the same failure spread
+ * out instead of retrying in lock step.
+ */
+public class DecorrelatedJitterBackoffAlgorithm implements BackoffAlgorithm {
+    private final Random random = new Random();
+    
+    private final long base;
+    private final long cap;
+    private long previous;
+    
+    public DecorrelatedJitterBackoffAlgorithm(long base, long cap) {
+        this.base = base;
+        this.cap = cap;
+        this.previous = base;
+    }
+    
+    @Override
+    public boolean hasNext() {
+        return true;
+    }
+
+    @Override
+    public Long next() {
+        long upper = Math.min(cap, previous * 3);
+        
+        previous = upper > base ? base + (long) (random.nextDouble() * (upper - base)) : Math.min(base, cap);
+        
+        return previous;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove() not supported");
+    }
+    
+}
@@ -0,0 +1,88 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.GlobPattern;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Paths that are not tracked in the metastore, such as task attempt output
+ * and job markers that are never listed for correctness.
+ * 
+ * A path is excluded if any of its components matches one of the glob
+ * patterns in s3mper.metastore.exclude, so everything below an excluded
+ * directory is excluded as well.
+ * 
+ * Nothing is excluded by default.  Files renamed out of an excluded path are
+ * registered from a listing of the source taken before the rename, so a file
+ * missing from that listing is never registered and its absence from later
+ * listings goes undetected.
+ */
+public class ExcludedPaths {
+    public static final String DEFAULT_PATTERNS = "";
+    
+    private final String patterns;
+    private final List<Pattern> compiled = new ArrayList<Pattern>();
+    
+    public ExcludedPaths(String patterns) {
+        this.patterns = patterns;
+        
+        for (String pattern : StringUtils.getTrimmedStrings(patterns)) {
+            if (!pattern.isEmpty()) {
+                compiled.add(GlobPattern.compile(pattern));
+            }
+        }
+    }
+    
+    /**
+     * Returns the exclusions configured, or the given ones if unchanged or
+     * not configured.
+     */
+    public static ExcludedPaths fromConfiguration(Configuration conf, ExcludedPaths current) {
+        String patterns = conf.get("s3mper.metastore.exclude", current.patterns);
+        
+        if (current.patterns.equals(patterns)) {
+            return current;
+        }
+        
+        return new ExcludedPaths(patterns);
+    }
+    
+    public boolean matches(Path path) {
+        if (compiled.isEmpty()) {
+            return false;
+        }
+        
+        for (Path p = path; p != null; p = p.getParent()) {
+            for (Pattern pattern : compiled) {
+                if (pattern.matcher(p.getName()).matches()) {
+                    return true;
+                }
+            }
+        }
+        
+        return false;
+    }
+}
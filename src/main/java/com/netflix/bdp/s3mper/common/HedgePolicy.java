@@ -0,0 +1,116 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.common;
+
+import java.util.concurrent.Callable;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Decides when RetryTask sends a second copy of a slow idempotent request.
+ * 
+ * The hedge is sent once the first request has been outstanding longer than
+ * the configured percentile of recent latencies.  Hedges are paid for from a
+ * token bucket that every request tops up by the budget ratio, so at most
+ * that fraction of requests (plus a small burst) cause extra load.
+ */
+public class HedgePolicy {
+    private static final int MIN_SAMPLES = 20;
+    private static final double MAX_TOKENS = 10;
+    
+    private final LatencyTracker latencies = new LatencyTracker(1024);
+    
+    private final double percentile;
+    private final long minDelay;
+    private final double budget;
+    
+    private double tokens = MAX_TOKENS;
+    
+    public HedgePolicy(double percentile, long minDelay, double budget) {
+        this.percentile = percentile;
+        this.minDelay = minDelay;
+        this.budget = budget;
+    }
+    
+    /**
+     * Creates the policy for metastore reads from the configuration.
+     * 
+     * @return the policy or null if hedging is disabled
+     */
+    public static HedgePolicy fromConfiguration(Configuration conf) {
+        if (!conf.getBoolean("s3mper.metastore.hedge.enabled", false)) {
+            return null;
+        }
+        
+        return new HedgePolicy(
+                conf.getFloat("s3mper.metastore.hedge.percentile", 95),
+                conf.getLong("s3mper.metastore.hedge.delay.min", 10),
+                conf.getFloat("s3mper.metastore.hedge.budget", 0.05f));
+    }
+    
+    /**
+     * @return how long to wait (in Milliseconds) before hedging, or -1 if there
+     *         are not yet enough samples to tell what slow is
+     */
+    public long getDelay() {
+        if (latencies.size() < MIN_SAMPLES) {
+            return -1;
+        }
+        
+        return Math.max(minDelay, latencies.percentile(percentile));
+    }
+    
+    /**
+     * Accounts for a new request.
+     */
+    public synchronized void onRequest() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+    }
+    
+    /**
+     * @return true if the budget allows a hedge now, in which case it is spent
+     */
+    public synchronized boolean tryHedge() {
+        if (tokens < 1) {
+            return false;
+        }
+        
+        tokens -= 1;
+        return true;
+    }
+    
+    public LatencyTracker getLatencies() {
+        return latencies;
+    }
+    
+    /**
+     * Wraps the target so that the latency of every successful call is recorded.
+     */
+    <T> Callable<T> timed(final Callable<T> target) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.currentTimeMillis();
+                T result = target.call();
+                latencies.record(System.currentTimeMillis() - start);
+                return result;
+            }
+        };
+    }
+}
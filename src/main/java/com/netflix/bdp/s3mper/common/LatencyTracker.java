@@ -0,0 +1,77 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.common;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples of an operation in a fixed size ring
+ * and answers percentile queries over them.  The sorted view is refreshed
+ * periodically rather than on every query.
+ */
+public class LatencyTracker {
+    private static final int REFRESH_INTERVAL = 32;
+    
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+    
+    private long[] sorted = null;
+    private int sinceRefresh = 0;
+    
+    public LatencyTracker(int size) {
+        this.samples = new long[size];
+    }
+    
+    public synchronized void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        
+        if (count < samples.length) {
+            count++;
+        }
+        
+        sinceRefresh++;
+    }
+    
+    public synchronized int size() {
+        return count;
+    }
+    
+    /**
+     * @param percentile a value between 0 and 100
+     * @return the latency at the given percentile or -1 if nothing was recorded
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        
+        if (sorted == null || sinceRefresh >= REFRESH_INTERVAL) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sinceRefresh = 0;
+        }
+        
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
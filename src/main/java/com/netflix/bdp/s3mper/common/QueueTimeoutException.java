@@ -0,0 +1,35 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.common;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Thrown when a RetryTask attempt times out before a retry thread picked it
+ * up.  The backend was never called, so this says nothing about its latency
+ * or health.
+ */
+public class QueueTimeoutException extends TimeoutException {
+
+    public QueueTimeoutException(String message) {
+        super(message);
+    }
+
+}
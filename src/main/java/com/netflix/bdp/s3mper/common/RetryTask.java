@@ -19,34 +19,75 @@
 
 package com.netflix.bdp.s3mper.common;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import org.apache.log4j.Logger;
 
 import static java.lang.String.*;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A callable task that will automatically retry on failure.  The retry task is
  * callable itself, so it is possible to use with an executor or just invoke
  * the call() method.
  * 
+ * Attempts run on an executor shared by all retry tasks in the JVM so that
+ * enforcing the timeout does not cost a thread per call.  The pool size is
+ * set with the s3mper.retry.threads system property; with
+ * s3mper.retry.virtualThreads set, attempts run on virtual threads instead
+ * when the JDK provides them.  An attempt that times out is cancelled.
+ * The timeout of an attempt starts once it is running, so time spent
+ * queued for a pool thread under load is not charged to the backend.  The
+ * wait for a thread is bounded separately by the same timeout (or the
+ * Deadline, if sooner), so calls still fail in bounded time when hung
+ * attempts hold every thread; that expiry is a QueueTimeoutException and is
+ * not fed back to an AdaptiveTimeout.
+ * 
+ * If a Deadline is in effect on the calling thread, attempts are limited to
+ * the time left and the task gives up once the deadline has passed.
+ * 
+ * Idempotent reads can be given a HedgePolicy: an attempt that is still
+ * outstanding after the policy's delay is raced against a second identical
+ * request and the first successful answer wins.
+ * 
+ * Instead of a fixed timeout an AdaptiveTimeout can be given, in which case
+ * every attempt gets the timeout it currently suggests and reports back how
+ * long the attempt took.
+ * 
  * @param <T> 
  * @author dweeks
  */
 public class RetryTask<T> implements Callable<T> {
     private static final Logger log = Logger.getLogger(RetryTask.class.getName());
     
+    private static final ExecutorService executor = createExecutor();
+    
     private int maxRetries = 10;
     private int timeout = 1000;
     
-    private BackoffAlgorithm backoff = new ExponentialBackoffAlgorithm(1000);
+    private BackoffAlgorithm backoff = new DecorrelatedJitterBackoffAlgorithm(
+            Long.getLong("s3mper.retry.backoff.base", 1000),
+            Long.getLong("s3mper.retry.backoff.cap", 10000));
     
     private Callable<T> target;
     
+    private HedgePolicy hedge;
+    
+    private AdaptiveTimeout adaptiveTimeout;
+    
     public RetryTask(Callable<T> target) {
         this.target = target;
     }
@@ -64,37 +105,216 @@ public class RetryTask<T> implements Callable<T> {
         this.backoff = backoff;
     }
     
+    public RetryTask(Callable<T> target, int maxRetries, int timeout, HedgePolicy hedge) {
+        this.target = target;
+        this.maxRetries = maxRetries;
+        this.timeout = timeout;
+        this.hedge = hedge;
+    }
+    
+    public RetryTask(Callable<T> target, int maxRetries, AdaptiveTimeout timeout) {
+        this.target = target;
+        this.maxRetries = maxRetries;
+        this.adaptiveTimeout = timeout;
+    }
+    
+    public RetryTask(Callable<T> target, int maxRetries, AdaptiveTimeout timeout, HedgePolicy hedge) {
+        this.target = target;
+        this.maxRetries = maxRetries;
+        this.adaptiveTimeout = timeout;
+        this.hedge = hedge;
+    }
+    
     @Override
     public T call() throws Exception {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Long deadline = Deadline.current();
+        Callable<T> task = adaptiveTimeout == null ? target : adaptiveTimeout.timed(target);
         
-        try {
-            for (int attempt = 1; attempt <= maxRetries; attempt++) {
-                try {
-                    FutureTask<T> future = new FutureTask<T>(target);
-
-                    executor.submit(future);
+        for (int attempt = 1; attempt <= maxRetries; attempt++) {
+            long attemptTimeout = adaptiveTimeout == null ? timeout : adaptiveTimeout.getTimeout();
+            boolean limited = false;
+            
+            if (deadline != null) {
+                long remaining = deadline - System.currentTimeMillis();
+                
+                if (remaining <= 0) {
+                    throw new TimeoutException(format("Deadline exceeded after %d attempts", attempt - 1));
+                }
+                
+                if (remaining < attemptTimeout) {
+                    attemptTimeout = remaining;
+                    limited = true;
+                }
+            }
+            
+            try {
+                return hedge == null ? attempt(task, attemptTimeout, deadline) : hedgedAttempt(task, attemptTimeout, deadline);
+            } catch (InterruptedException ie) {
+                throw ie;
+            } catch (CancellationException ce) {
+                throw ce;
+            } catch (Exception e) {
+                if (e instanceof TimeoutException && !(e instanceof QueueTimeoutException)
+                        && adaptiveTimeout != null && !limited) {
+                    adaptiveTimeout.recordTimeout(attemptTimeout);
+                }
+                
+                log.warn(format("Call attempt failed (%d of %d)", attempt, maxRetries));
 
-                    return future.get(timeout, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException ie) {
-                    throw ie;
-                } catch (CancellationException ce) {
-                    throw ce;
-                } catch (Exception e) {
-                    log.warn(format("Call attempt failed (%d of %d)", attempt, maxRetries));
+                if(attempt == maxRetries) {
+                    throw e;
+                }
 
-                    if(attempt == maxRetries) {
+                long delay = backoff.next();
+                
+                if (deadline != null && System.currentTimeMillis() + delay >= deadline) {
+                    log.warn("Not retrying, deadline would pass before the next attempt");
+                    throw e;
+                }
+                
+                Thread.sleep(delay);
+            }
+        }
+        
+        throw new RuntimeException("Unexpected retry call failure");
+    }
+    
+    private T attempt(Callable<T> task, long attemptTimeout, Long deadline) throws Exception {
+        Started<T> started = new Started<T>(task);
+        Future<T> future = executor.submit(started);
+        
+        try {
+            long end = started.await(attemptTimeout, deadline) + attemptTimeout;
+            
+            if (deadline != null) {
+                end = Math.min(end, deadline);
+            }
+            
+            return future.get(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } finally {
+            future.cancel(true);
+        }
+    }
+    
+    private T hedgedAttempt(Callable<T> task, long attemptTimeout, Long deadline) throws Exception {
+        CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+        List<Future<T>> futures = new ArrayList<Future<T>>(2);
+        
+        hedge.onRequest();
+        
+        try {
+            Started<T> first = new Started<T>(hedge.timed(task));
+            futures.add(completion.submit(first));
+            
+            long start = first.await(attemptTimeout, deadline);
+            
+            if (deadline != null) {
+                attemptTimeout = Math.min(attemptTimeout, deadline - start);
+            }
+            
+            Future<T> done = null;
+            long delay = hedge.getDelay();
+            
+            if (delay >= 0 && delay < attemptTimeout) {
+                done = completion.poll(Math.max(0, start + delay - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                
+                if (done == null && hedge.tryHedge()) {
+                    log.debug(format("Hedging request outstanding for %d (ms)", delay));
+                    futures.add(completion.submit(hedge.timed(task)));
+                }
+            }
+            
+            int outstanding = futures.size();
+            
+            while (true) {
+                if (done == null) {
+                    long remaining = attemptTimeout - (System.currentTimeMillis() - start);
+                    
+                    done = remaining > 0 ? completion.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    
+                    if (done == null) {
+                        throw new TimeoutException();
+                    }
+                }
+                
+                outstanding--;
+                
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    if (outstanding == 0) {
                         throw e;
                     }
-
-                    Thread.sleep(backoff.next());
+                    
+                    done = null;
                 }
             }
         } finally {
-            executor.shutdown();
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
         }
+    }
+    
+    /**
+     * Records when a task starts running on a pool thread.
+     */
+    private static class Started<T> implements Callable<T> {
+        private final Callable<T> task;
+        private final CountDownLatch running = new CountDownLatch(1);
+        private volatile long startTime;
         
-        throw new RuntimeException("Unexpected retry call failure");
+        Started(Callable<T> task) {
+            this.task = task;
+        }
+        
+        @Override
+        public T call() throws Exception {
+            startTime = System.currentTimeMillis();
+            running.countDown();
+            
+            return task.call();
+        }
+        
+        /**
+         * Waits for the task to start, no longer than the timeout or the
+         * deadline if there is one.
+         * 
+         * @return the time the task started
+         */
+        long await(long timeout, Long deadline) throws InterruptedException, QueueTimeoutException {
+            String reason = format("Timed out after %d (ms) waiting for a retry thread", timeout);
+            
+            if (deadline != null && deadline - System.currentTimeMillis() < timeout) {
+                timeout = deadline - System.currentTimeMillis();
+                reason = "Deadline exceeded waiting for a retry thread";
+            }
+            
+            if (!running.await(Math.max(0, timeout), TimeUnit.MILLISECONDS)) {
+                throw new QueueTimeoutException(reason);
+            }
+            
+            return startTime;
+        }
+    }
+    
+    private static ExecutorService createExecutor() {
+        if (Boolean.getBoolean("s3mper.retry.virtualThreads")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                log.info("Virtual threads not available, using a thread pool for retry tasks");
+            }
+        }
+        
+        int threads = Integer.getInteger("s3mper.retry.threads", 64);
+        
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3mper-retry-%d").build());
+        pool.allowCoreThreadTimeOut(true);
+        
+        return pool;
     }
     
 }
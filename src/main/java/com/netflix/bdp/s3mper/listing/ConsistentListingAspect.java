@@ -20,7 +20,19 @@
 package com.netflix.bdp.s3mper.listing;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.netflix.bdp.s3mper.committer.PendingOutputs;
+import com.netflix.bdp.s3mper.common.Deadline;
+import com.netflix.bdp.s3mper.common.ExcludedPaths;
+import com.netflix.bdp.s3mper.common.SingleFlight;
+import com.netflix.bdp.s3mper.metastore.AsyncFileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.CircuitOpenException;
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
 import com.netflix.bdp.s3mper.metastore.FileInfo;
 import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
 import com.netflix.bdp.s3mper.alert.AlertDispatcher;
@@ -34,14 +46,23 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.netflix.bdp.s3mper.metastore.Metastore;
+import com.netflix.bdp.s3mper.metastore.MetastoreJournal;
+import com.netflix.bdp.s3mper.metastore.impl.WriteBehindMetastore;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.log4j.Logger;
 import org.aspectj.lang.JoinPoint;
@@ -65,7 +86,11 @@ import java.util.Iterator;
 public abstract class ConsistentListingAspect {
     private static final Logger log = Logger.getLogger(ConsistentListingAspect.class.getName());
     
+    private static final int WRITE_GENERATION_STRIPES = 1024;
+    
     private FileSystemMetastore metastore = null;
+    private AsyncFileSystemMetastore asyncMetastore = null;
+    private MetastoreJournal journal = null;
     private AlertDispatcher alertDispatcher = null;
         
     private boolean disabled = true;
@@ -74,6 +99,7 @@ public abstract class ConsistentListingAspect {
     private boolean taskFailOnError = Boolean.getBoolean("s3mper.task.failOnError");
     private boolean checkTaskListings = Boolean.getBoolean("s3mper.listing.task.check"); 
     private boolean failOnTimeout = Boolean.getBoolean("s3mper.failOnTimeout");
+    private boolean failOnCircuitOpen = Boolean.getBoolean("s3mper.metastore.circuit.failOnOpen");
     private boolean trackDirectories = Boolean.getBoolean("s3mper.listing.directory.tracking");
     private boolean delistDeleteMarkedFiles = true;
     
@@ -84,6 +110,20 @@ public abstract class ConsistentListingAspect {
     private long taskRecheckCount = Long.getLong("s3mper.listing.task.recheck.count", 0);
     private long taskRecheckPeriod = Long.getLong("s3mper.listing.task.recheck.period", TimeUnit.MINUTES.toMillis(1));
     private boolean statOnMissingFile = Boolean.getBoolean("s3mper.listing.statOnMissingFile");
+    private long listingDeadline = Long.getLong("s3mper.listing.deadline", 0);
+    private boolean overlapListing = Boolean.getBoolean("s3mper.listing.overlap");
+    private boolean writeBehind = Boolean.getBoolean("s3mper.metastore.writeBehind.enabled");
+    private boolean deferRegistration = Boolean.getBoolean("s3mper.metastore.writeBehind.deferred");
+    private boolean bulkRegistration = Boolean.getBoolean("s3mper.committer.bulk");
+    private boolean trackSession = Boolean.getBoolean("s3mper.listing.session.enabled");
+    private boolean singleFlight = Boolean.getBoolean("s3mper.listing.singleflight");
+    private long convergenceWindow = Long.getLong("s3mper.listing.convergence.window", 0);
+    private boolean digestCheck = Boolean.getBoolean("s3mper.listing.digest");
+    private Cache<String, Boolean> rebuilt = null;
+    private final SingleFlight<String, FileStatus[]> checks = new SingleFlight<String, FileStatus[]>();
+    private final AtomicLongArray writeGenerations = new AtomicLongArray(WRITE_GENERATION_STRIPES);
+    private WriteSession writeSession = null;
+    private ExcludedPaths excludedPaths = new ExcludedPaths(System.getProperty("s3mper.metastore.exclude", ExcludedPaths.DEFAULT_PATTERNS));
 
     @Pointcut
     public abstract void init();
@@ -118,8 +158,9 @@ public abstract class ConsistentListingAspect {
             Class<?> metaImpl = conf.getClass("s3mper.metastore.impl", com.netflix.bdp.s3mper.metastore.impl.DynamoDBMetastore.class);
 
             try {
-                metastore = Metastore.getFilesystemMetastore(conf);
-                metastore.initalize(uri, conf);
+                metastore = Metastore.getInitializedMetastore(uri, conf);
+                asyncMetastore = Metastore.getAsyncMetastore(conf);
+                journal = MetastoreJournal.open(conf, metastore);
             } catch (Exception e) {
                 disable();
 
@@ -166,6 +207,7 @@ public abstract class ConsistentListingAspect {
         taskFailOnError = conf.getBoolean("s3mper.task.failOnError", taskFailOnError);
         checkTaskListings = conf.getBoolean("s3mper.listing.task.check", checkTaskListings);
         failOnTimeout = conf.getBoolean("s3mper.failOnTimeout", failOnTimeout);
+        failOnCircuitOpen = conf.getBoolean("s3mper.metastore.circuit.failOnOpen", failOnCircuitOpen);
         delistDeleteMarkedFiles = conf.getBoolean("s3mper.listing.delist.deleted", delistDeleteMarkedFiles);
         trackDirectories = conf.getBoolean("s3mper.listing.directory.tracking", trackDirectories);
         
@@ -177,6 +219,29 @@ public abstract class ConsistentListingAspect {
         taskRecheckPeriod = conf.getLong("s3mper.listing.task.recheck.period", taskRecheckPeriod);
 
         statOnMissingFile = conf.getBoolean("s3mper.listing.statOnMissingFile", false);
+        listingDeadline = conf.getLong("s3mper.listing.deadline", listingDeadline);
+        overlapListing = conf.getBoolean("s3mper.listing.overlap", overlapListing);
+        writeBehind = conf.getBoolean("s3mper.metastore.writeBehind.enabled", writeBehind);
+        deferRegistration = conf.getBoolean("s3mper.metastore.writeBehind.deferred", deferRegistration);
+        bulkRegistration = conf.getBoolean("s3mper.committer.bulk", bulkRegistration);
+        excludedPaths = ExcludedPaths.fromConfiguration(conf, excludedPaths);
+        trackSession = conf.getBoolean("s3mper.listing.session.enabled", trackSession);
+        singleFlight = conf.getBoolean("s3mper.listing.singleflight", singleFlight);
+        convergenceWindow = conf.getLong("s3mper.listing.convergence.window", convergenceWindow);
+        digestCheck = conf.getBoolean("s3mper.listing.digest", digestCheck);
+        
+        if (digestCheck && rebuilt == null) {
+            rebuilt = CacheBuilder.newBuilder()
+                    .maximumSize(10000)
+                    .expireAfterWrite(conf.getLong("s3mper.listing.digest.rebuild.interval", TimeUnit.MINUTES.toMillis(1)), TimeUnit.MILLISECONDS)
+                    .build();
+        }
+        
+        if (trackSession && writeSession == null) {
+            writeSession = new WriteSession(
+                    conf.getLong("s3mper.listing.session.ttl", TimeUnit.MINUTES.toMillis(1)),
+                    conf.getLong("s3mper.listing.session.size", 1000));
+        }
     }
     
     @Pointcut
@@ -185,6 +250,12 @@ public abstract class ConsistentListingAspect {
     /**
      * Updates the metastore when a FileSystem.create(...) method is called.
      * 
+     * With write-behind the add is queued and the returned stream waits for
+     * it on close(), so the file is registered by the time the writer sees it
+     * as written.  With deferred registration the add is only made when the
+     * stream is closed, so files of aborted writers are never registered.
+     * Queued directories are committed before FileSystem.close() returns.
+     * 
      * @param pjp
      * @return
      * @throws Throwable 
@@ -215,24 +286,194 @@ public abstract class ConsistentListingAspect {
                 }
             }
             
-            metastore.add(path, trackDirectories && pjp.getSignature().getName().contains("mkdir"));
-        } catch (TimeoutException t) {
-            log.error("Timeout occurred adding path to metastore: " + path, t);
+            boolean directory = trackDirectories && pjp.getSignature().getName().contains("mkdir");
             
-            alertDispatcher.timeout("metastoreUpdate", Collections.singletonList(path));
+            written(path);
             
-            if(failOnTimeout) {
-                throw t;
+            if (bulkRegistration && PendingOutputs.isPending(path)) {
+                PendingOutputs.add(path, directory);
+                return result;
+            }
+            
+            if (excludedPaths.matches(path)) {
+                return result;
+            }
+            
+            if (trackSession) {
+                writeSession.written(path, directory);
+            }
+            
+            if ((writeBehind || deferRegistration) && result instanceof FSDataOutputStream) {
+                Future<Void> pending = deferRegistration ? null : asyncMetastore.addAsync(path, directory);
+                
+                return registerOnClose(conf, path, (FSDataOutputStream) result, pending);
+            }
+            
+            if (writeBehind) {
+                journalOnFailure(conf, path, directory, asyncMetastore.addAsync(path, directory));
+            } else {
+                metastore.add(path, directory);
+            }
+            
+            written(path);
+            
+            if (convergenceWindow > 0 && result instanceof FSDataOutputStream) {
+                return stampOnClose(conf, path, (FSDataOutputStream) result);
             }
         } catch (Exception e) {
+            updateFailed(conf, path, trackDirectories && pjp.getSignature().getName().contains("mkdir"), e);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Returns a stream that completes the registration of the path when it is
+     * closed, by waiting for the pending add or, if there is none, adding it.
+     */
+    private FSDataOutputStream registerOnClose(final Configuration conf, final Path path, FSDataOutputStream out, 
+            final Future<Void> pending) throws IOException {
+        return new RegisteringOutputStream(out) {
+            @Override
+            protected void register() throws IOException {
+                try {
+                    await(pending != null ? pending : asyncMetastore.addAsync(path, false));
+                    
+                    //An add queued at create() may have stamped the summary before the file was visible
+                    if (pending != null && convergenceWindow > 0) {
+                        Metastore.stampSummary(metastore, path.getParent());
+                    }
+                    written(path);
+                } catch (Exception e) {
+                    try {
+                        updateFailed(conf, path, false, e);
+                    } catch (IOException io) {
+                        throw io;
+                    } catch (Exception f) {
+                        throw new IOException(f);
+                    }
+                }
+            }
+        };
+    }
+    
+    /**
+     * Returns a stream that stamps the summary of the file's directory again
+     * when it is closed.  The file is only listed once it is closed, so the
+     * stamp of the add at create() can fall outside the convergence window
+     * while the file is still missing from listings.  A failed stamp is
+     * handled like a failed add, whose journaled replay stamps it again.
+     */
+    private FSDataOutputStream stampOnClose(final Configuration conf, final Path path, FSDataOutputStream out) 
+            throws IOException {
+        return new RegisteringOutputStream(out) {
+            @Override
+            protected void register() throws IOException {
+                try {
+                    Metastore.stampSummary(metastore, path.getParent());
+                } catch (Exception e) {
+                    try {
+                        updateFailed(conf, path, false, e);
+                    } catch (IOException io) {
+                        throw io;
+                    } catch (Exception f) {
+                        throw new IOException(f);
+                    }
+                }
+            }
+        };
+    }
+    
+    /**
+     * Journals a queued add if it fails, since nobody waits for it.
+     */
+    private void journalOnFailure(final Configuration conf, final Path path, final boolean directory, 
+            ListenableFuture<Void> pending) {
+        if (journal == null) {
+            return;
+        }
+        
+        Futures.addCallback(pending, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                journal(path, directory, t);
+            }
+        });
+    }
+    
+    /**
+     * Records a failed add in the journal to be replayed later.
+     * 
+     * @return true if the add is journaled
+     */
+    private boolean journal(Path path, boolean directory, Throwable cause) {
+        if (journal == null) {
+            return false;
+        }
+        
+        try {
+            journal.add(Collections.singletonList(new FileInfo(path, false, directory)));
+            log.warn("Journaled failed metastore add for replay: " + path + " (" + cause + ")");
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to journal metastore add: " + path, e);
+            return false;
+        }
+    }
+    
+    private void updateFailed(Configuration conf, Path path, boolean directory, Exception e) throws Exception {
+        boolean journaled = journal(path, directory, e);
+        
+        if (e instanceof TimeoutException) {
+            log.error("Timeout occurred adding path to metastore: " + path, e);
+            
+            alertDispatcher.timeout("metastoreUpdate", Collections.singletonList(path));
+            
+            if(failOnTimeout && !journaled) {
+                throw e;
+            }
+        } else if (e instanceof CircuitOpenException) {
+            if (!journaled) {
+                circuitOpen("metastoreUpdate", Collections.singletonList(path), (CircuitOpenException) e);
+            }
+        } else {
             log.error("Failed to add path to metastore: " + path, e);
             
-            if(shouldFail(conf)) {
+            if(shouldFail(conf) && !journaled) {
                 throw e;
             }
         }
+    }
+    
+    @Pointcut
+    public abstract void close();
+    
+    /**
+     * Waits for queued metastore adds before a FileSystem.close() so nothing
+     * written through the file system is left unregistered.
+     * 
+     * @param jp
+     * @throws Exception 
+     */
+    @Before("close() && !within(ConsistentListingAspect)")
+    public void metastoreFlush(JoinPoint jp) throws Exception {
+        if(disabled || !(metastore instanceof WriteBehindMetastore)) {
+            return;
+        }
         
-        return result;
+        try {
+            ((WriteBehindMetastore) metastore).flush();
+        } catch (Exception e) {
+            log.error("Failed to flush queued metastore adds", e);
+            
+            if(shouldFail(((FileSystem) jp.getTarget()).getConf())) {
+                throw e;
+            }
+        }
     }
     
     @Pointcut
@@ -257,12 +498,6 @@ public abstract class ConsistentListingAspect {
         Configuration conf = ((FileSystem) pjp.getTarget()).getConf();
         updateConfig(conf);
         
-        FileStatus [] s3Listing = (FileStatus[]) pjp.proceed();
-        FileStatus[] originalListing = null;
-        if (darkload) {
-            originalListing = s3Listing.clone();
-        }
-        
         List<Path> pathsToCheck = new ArrayList<Path>();
         
         Object pathArg = pjp.getArgs()[0];
@@ -280,18 +515,194 @@ public abstract class ConsistentListingAspect {
         for(StackTraceElement e : Thread.currentThread().getStackTrace()) {
             if(e.getClassName().contains("emr.metrics")) {
                 log.debug("Ignoring EMR metrics listing for paths: " + pathsToCheck);
-                return s3Listing;
+                return pjp.proceed();
             }
         }
         //END HACK
         
+        if (!singleFlight || pjp.getArgs().length != 1) {
+            return consistentListing(pjp, fs, conf, pathsToCheck);
+        }
+        
+        final FileSystem target = fs;
+        final Configuration targetConf = conf;
+        final List<Path> paths = pathsToCheck;
+        
+        FileStatus [] listing = checks.run(checkKey(fs, conf, pathsToCheck), new Callable<FileStatus[]>() {
+            @Override
+            public FileStatus[] call() throws Exception {
+                try {
+                    return (FileStatus[]) consistentListing(pjp, target, targetConf, paths);
+                } catch (Exception e) {
+                    throw e;
+                } catch (Error e) {
+                    throw e;
+                } catch (Throwable t) {
+                    throw new IOException(t);
+                }
+            }
+        });
+        
+        return listing == null ? null : listing.clone();
+    }
+    
+    /**
+     * Key of a consistency check shared by concurrent callers.  It includes
+     * the write generations of the directories, so a caller never shares a
+     * check that started before its own writes to them.  Task and darkload
+     * checks differ in which listing is returned and when they fail, so they
+     * are only shared with callers in the same mode.
+     */
+    private String checkKey(FileSystem fs, Configuration conf, List<Path> pathsToCheck) {
+        List<String> names = new ArrayList<String>();
+        long generation = 0;
+        
+        for (Path path : pathsToCheck) {
+            String name = normalize(path);
+            names.add(name);
+            generation += writeGenerations.get(stripe(name));
+        }
+        
+        Collections.sort(names);
+        
+        return fs.getUri() + names.toString() + "#" + generation
+                + (isTask(conf) ? "#task" : "") + (darkload ? "#darkload" : "");
+    }
+    
+    private static int stripe(String directory) {
+        return (directory.hashCode() & Integer.MAX_VALUE) % WRITE_GENERATION_STRIPES;
+    }
+    
+    /**
+     * Marks a change to the listing of the path's parent directory.
+     */
+    private void written(Path path) {
+        if (path != null && path.getParent() != null) {
+            writeGenerations.incrementAndGet(stripe(normalize(path.getParent())));
+        }
+    }
+    
+    /**
+     * Checks whether none of the paths had an entry added or deleted within
+     * the convergence window, so the S3 listing already reflects every write.
+     * Paths without a summary, and any failure to read one, require the full
+     * check.
+     */
+    private boolean converged(List<Path> paths) {
+        if (convergenceWindow <= 0) {
+            return false;
+        }
+        
+        if (bulkRegistration && !PendingOutputs.list(paths).isEmpty()) {
+            return false;
+        }
+        
+        long now = System.currentTimeMillis();
+        Long previousDeadline = Deadline.start(listingDeadline);
+        
+        try {
+            for (Path path : paths) {
+                DirectorySummary summary = Metastore.getSummary(metastore, path);
+                
+                if (summary == null || now - summary.getLastWrite() <= convergenceWindow) {
+                    return false;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Failed to read directory summaries, checking listing: " + paths, e);
+            return false;
+        } finally {
+            Deadline.restore(previousDeadline);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Reads the summaries of the paths for comparing digests.
+     * 
+     * @return the summaries by normalized path, missing ones as null, or
+     *         null if digests cannot be used for these paths
+     */
+    private Map<String, DirectorySummary> summaries(List<Path> paths) {
+        if (bulkRegistration && !PendingOutputs.list(paths).isEmpty()) {
+            return null;
+        }
+        
+        Map<String, DirectorySummary> summaries = new HashMap<String, DirectorySummary>();
+        Long previousDeadline = Deadline.start(listingDeadline);
+        
+        try {
+            for (Path path : paths) {
+                summaries.put(normalize(path), Metastore.getSummary(metastore, path));
+            }
+        } catch (Exception e) {
+            log.warn("Failed to read directory summaries, checking listing: " + paths, e);
+            return null;
+        } finally {
+            Deadline.restore(previousDeadline);
+        }
+        
+        return summaries;
+    }
+    
+    private static boolean digested(Map<String, DirectorySummary> summaries) {
+        if (summaries == null) {
+            return false;
+        }
+        
+        for (DirectorySummary summary : summaries.values()) {
+            if (summary == null || !summary.hasDigest()) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Compares the digests of the summaries with the digests of the entries
+     * the S3 listing has in each directory.  Paths that are never recorded in
+     * the metastore are left out of the S3 side.
+     */
+    private boolean digestsMatch(Map<String, DirectorySummary> summaries, FileStatus [] s3Listing) {
+        return DirectoryDigests.of(s3Listing, trackDirectories, excludedPaths).matches(summaries);
+    }
+    
+    /**
+     * Rebuilds the summaries that have no digest or whose digest differs from
+     * that of the metastore entries, at most once per rebuild interval for
+     * each directory.  Failures are only logged.
+     */
+    private void rebuildDigests(List<Path> paths, Map<String, DirectorySummary> summaries, List<FileInfo> metastoreListing) {
+        for (Path dir : DirectoryDigests.of(metastoreListing).stale(paths, summaries)) {
+            String key = normalize(dir);
+            
+            if (rebuilt.asMap().putIfAbsent(key, Boolean.TRUE) != null) {
+                continue;
+            }
+            
+            try {
+                if (log.isDebugEnabled()) {
+                    log.debug("Rebuilding digest of " + dir);
+                }
+                
+                Metastore.rebuildSummary(metastore, dir);
+            } catch (Exception e) {
+                log.warn("Failed to rebuild digest of " + dir, e);
+            }
+        }
+    }
+    
+    private Object consistentListing(ProceedingJoinPoint pjp, FileSystem fs, Configuration conf, 
+            List<Path> pathsToCheck) throws Throwable {
         long recheck = recheckCount;
         long delay = recheckPeriod;
         
         try {
             if (isTask(conf) && !checkTaskListings) {
                 log.info("Skipping consistency check for task listing");
-                return s3Listing;
+                return pjp.proceed();
             }
             
             if(isTask(conf)) {
@@ -302,8 +713,79 @@ public abstract class ConsistentListingAspect {
             log.error("Error checking for task side listing", e);
         }
         
+        if (converged(pathsToCheck)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Skipping consistency check for converged paths: " + pathsToCheck);
+            }
+            return pjp.proceed();
+        }
+        
+        //Directories only this JVM wrote to are checked against what it wrote.
+        //Darkload still queries the metastore to verify the local entries.
+        List<FileInfo> sessionListing = trackSession ? writeSession.list(pathsToCheck) : null;
+        
+        //Read before listing S3 like the entries, so a matching digest means
+        //every entry it covers shows up in the S3 listing
+        Map<String, DirectorySummary> summaries = digestCheck && sessionListing == null ? summaries(pathsToCheck) : null;
+        
+        //Query the metastore while S3 is listed.  The metastore is still read
+        //first, so anything it returns must show up in the S3 listing.
+        ListenableFuture<List<FileInfo>> pendingListing = null;
+        
+        if (overlapListing && asyncMetastore != null && (sessionListing == null || darkload) && !digested(summaries)) {
+            Long previousDeadline = Deadline.start(listingDeadline);
+            try {
+                pendingListing = asyncMetastore.listAsync(pathsToCheck);
+            } finally {
+                Deadline.restore(previousDeadline);
+            }
+        }
+        
+        FileStatus [] s3Listing = (FileStatus[]) pjp.proceed();
+        FileStatus[] originalListing = null;
+        if (darkload) {
+            originalListing = s3Listing.clone();
+        }
+        
+        if (digested(summaries) && digestsMatch(summaries, s3Listing)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Directory digests match listing: " + pathsToCheck);
+            }
+            return darkload ? originalListing : s3Listing;
+        }
+        
         try {
-            List<FileInfo> metastoreListing = metastore.list(pathsToCheck);
+            List<FileInfo> metastoreListing;
+            
+            if (sessionListing != null && !darkload) {
+                metastoreListing = sessionListing;
+            } else if (pendingListing != null) {
+                metastoreListing = await(pendingListing);
+            } else {
+                Long previousDeadline = Deadline.start(listingDeadline);
+                try {
+                    metastoreListing = metastore.list(pathsToCheck);
+                } finally {
+                    Deadline.restore(previousDeadline);
+                }
+            }
+            
+            if (trackSession && metastoreListing != sessionListing) {
+                List<Path> unknown = writeSession.verify(pathsToCheck, metastoreListing);
+                
+                if (sessionListing != null && !unknown.isEmpty()) {
+                    log.warn("Local write session missed paths written elsewhere: " + unknown);
+                }
+            }
+            
+            if (summaries != null) {
+                rebuildDigests(pathsToCheck, summaries, metastoreListing);
+            }
+            
+            if (bulkRegistration) {
+                metastoreListing = new ArrayList<FileInfo>(metastoreListing);
+                metastoreListing.addAll(PendingOutputs.list(pathsToCheck));
+            }
             
             List<Path> missingPaths = ImmutableList.of();
             if (statOnMissingFile) {
@@ -379,6 +861,8 @@ public abstract class ConsistentListingAspect {
             if(failOnTimeout) {
                 throw t;
             }
+        } catch (CircuitOpenException c) {
+            circuitOpen("metastoreCheck", pathsToCheck, c);
         } catch (Exception e) {
             log.error("Failed to list metastore for paths: " + pathsToCheck, e);
             
@@ -390,6 +874,22 @@ public abstract class ConsistentListingAspect {
         return darkload ? originalListing : s3Listing;
     }
     
+    /**
+     * Waits for an async metastore call and rethrows its failure as if the
+     * call had been made directly.
+     */
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            
+            throw e;
+        }
+    }
+    
     /**
      * Check the the metastore listing against the s3 listing and return any paths 
      * missing from s3.
@@ -463,6 +963,13 @@ public abstract class ConsistentListingAspect {
             srcExists = fs.exists(srcPath);
             dstExists = fs.exists(dstPath);
         }
+
+        /**
+         * @return the path the source ends up at
+         */
+        Path target() {
+            return dstExists ? new Path(dstPath, srcPath.getName()) : dstPath;
+        }
     }
 
     @Pointcut
@@ -492,6 +999,52 @@ public abstract class ConsistentListingAspect {
         Preconditions.checkNotNull(dstPath);
 
         RenameInfo renameInfo = new RenameInfo(fs, srcPath, dstPath);
+        
+        if (trackSession) {
+            writeSession.forget(srcPath.getParent());
+            writeSession.forget(renameInfo.target().getParent());
+        }
+        
+        try {
+            return rename(pjp, conf, fs, renameInfo);
+        } finally {
+            written(srcPath);
+            written(renameInfo.target());
+        }
+    }
+    
+    private Object rename(ProceedingJoinPoint pjp, Configuration conf, FileSystem fs, RenameInfo renameInfo) 
+            throws Throwable {
+        Path srcPath = renameInfo.srcPath;
+        
+        //Pending outputs are only moved in memory, they were never registered
+        if (bulkRegistration && PendingOutputs.isPending(srcPath)) {
+            Object obj = pjp.proceed();
+            if ((Boolean) obj) {
+                PendingOutputs.rename(srcPath, renameInfo.target());
+            }
+            return obj;
+        }
+        
+        boolean srcExcluded = excludedPaths.matches(srcPath);
+        boolean targetExcluded = excludedPaths.matches(renameInfo.target());
+        
+        //Excluded sources are not in the metastore and excluded targets are not
+        //added to it, so only what leaves an excluded path is registered
+        if (srcExcluded || targetExcluded) {
+            List<String> moved = srcExcluded && !targetExcluded ? movedFiles(fs, renameInfo) : null;
+            
+            Object obj = pjp.proceed();
+            if ((Boolean) obj) {
+                if (!srcExcluded) {
+                    metadataCleanup(conf, fs, renameInfo);
+                } else if (moved != null) {
+                    registerMoved(conf, renameInfo, moved);
+                }
+            }
+            return obj;
+        }
+        
         metadataRename(conf, fs, renameInfo);
 
         Object obj = pjp.proceed();
@@ -547,6 +1100,8 @@ public abstract class ConsistentListingAspect {
             if(failOnTimeout) {
                 throw t;
             }
+        } catch (CircuitOpenException c) {
+            circuitOpen("metastoreRename", Collections.singletonList(info.srcPath), c);
         } catch (Exception e) {
             log.error("Error rename paths from metastore: " + info.srcPath, e);
 
@@ -556,6 +1111,82 @@ public abstract class ConsistentListingAspect {
         }
     }
 
+    /**
+     * Lists the files a rename moves, relative to the source.
+     */
+    private List<String> movedFiles(FileSystem fs, RenameInfo info) {
+        List<String> result = new ArrayList<String>();
+        
+        if (!info.srcExists) {
+            return result;
+        }
+        
+        if (info.srcIsFile) {
+            result.add("");
+            return result;
+        }
+        
+        String prefix = info.srcPath.toUri().getPath().replaceAll("/$", "") + "/";
+        
+        try {
+            for (RemoteIterator<LocatedFileStatus> i = fs.listFiles(info.srcPath, true); i.hasNext();) {
+                String path = i.next().getPath().toUri().getPath();
+
+                if (path.startsWith(prefix)) {
+                    result.add(path.substring(prefix.length()));
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to list files renamed from excluded path: " + info.srcPath, e);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Registers the files moved out of an excluded path in one batch.
+     */
+    private void registerMoved(Configuration conf, RenameInfo info, List<String> moved) throws Exception {
+        Path target = info.target();
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        
+        if (trackDirectories && !info.srcIsFile) {
+            files.add(new FileInfo(target, false, true));
+        }
+        
+        for (String file : moved) {
+            Path path = file.isEmpty() ? target : new Path(target, file);
+            
+            if (!excludedPaths.matches(path)) {
+                files.add(new FileInfo(path, false, false));
+            }
+        }
+        
+        if (files.isEmpty()) {
+            return;
+        }
+        
+        try {
+            metastore.add(files);
+        } catch (TimeoutException t) {
+            log.error("Timeout occurred registering renamed paths: " + target, t);
+
+            alertDispatcher.timeout("metastoreRename", Collections.singletonList(target));
+
+            if(failOnTimeout) {
+                throw t;
+            }
+        } catch (CircuitOpenException c) {
+            circuitOpen("metastoreRename", Collections.singletonList(target), c);
+        } catch (Exception e) {
+            log.error("Error registering renamed paths: " + target, e);
+
+            if(shouldFail(conf)) {
+                throw e;
+            }
+        }
+    }
+
     private void renameFile(Path src, Path dst) throws Exception {
         metastore.add(dst, false);
     }
@@ -584,6 +1215,8 @@ public abstract class ConsistentListingAspect {
             if(failOnTimeout) {
                 throw t;
             }
+        } catch (CircuitOpenException c) {
+            circuitOpen("metastoreRenameCleanup", Collections.singletonList(info.srcPath), c);
         } catch (Exception e) {
             log.error("Error executing rename cleanup for paths from metastore: " + info.srcPath, e);
 
@@ -633,11 +1266,15 @@ public abstract class ConsistentListingAspect {
             recursive = (Boolean) pjp.getArgs()[1];
         }
             
+        if (bulkRegistration) {
+            PendingOutputs.remove(deletePath);
+        }
+        
+        Set<Path> filesToDelete = new HashSet<Path>();
+        filesToDelete.add(deletePath);
+            
         try {
             FileSystem s3fs = (FileSystem) pjp.getTarget();
-
-            Set<Path> filesToDelete = new HashSet<Path>();
-            filesToDelete.add(deletePath);
             
             List<FileInfo> metastoreFiles = metastore.list(Collections.singletonList(deletePath));
             
@@ -654,6 +1291,9 @@ public abstract class ConsistentListingAspect {
             }
             
             for(Path path : filesToDelete) {
+                if (trackSession) {
+                    writeSession.deleted(path);
+                }
                 metastore.delete(path);
             }
         } catch (TimeoutException t) {
@@ -661,18 +1301,51 @@ public abstract class ConsistentListingAspect {
             
             alertDispatcher.timeout("metastoreDelete", Collections.singletonList(deletePath));
             
-            if(failOnTimeout) {
+            boolean journaled = journalDeletes(filesToDelete);
+            
+            if(failOnTimeout && !journaled) {
                 throw t;
             }
+        } catch (CircuitOpenException c) {
+            if (!journalDeletes(filesToDelete)) {
+                circuitOpen("metastoreDelete", Collections.singletonList(deletePath), c);
+            }
         } catch (Exception e) {
             log.error("Error deleting paths from metastore: " + deletePath, e);
             
-            if(shouldFail(conf)) {
+            if(!journalDeletes(filesToDelete) && shouldFail(conf)) {
                 throw e;
             }
         }
         
-        return pjp.proceed();
+        try {
+            return pjp.proceed();
+        } finally {
+            for(Path path : filesToDelete) {
+                written(path);
+            }
+        }
+    }
+    
+    /**
+     * Records failed deletes in the journal to be replayed later.  Paths that
+     * were already deleted are included, which is harmless.
+     * 
+     * @return true if the deletes are journaled
+     */
+    private boolean journalDeletes(Set<Path> paths) {
+        if (journal == null) {
+            return false;
+        }
+        
+        try {
+            journal.delete(new ArrayList<Path>(paths));
+            log.warn("Journaled " + paths.size() + " failed metastore deletes for replay");
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to journal metastore deletes", e);
+            return false;
+        }
     }
     
     private List<Path> recursiveList(FileSystem fs, Path path) throws IOException {
@@ -725,6 +1398,29 @@ public abstract class ConsistentListingAspect {
         return (!isTask && failOnError) || (isTask && taskFailOnError);
     }
     
+    /**
+     * Handles a metastore call rejected by the open circuit breaker.  The
+     * operation proceeds without the metastore unless configured to fail.
+     * Only the first rejection after the circuit opens raises an alert.
+     * 
+     * @param operation
+     * @param paths
+     * @param c
+     */
+    private void circuitOpen(String operation, List<Path> paths, CircuitOpenException c) {
+        if(c.isNewlyOpened()) {
+            log.error("Metastore circuit opened, proceeding without the metastore during " + operation);
+            
+            alertDispatcher.timeout("metastoreCircuitOpen", paths);
+        } else {
+            log.debug("Metastore circuit open, skipping " + operation + " for paths: " + paths);
+        }
+        
+        if(failOnCircuitOpen) {
+            throw c;
+        }
+    }
+    
     /**
      * Disables listing.  Once this is set, it cannot be re-enabled through
      * the configuration object.
@@ -0,0 +1,146 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.listing;
+
+import com.netflix.bdp.s3mper.common.ExcludedPaths;
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.*;
+
+/**
+ * Entry count and name digest of each directory of a listing, computed the
+ * same way as the digests kept in directory summaries so the two can be
+ * compared.
+ */
+class DirectoryDigests {
+    private final Map<String, long[]> digests = new HashMap<String, long[]>();
+
+    /**
+     * Digests a FileSystem listing, leaving out the paths that are never
+     * recorded in the metastore.
+     */
+    static DirectoryDigests of(FileStatus [] listing, boolean trackDirectories, ExcludedPaths excludedPaths) {
+        DirectoryDigests digests = new DirectoryDigests();
+
+        if (listing != null) {
+            for (FileStatus status : listing) {
+                if ((status.isDir() && !trackDirectories) || excludedPaths.matches(status.getPath())) {
+                    continue;
+                }
+
+                digests.add(status.getPath());
+            }
+        }
+
+        return digests;
+    }
+
+    /**
+     * Digests the live entries of a metastore listing.
+     */
+    static DirectoryDigests of(List<FileInfo> entries) {
+        DirectoryDigests digests = new DirectoryDigests();
+
+        for (FileInfo file : entries) {
+            if (!file.isDeleted()) {
+                digests.add(file.getPath());
+            }
+        }
+
+        return digests;
+    }
+
+    private void add(Path path) {
+        String dir = normalize(path.getParent());
+        long[] digest = digests.get(dir);
+
+        if (digest == null) {
+            digest = new long[2];
+            digests.put(dir, digest);
+        }
+
+        digest[0]++;
+        digest[1] += DirectorySummary.hash(path.getName());
+    }
+
+    private long[] get(String dir) {
+        long[] digest = digests.get(dir);
+
+        return digest == null ? new long[2] : digest;
+    }
+
+    /**
+     * @param summaries digested summaries by normalized path
+     * @return true if every summary has the digest of its directory and no
+     *         other directory has entries
+     */
+    boolean matches(Map<String, DirectorySummary> summaries) {
+        for (Map.Entry<String, DirectorySummary> entry : summaries.entrySet()) {
+            long[] digest = get(entry.getKey());
+
+            if (digest[0] != entry.getValue().getEntries() || digest[1] != entry.getValue().getDigest()) {
+                return false;
+            }
+        }
+
+        for (String dir : digests.keySet()) {
+            if (!summaries.containsKey(dir)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param summaries summaries by normalized path, missing ones as null
+     * @return the paths whose summary has no digest or one that differs from
+     *         this, except those never written through s3mper
+     */
+    List<Path> stale(List<Path> paths, Map<String, DirectorySummary> summaries) {
+        List<Path> stale = new ArrayList<Path>();
+
+        for (Path dir : paths) {
+            String key = normalize(dir);
+            DirectorySummary summary = summaries.get(key);
+            long[] digest = get(key);
+
+            if (summary != null && summary.hasDigest() && digest[0] == summary.getEntries() && digest[1] == summary.getDigest()) {
+                continue;
+            }
+
+            //Never written through s3mper, nothing to summarize
+            if (summary == null && digest[0] == 0) {
+                continue;
+            }
+
+            stale.add(dir);
+        }
+
+        return stale;
+    }
+}
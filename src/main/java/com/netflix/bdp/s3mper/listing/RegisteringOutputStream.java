@@ -0,0 +1,57 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.listing;
+
+import java.io.IOException;
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+/**
+ * Wraps the stream returned by create() so that closing it also completes
+ * the metastore registration of the file: close() returns only once the
+ * entry is in the metastore and, with a convergence window, the summary of
+ * its directory is stamped with the close.  The registration is completed
+ * once, and only if the file itself was closed successfully.
+ */
+abstract class RegisteringOutputStream extends FSDataOutputStream {
+    private boolean closed = false;
+    
+    RegisteringOutputStream(FSDataOutputStream out) throws IOException {
+        super(out, null, out.getPos());
+    }
+    
+    /**
+     * Completes the registration after the file was closed.
+     */
+    protected abstract void register() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        
+        register();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.listing;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.fs.Path;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.*;
+
+/**
+ * Entries written through this JVM, per directory, used to check listings of
+ * directories nobody else writes to without querying the metastore.
+ * 
+ * A directory only counts as local once a metastore listing of it showed
+ * nothing beyond what this JVM wrote.  That verification lasts for the
+ * configured time, after which the metastore is consulted again, so a writer
+ * elsewhere goes unnoticed for at most that long.  A directory where another
+ * writer was seen is never local again while it is tracked.
+ */
+class WriteSession {
+    private final Cache<String, Directory> directories;
+    private final long ttl;
+    
+    WriteSession(long ttl, long size) {
+        this.ttl = ttl;
+        this.directories = CacheBuilder.newBuilder().maximumSize(size).build();
+    }
+    
+    synchronized void written(Path path, boolean directory) {
+        Directory parent = directory(path.getParent(), true);
+        parent.entries.put(normalize(path), new FileInfo(path, false, directory));
+    }
+    
+    synchronized void deleted(Path path) {
+        Directory parent = directory(path.getParent(), false);
+        
+        if (parent != null) {
+            parent.entries.remove(normalize(path));
+        }
+        forget(path);
+    }
+    
+    /**
+     * Stops tracking a directory and those below it, for changes the session
+     * does not follow.
+     */
+    synchronized void forget(Path dir) {
+        String key = normalize(dir);
+        
+        for (Iterator<String> i = directories.asMap().keySet().iterator(); i.hasNext();) {
+            String name = i.next();
+            
+            if (name.equals(key) || name.startsWith(key + "/")) {
+                i.remove();
+            }
+        }
+    }
+    
+    /**
+     * @return the entries of the directories, or null unless they are all local
+     */
+    synchronized List<FileInfo> list(List<Path> dirs) {
+        List<FileInfo> result = new ArrayList<FileInfo>();
+        long now = System.currentTimeMillis();
+        
+        for (Path dir : dirs) {
+            Directory d = directory(dir, false);
+            
+            if (d == null || d.foreign || d.verified < 0 || now - d.verified > ttl) {
+                return null;
+            }
+            result.addAll(d.entries.values());
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Compares the metastore listing of the directories with the local entries.
+     * 
+     * @return the paths listed by the metastore that were not written locally
+     */
+    synchronized List<Path> verify(List<Path> dirs, List<FileInfo> metastoreListing) {
+        List<Path> unknown = new ArrayList<Path>();
+        
+        for (Path dir : dirs) {
+            Directory d = directory(dir, false);
+            
+            if (d == null) {
+                continue;
+            }
+            
+            String prefix = normalize(dir) + "/";
+            boolean foreign = false;
+            
+            for (FileInfo info : metastoreListing) {
+                String name = normalize(info.getPath());
+                
+                if (!info.isDeleted() && name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0
+                        && !d.entries.containsKey(name)) {
+                    unknown.add(info.getPath());
+                    foreign = true;
+                }
+            }
+            
+            if (foreign) {
+                d.foreign = true;
+            } else if (!d.foreign) {
+                d.verified = System.currentTimeMillis();
+            }
+        }
+        
+        return unknown;
+    }
+    
+    private Directory directory(Path dir, boolean create) {
+        String key = normalize(dir);
+        Directory d = directories.getIfPresent(key);
+        
+        if (d == null && create) {
+            d = new Directory();
+            directories.put(key, d);
+        }
+        
+        return d;
+    }
+    
+    private static class Directory {
+        final Map<String, FileInfo> entries = new LinkedHashMap<String, FileInfo>();
+        boolean foreign = false;
+        long verified = -1;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.metastore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A metastore whose operations can also be started without blocking.  Each
+ * async method returns a future that completes (or fails) with the result of
+ * the corresponding blocking operation, so calls can be overlapped with other
+ * work or issued concurrently.
+ */
+public interface AsyncFileSystemMetastore extends FileSystemMetastore {
+    
+    ListenableFuture<List<FileInfo>> listAsync(List<Path> paths);
+
+    ListenableFuture<Void> addAsync(List<FileInfo> paths);
+    ListenableFuture<Void> addAsync(Path path, boolean directory);
+    
+    ListenableFuture<Void> deleteAsync(Path path);
+    ListenableFuture<Void> deleteAsync(List<Path> paths);
+    
+}
@@ -0,0 +1,41 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.metastore;
+
+/**
+ * Thrown instead of calling the metastore while its circuit breaker is open.
+ */
+public class CircuitOpenException extends MetastoreException {
+
+    private final boolean newlyOpened;
+
+    public CircuitOpenException(String string, boolean newlyOpened) {
+        super(string);
+        this.newlyOpened = newlyOpened;
+    }
+
+    /**
+     * @return true for the first rejection after the circuit opened
+     */
+    public boolean isNewlyOpened() {
+        return newlyOpened;
+    }
+    
+}
@@ -0,0 +1,109 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.metastore;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Summary record a metastore keeps per directory, so a listing check can
+ * tell whether it needs the entries at all.
+ * 
+ * A summary may carry a digest of the live entries of the directory: their
+ * number and the sum of the hashes of their names.  The sum does not depend
+ * on the order of the entries, so it can be updated by each add and delete
+ * and compared with the same digest computed over a FileSystem listing.
+ */
+public class DirectorySummary {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final Path path;
+    private final long lastWrite;
+    private final boolean digested;
+    private final long entries;
+    private final long digest;
+
+    public DirectorySummary(Path path, long lastWrite) {
+        this.path = path;
+        this.lastWrite = lastWrite;
+        this.digested = false;
+        this.entries = 0;
+        this.digest = 0;
+    }
+
+    public DirectorySummary(Path path, long lastWrite, long entries, long digest) {
+        this.path = path;
+        this.lastWrite = lastWrite;
+        this.digested = true;
+        this.entries = entries;
+        this.digest = digest;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return when (in Milliseconds since the epoch) an entry of the
+     *         directory was last added or deleted
+     */
+    public long getLastWrite() {
+        return lastWrite;
+    }
+
+    /**
+     * @return true if the summary carries a digest that reflects every add
+     *         and delete of an entry of the directory
+     */
+    public boolean hasDigest() {
+        return digested;
+    }
+
+    /**
+     * @return the number of live entries of the directory
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the sum of the hashes of the names of the live entries
+     */
+    public long getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return the hash of an entry name that the digest sums up
+     */
+    public static long hash(String name) {
+        return HASH.hashString(name, Charsets.UTF_8).asLong();
+    }
+
+    public String toString() {
+        if (digested) {
+            return "DirectorySummary(" + path + "," + lastWrite + "," + entries + "," + digest + ")";
+        }
+        return "DirectorySummary(" + path + "," + lastWrite + ")";
+    }
+}
@@ -18,12 +18,21 @@
 
 package com.netflix.bdp.s3mper.metastore;
 
+import com.netflix.bdp.s3mper.metastore.impl.AsyncMetastoreAdapter;
 import com.netflix.bdp.s3mper.metastore.impl.BigTableMetastore;
+import com.netflix.bdp.s3mper.metastore.impl.CachingMetastore;
+import com.netflix.bdp.s3mper.metastore.impl.CircuitBreakerMetastore;
+import com.netflix.bdp.s3mper.metastore.impl.DedupingMetastore;
 import com.netflix.bdp.s3mper.metastore.impl.DynamoDBMetastore;
 import com.netflix.bdp.s3mper.metastore.impl.InMemoryMetastore;
 import com.netflix.bdp.s3mper.metastore.impl.LoggingMetastore;
+import com.netflix.bdp.s3mper.metastore.impl.SharedCachingMetastore;
+import com.netflix.bdp.s3mper.metastore.impl.TrackingMetastore;
+import com.netflix.bdp.s3mper.metastore.impl.WriteBehindMetastore;
 
+import java.net.URI;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.log4j.Logger;
 
@@ -38,6 +47,10 @@ public class Metastore {
 
     private static FileSystemMetastore metastore;
 
+    private static AsyncFileSystemMetastore asyncMetastore;
+
+    private static boolean initialized = false;
+
     public static FileSystemMetastore getFilesystemMetastore(Configuration conf)
             throws Exception {
         if (metastore == null) {
@@ -48,10 +61,34 @@ public class Metastore {
 //                            com.netflix.bdp.s3mper.metastore.impl.DynamoDBMetastore.class);
 
                     try {
-                        metastore = (FileSystemMetastore) ReflectionUtils.newInstance(metaImpl, conf);
+                        FileSystemMetastore impl = (FileSystemMetastore) ReflectionUtils.newInstance(metaImpl, conf);
+                        if (conf.getBoolean("s3mper.metastore.circuit.enabled", false)) {
+                            impl = new CircuitBreakerMetastore(impl);
+                        }
+                        if (conf.getBoolean("s3mper.metastore.cache.shared.enabled", false)) {
+                            impl = new SharedCachingMetastore(impl);
+                        }
+                        if (conf.getBoolean("s3mper.metastore.cache.enabled", false)) {
+                            impl = new CachingMetastore(impl);
+                        }
+                        if (conf.getBoolean("s3mper.metastore.dedup.enabled", false)) {
+                            if (conf.getBoolean("s3mper.metastore.deleteMarker.enabled", false)) {
+                                // A skipped add would leave another JVM's delete marker in place
+                                log.warn("Metastore dedup is not supported with delete markers, disabling it");
+                            } else {
+                                impl = new DedupingMetastore(impl);
+                            }
+                        }
+                        if (conf.getBoolean("s3mper.metastore.tracking.enabled", false)) {
+                            impl = new TrackingMetastore(impl);
+                        }
                         if (log.isDebugEnabled()) {
-                            metastore = new LoggingMetastore(metastore);
+                            impl = new LoggingMetastore(impl);
                         }
+                        if (conf.getBoolean("s3mper.metastore.writeBehind.enabled", false)) {
+                            impl = new WriteBehindMetastore(impl, conf.getInt("s3mper.metastore.async.threads", 16));
+                        }
+                        metastore = impl;
                     } catch (Exception e) {
                         log.error("Error initializing s3mper metastore", e);
                         throw e;
@@ -63,4 +100,85 @@ public class Metastore {
         return metastore;
     }
 
+    /**
+     * Returns the metastore returned by getFilesystemMetastore(), initialized
+     * for the given file system on first use.
+     */
+    public static FileSystemMetastore getInitializedMetastore(URI uri, Configuration conf)
+            throws Exception {
+        FileSystemMetastore sync = getFilesystemMetastore(conf);
+
+        synchronized (Metastore.class) {
+            if (!initialized) {
+                sync.initalize(uri, conf);
+                initialized = true;
+            }
+        }
+        return sync;
+    }
+
+    /**
+     * Returns the async view of the metastore returned by
+     * getFilesystemMetastore().  Backends without native async support are
+     * adapted by running their blocking calls on a thread pool.  Both views
+     * share the same instance, so it only needs to be initialized once.
+     */
+    public static AsyncFileSystemMetastore getAsyncMetastore(Configuration conf)
+            throws Exception {
+        FileSystemMetastore sync = getFilesystemMetastore(conf);
+
+        synchronized (Metastore.class) {
+            if (asyncMetastore == null) {
+                if (sync instanceof AsyncFileSystemMetastore) {
+                    asyncMetastore = (AsyncFileSystemMetastore) sync;
+                } else {
+                    asyncMetastore = new AsyncMetastoreAdapter(sync, conf.getInt("s3mper.metastore.async.threads", 16));
+                }
+            }
+        }
+        return asyncMetastore;
+    }
+
+    /**
+     * @return the summary of the directory kept by the metastore, or null if
+     *         the metastore keeps none for it
+     */
+    public static DirectorySummary getSummary(FileSystemMetastore metastore, Path dir) throws Exception {
+        if (metastore instanceof SummarizingMetastore) {
+            return ((SummarizingMetastore) metastore).getSummary(dir);
+        }
+        return null;
+    }
+
+    /**
+     * Records a directory summary in the metastore.
+     *
+     * @throws MetastoreException if the metastore keeps no summaries
+     */
+    public static void putSummary(FileSystemMetastore metastore, DirectorySummary summary) throws Exception {
+        if (!(metastore instanceof SummarizingMetastore)) {
+            throw new MetastoreException("Metastore does not keep directory summaries: " + metastore.getClass().getName());
+        }
+        ((SummarizingMetastore) metastore).putSummary(summary);
+    }
+
+    /**
+     * Stamps the summary of a directory with a write if the metastore keeps
+     * summaries.
+     */
+    public static void stampSummary(FileSystemMetastore metastore, Path dir) throws Exception {
+        if (metastore instanceof SummarizingMetastore) {
+            ((SummarizingMetastore) metastore).stampSummary(dir);
+        }
+    }
+
+    /**
+     * Rebuilds the digest of a directory if the metastore keeps summaries.
+     */
+    public static void rebuildSummary(FileSystemMetastore metastore, Path dir) throws Exception {
+        if (metastore instanceof SummarizingMetastore) {
+            ((SummarizingMetastore) metastore).rebuildSummary(dir);
+        }
+    }
+
 }
@@ -0,0 +1,46 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.metastore;
+
+import java.util.Collections;
+import java.util.Map;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Thrown when some items of a batch operation failed.  The remaining items
+ * were still applied; the failures are reported per path.
+ */
+public class MetastoreBatchException extends MetastoreException {
+
+    private final Map<Path, Exception> failures;
+
+    public MetastoreBatchException(String string, Map<Path, Exception> failures) {
+        super(string, failures.values().iterator().next());
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return the failed paths and the exception each of them failed with
+     */
+    public Map<Path, Exception> getFailures() {
+        return failures;
+    }
+    
+}
@@ -0,0 +1,411 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.metastore;
+
+import com.netflix.bdp.s3mper.common.BackoffAlgorithm;
+import com.netflix.bdp.s3mper.common.DecorrelatedJitterBackoffAlgorithm;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal on local disk for metastore writes that could not be
+ * made, so they are completed later instead of being lost.
+ * 
+ * Every process appends to its own segment file and holds a lock on it while
+ * it is open.  Appends are made durable by a shared fsync: an append waits
+ * until a sync covers its record, and one sync covers every record appended
+ * while the previous one was running.  Each record carries a checksum so a
+ * torn write at the end of a segment is ignored.
+ * 
+ * A background replayer periodically closes the current segment and replays
+ * every segment of the journal directory it can lock, i.e. those of this
+ * process and of processes that are gone, oldest first, in batches and with
+ * backoff while the metastore keeps failing.  Segments are named by creation
+ * time and sequence so they sort in the order they were written.  Each batch
+ * is collapsed to the last operation per path, so a path deleted after its
+ * add was journaled ends up deleted.  Adds are not checked against the file
+ * system, whose lookups are not consistent, since dropping one would lose the
+ * registration for good.  Replayed segments are deleted.  Replaying a
+ * segment twice is harmless since adds and deletes are idempotent.
+ */
+public class MetastoreJournal {
+    private static final Logger log = Logger.getLogger(MetastoreJournal.class.getName());
+    
+    static final byte ADD = 1;
+    static final byte DELETE = 2;
+    
+    private static final String SUFFIX = ".journal";
+    
+    private final File dir;
+    private final FileSystemMetastore metastore;
+    private final long interval;
+    private final int batchSize;
+    private final BackoffAlgorithm backoff;
+    
+    private final Object syncLock = new Object();
+    
+    private static final AtomicLong sequence = new AtomicLong();
+    
+    private Segment segment;
+    private long written = 0;
+    private long synced = 0;
+    
+    private volatile boolean running = true;
+    private final Thread replayer;
+    
+    public MetastoreJournal(File dir, FileSystemMetastore metastore, long interval, int batchSize) throws IOException {
+        this.dir = dir;
+        this.metastore = metastore;
+        this.interval = interval;
+        this.batchSize = batchSize;
+        this.backoff = new DecorrelatedJitterBackoffAlgorithm(interval, interval * 60);
+        
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory: " + dir);
+        }
+        
+        replayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replayLoop();
+            }
+        }, "s3mper-journal-replay");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+    
+    /**
+     * Opens the journal configured for the metastore.
+     * 
+     * @return the journal or null if journaling is disabled
+     */
+    public static MetastoreJournal open(Configuration conf, FileSystemMetastore metastore) throws IOException {
+        if (!conf.getBoolean("s3mper.journal.enabled", false)) {
+            return null;
+        }
+        
+        File dir = new File(conf.get("s3mper.journal.dir",
+                System.getProperty("java.io.tmpdir") + File.separator + "s3mper" + File.separator + "journal"));
+        
+        return new MetastoreJournal(dir, metastore,
+                conf.getLong("s3mper.journal.replay.interval", 5000),
+                conf.getInt("s3mper.journal.replay.batch", 500));
+    }
+    
+    /**
+     * Durably records adds that still have to be made.
+     */
+    public void add(List<FileInfo> files) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        
+        for (FileInfo file : files) {
+            records.add(record(ADD, file.getPath(), file.isDirectory()));
+        }
+        
+        append(records);
+    }
+    
+    /**
+     * Durably records deletes that still have to be made.
+     */
+    public void delete(List<Path> paths) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        
+        for (Path path : paths) {
+            records.add(record(DELETE, path, false));
+        }
+        
+        append(records);
+    }
+    
+    private static byte[] record(byte op, Path path, boolean directory) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        
+        out.writeByte(op);
+        out.writeUTF(path.toString());
+        out.writeBoolean(directory);
+        out.close();
+        
+        return bytes.toByteArray();
+    }
+    
+    private void append(List<byte[]> records) throws IOException {
+        long position;
+        
+        synchronized (this) {
+            if (segment == null) {
+                segment = new Segment(new File(dir, segmentName()));
+            }
+            
+            for (byte[] record : records) {
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                
+                segment.out.writeInt(record.length);
+                segment.out.write(record);
+                segment.out.writeLong(crc.getValue());
+            }
+            
+            position = ++written;
+        }
+        
+        sync(position);
+    }
+    
+    /**
+     * Names a new segment so that segments sort by creation time and, within
+     * the same millisecond of this process, by sequence.  The random part keeps names of processes
+     * sharing the directory distinct.
+     */
+    private String segmentName() {
+        return String.format("%020d-%010d-%s%s", System.currentTimeMillis(), sequence.getAndIncrement(), UUID.randomUUID(), SUFFIX);
+    }
+    
+    /**
+     * Syncs the current segment unless a sync since the given append already did.
+     */
+    private void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            
+            Segment current;
+            long upTo;
+            
+            synchronized (this) {
+                current = segment;
+                upTo = written;
+                current.out.flush();
+            }
+            
+            current.file.getChannel().force(false);
+            synced = upTo;
+        }
+    }
+    
+    /**
+     * Closes the current segment so it can be replayed; later appends go to
+     * a new one.
+     */
+    private void roll() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (segment != null) {
+                    segment.out.flush();
+                    segment.file.getChannel().force(false);
+                    synced = written;
+                    segment.close();
+                    segment = null;
+                }
+            }
+        }
+    }
+    
+    private void replayLoop() {
+        long delay = interval;
+        
+        while (running) {
+            try {
+                Thread.sleep(delay);
+                roll();
+                replay();
+                delay = interval;
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                delay = backoff.next();
+                log.warn("Failed to replay metastore journal, retrying in " + delay + "ms: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Replays every segment that is not in use by a live process.
+     */
+    void replay() throws Exception {
+        File [] segments = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        
+        if (segments == null) {
+            return;
+        }
+        
+        Arrays.sort(segments);
+        
+        for (File file : segments) {
+            RandomAccessFile raf;
+            
+            try {
+                raf = new RandomAccessFile(file, "rw");
+            } catch (IOException e) {
+                //Deleted by another replayer
+                continue;
+            }
+            
+            try {
+                FileLock lock;
+                
+                try {
+                    lock = raf.getChannel().tryLock();
+                } catch (OverlappingFileLockException e) {
+                    lock = null;
+                }
+                
+                if (lock == null || !file.exists()) {
+                    continue;
+                }
+                
+                replay(file);
+                
+                if (!file.delete()) {
+                    log.warn("Failed to delete replayed journal segment: " + file);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+    
+    private void replay(File file) throws Exception {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        
+        Map<Path, FileInfo> batch = new LinkedHashMap<Path, FileInfo>();
+        int count = 0;
+        
+        try {
+            while (true) {
+                byte[] record;
+                
+                try {
+                    int length = in.readInt();
+                    record = new byte[length];
+                    in.readFully(record);
+                    
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    
+                    if (crc.getValue() != in.readLong()) {
+                        log.warn("Ignoring corrupt tail of journal segment: " + file);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+                byte op = fields.readByte();
+                Path path = new Path(fields.readUTF());
+                boolean directory = fields.readBoolean();
+                count++;
+                
+                //Only the last operation on a path matters, so a batch holds one per path
+                if (batch.remove(path) == null && batch.size() >= batchSize) {
+                    apply(batch);
+                }
+                batch.put(path, new FileInfo(path, op == DELETE, directory));
+            }
+            
+            apply(batch);
+        } finally {
+            in.close();
+        }
+        
+        log.info("Replayed " + count + " journaled metastore writes from " + file.getName());
+    }
+    
+    private void apply(Map<Path, FileInfo> batch) throws Exception {
+        List<FileInfo> adds = new ArrayList<FileInfo>();
+        List<Path> deletes = new ArrayList<Path>();
+        
+        for (FileInfo info : batch.values()) {
+            if (info.isDeleted()) {
+                deletes.add(info.getPath());
+            } else {
+                adds.add(info);
+            }
+        }
+        
+        if (!adds.isEmpty()) {
+            metastore.add(adds);
+        }
+        
+        if (!deletes.isEmpty()) {
+            metastore.delete(deletes);
+        }
+        
+        batch.clear();
+    }
+    
+    public void close() throws IOException {
+        running = false;
+        replayer.interrupt();
+        roll();
+    }
+    
+    /**
+     * A segment open for appending, locked for as long as this process uses it.
+     */
+    private static class Segment {
+        final RandomAccessFile file;
+        final FileLock lock;
+        final DataOutputStream out;
+        
+        Segment(File path) throws IOException {
+            file = new RandomAccessFile(path, "rw");
+            lock = file.getChannel().lock();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.getFD())));
+        }
+        
+        void close() throws IOException {
+            out.flush();
+            lock.release();
+            file.close();
+        }
+    }
+}
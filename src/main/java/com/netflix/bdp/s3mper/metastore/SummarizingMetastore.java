@@ -0,0 +1,56 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.metastore;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A metastore that keeps a summary record per directory, updated by every
+ * add and delete of an entry of the directory.  Decorators implement it by
+ * delegating and return no summary if the metastore they wrap keeps none.
+ */
+public interface SummarizingMetastore extends FileSystemMetastore {
+    
+    /**
+     * @return the summary of the directory or null if none is recorded
+     */
+    DirectorySummary getSummary(Path dir) throws Exception;
+    
+    /**
+     * Records the summary of a directory, replacing the current one.  Used to
+     * seal directories whose entries are removed.
+     */
+    void putSummary(DirectorySummary summary) throws Exception;
+    
+    /**
+     * Records a write to the directory without changing its entries, keeping
+     * its digest.  Used when a file added at create() becomes visible in the
+     * FileSystem as its stream is closed.
+     */
+    void stampSummary(Path dir) throws Exception;
+    
+    /**
+     * Recomputes the digest of a directory from its entries, unless entries
+     * of the directory are being written.  Used when the digest is missing
+     * or no longer matches the entries.
+     */
+    void rebuildSummary(Path dir) throws Exception;
+    
+}
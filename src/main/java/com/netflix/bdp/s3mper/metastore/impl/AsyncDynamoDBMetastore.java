@@ -0,0 +1,913 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodb.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodb.model.AttributeValue;
+import com.amazonaws.services.dynamodb.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodb.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodb.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodb.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodb.model.DeleteRequest;
+import com.amazonaws.services.dynamodb.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodb.model.GetItemRequest;
+import com.amazonaws.services.dynamodb.model.GetItemResult;
+import com.amazonaws.services.dynamodb.model.Key;
+import com.amazonaws.services.dynamodb.model.PutItemRequest;
+import com.amazonaws.services.dynamodb.model.PutItemResult;
+import com.amazonaws.services.dynamodb.model.PutRequest;
+import com.amazonaws.services.dynamodb.model.QueryRequest;
+import com.amazonaws.services.dynamodb.model.QueryResult;
+import com.amazonaws.services.dynamodb.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodb.model.UpdateItemResult;
+import com.amazonaws.services.dynamodb.model.WriteRequest;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.bdp.s3mper.common.AdaptiveRateLimiter;
+import com.netflix.bdp.s3mper.common.AwsClients;
+import com.netflix.bdp.s3mper.common.BackoffAlgorithm;
+import com.netflix.bdp.s3mper.common.Deadline;
+import com.netflix.bdp.s3mper.common.DecorrelatedJitterBackoffAlgorithm;
+import com.netflix.bdp.s3mper.metastore.AsyncFileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.MetastoreException;
+import com.netflix.bdp.s3mper.metastore.SummarizingMetastore;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.*;
+import static com.netflix.bdp.s3mper.metastore.impl.DynamoDBMetastore.*;
+
+/**
+ * Implements AsyncFileSystemMetastore on top of the asynchronous DynamoDB
+ * client, using the same table layout as DynamoDBMetastore.
+ * 
+ * Requests are dispatched through a queue that keeps at most
+ * s3mper.metastore.dynamodb.inflight requests outstanding.  Nothing blocks
+ * while a request is in flight: the next page of a query is requested from
+ * the completion of the previous one, the pages of all queried paths are
+ * fetched concurrently, and writes are sent as BatchWriteItem requests of up
+ * to 25 items.  Failed requests and unprocessed batch items are retried with
+ * jittered backoff from a scheduler rather than a sleeping thread.
+ * 
+ * Writes carry the summary items of the directories they touch in the same
+ * batches, stamped ahead by the summary granularity as DynamoDBMetastore
+ * does.  With s3mper.metastore.summary.digest batch writes cannot maintain
+ * the digests of the directories, so once the entries are written the
+ * summaries are replaced without one, which also fails any rebuild that read
+ * them before.
+ * 
+ * The blocking methods wait on the corresponding future, bounded by the
+ * current Deadline if there is one.  Setting s3mper.metastore.dynamodb.endpoint
+ * points the client at a local DynamoDB stand-in.
+ */
+@SuppressWarnings("deprecation")
+public class AsyncDynamoDBMetastore implements AsyncFileSystemMetastore, SummarizingMetastore {
+    private static final Logger log = Logger.getLogger(AsyncDynamoDBMetastore.class.getName());
+    
+    static final int MAX_BATCH_WRITE = 25;
+    
+    private String tableName = "ConsistentListingMetastore";
+    private AmazonDynamoDBAsync db = null;
+    private ScheduledExecutorService scheduler;
+    
+    private int retryCount = Integer.getInteger("s3mper.metastore.retry", 3);
+    private int timeout = Integer.getInteger("s3mper.metastore.timeout", 5000);
+    private int maxInFlight = 32;
+    private long backoffBase = Long.getLong("s3mper.retry.backoff.base", 1000);
+    private long backoffCap = Long.getLong("s3mper.retry.backoff.cap", 10000);
+    private String scheme;
+    
+    private boolean deleteMarkerEnabled;
+    
+    private AdaptiveRateLimiter readLimiter;
+    private AdaptiveRateLimiter writeLimiter;
+    
+    private Semaphore permits;
+    private final Queue<Call<?, ?>> waiting = new ConcurrentLinkedQueue<Call<?, ?>>();
+    
+    private Random rand = new Random();
+    
+    private long summaryGranularity = 1000;
+    private boolean digestEnabled = false;
+    private long digestGrace = TimeUnit.MINUTES.toMillis(10);
+    private final Cache<String, Long> stamped = CacheBuilder.newBuilder().maximumSize(10000).build();
+    
+    public AsyncDynamoDBMetastore() {
+    }
+    
+    @VisibleForTesting
+    AsyncDynamoDBMetastore(AmazonDynamoDBAsync db) {
+        this.db = db;
+    }
+    
+    @Override
+    public void initalize(URI uri, Configuration conf) throws Exception {
+        scheme = uri.getScheme();
+        
+        retryCount = conf.getInt("s3mper.metastore.retry", retryCount);
+        timeout = conf.getInt("s3mper.metastore.timeout", timeout);
+        maxInFlight = conf.getInt("s3mper.metastore.dynamodb.inflight", maxInFlight);
+        backoffBase = conf.getLong("s3mper.retry.backoff.base", backoffBase);
+        backoffCap = conf.getLong("s3mper.retry.backoff.cap", backoffCap);
+        
+        tableName = conf.get("s3mper.metastore.name", tableName);
+        
+        deleteMarkerEnabled = conf.getBoolean("s3mper.metastore.deleteMarker.enabled", false);
+        summaryGranularity = conf.getLong("s3mper.metastore.summary.granularity", summaryGranularity);
+        digestEnabled = conf.getBoolean("s3mper.metastore.summary.digest", digestEnabled);
+        digestGrace = conf.getLong("s3mper.metastore.summary.digest.grace", digestGrace);
+        
+        readLimiter = AdaptiveRateLimiter.fromConfiguration(conf, "read");
+        writeLimiter = AdaptiveRateLimiter.fromConfiguration(conf, "write");
+        
+        permits = new Semaphore(maxInFlight);
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3mper-dynamodb-retry").build());
+        
+        if (db == null) {
+            String keyId = conf.get("fs."+uri.getScheme()+".awsAccessKeyId");
+            String keySecret = conf.get("fs."+uri.getScheme()+".awsSecretAccessKey");
+
+            //An override option for accessing across accounts
+            keyId = conf.get("s3mper.override.awsAccessKeyId", keyId);
+            keySecret = conf.get("s3mper.override.awsSecretAccessKey", keySecret);
+            
+            //Retries are scheduled here so the client must not sleep on a thread between them
+            ClientConfiguration clientConf = AwsClients.configuration(conf);
+            clientConf.setMaxErrorRetry(0);
+            clientConf.setConnectionTimeout(timeout);
+            clientConf.setSocketTimeout(timeout);
+            
+            db = AwsClients.dynamoDBAsync(keyId, keySecret, clientConf, conf.get("s3mper.metastore.dynamodb.endpoint"));
+        }
+    }
+
+    @Override
+    public ListenableFuture<List<FileInfo>> listAsync(List<Path> paths) {
+        return listAsync(paths, deleteMarkerEnabled);
+    }
+    
+    /**
+     * Lists all paths concurrently with optional inclusion of deleted entries.
+     * 
+     * @param paths
+     * @param includeDeleted
+     * @return 
+     */
+    public ListenableFuture<List<FileInfo>> listAsync(List<Path> paths, boolean includeDeleted) {
+        List<ListenableFuture<List<FileInfo>>> listings = new ArrayList<ListenableFuture<List<FileInfo>>>();
+        
+        for (Path path : paths) {
+            SettableFuture<List<FileInfo>> listing = SettableFuture.create();
+            dispatch(new QueryCall(path, null, includeDeleted, new ArrayList<FileInfo>(), listing));
+            listings.add(listing);
+        }
+        
+        return Futures.transform(Futures.allAsList(listings), new Function<List<List<FileInfo>>, List<FileInfo>>() {
+            @Override
+            public List<FileInfo> apply(List<List<FileInfo>> parts) {
+                List<FileInfo> result = new ArrayList<FileInfo>();
+                
+                for (List<FileInfo> part : parts) {
+                    result.addAll(part);
+                }
+                
+                return result;
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> addAsync(List<FileInfo> files) {
+        //A batch must not contain the same key twice
+        Map<String, WriteRequest> writes = new LinkedHashMap<String, WriteRequest>();
+        List<Path> dirs = new ArrayList<Path>();
+        long epoch = System.currentTimeMillis();
+        
+        for (FileInfo file : files) {
+            Path path = file.getPath();
+            dirs.add(path.getParent());
+            AttributeValue avPath = new AttributeValue(normalize(path.getParent()));
+            AttributeValue avFile = new AttributeValue(path.getName());
+            
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+            item.put(HASH_KEY, avPath);
+            item.put(RANGE_KEY, avFile);
+            item.put(EPOCH_VALUE, new AttributeValue().withN(epoch+""));
+            
+            if (file.isDirectory()) {
+                item.put(DIRECTORY_VALUE, new AttributeValue(Boolean.TRUE.toString()));
+            }
+            
+            String timeseriesKey = epoch+"-"+rand.nextInt();
+            
+            Map<String, AttributeValue> tsItem = new HashMap<String, AttributeValue>();
+            tsItem.put(HASH_KEY, new AttributeValue(TIMESERIES_KEY));
+            tsItem.put(RANGE_KEY, new AttributeValue(timeseriesKey));
+            tsItem.put(LINK_HASH_KEY, avPath);
+            tsItem.put(LINK_RANGE_KEY, avFile);
+            
+            if (log.isDebugEnabled()) {
+                log.debug("Adding metastore entry for: " + path.toUri());
+            }
+            
+            writes.put(avPath.getS() + "/" + avFile.getS(), new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+            writes.put(TIMESERIES_KEY + "/" + timeseriesKey, new WriteRequest().withPutRequest(new PutRequest().withItem(tsItem)));
+        }
+        
+        return stamp(dirs, writes);
+    }
+
+    @Override
+    public ListenableFuture<Void> addAsync(Path path, boolean directory) {
+        return addAsync(Collections.singletonList(new FileInfo(path, false, directory)));
+    }
+
+    @Override
+    public ListenableFuture<Void> deleteAsync(Path path) {
+        return deleteAsync(Collections.singletonList(path));
+    }
+
+    /**
+     * Deletes the paths in batches, or marks each of them deleted if delete
+     * markers are enabled (BatchWriteItem cannot update items).
+     * 
+     * @param paths
+     * @return 
+     */
+    @Override
+    public ListenableFuture<Void> deleteAsync(List<Path> paths) {
+        Map<String, WriteRequest> writes = new LinkedHashMap<String, WriteRequest>();
+        List<Path> dirs = new ArrayList<Path>();
+        List<ListenableFuture<Void>> updates = new ArrayList<ListenableFuture<Void>>();
+        
+        for (Path path : new LinkedHashSet<Path>(paths)) {
+            dirs.add(path.getParent());
+            Key key = new Key(new AttributeValue(normalize(path.getParent())), new AttributeValue(path.getName()));
+            
+            if (log.isDebugEnabled()) {
+                log.debug((deleteMarkerEnabled ? "Marking DynamoDB path deleted: " : "Deleting DynamoDB path: ") + path.toUri());
+            }
+            
+            if (deleteMarkerEnabled) {
+                SettableFuture<Void> update = SettableFuture.create();
+                dispatch(new MarkDeletedCall(key, update));
+                updates.add(update);
+            } else {
+                writes.put(normalize(path), new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(key)));
+            }
+        }
+        
+        updates.add(stamp(dirs, writes));
+        
+        return done(updates);
+    }
+    
+    /**
+     * Adds the summary items of the directories that this JVM has not
+     * stamped ahead of now to the writes, and writes them all.
+     */
+    private ListenableFuture<Void> stamp(final Collection<Path> dirs, Map<String, WriteRequest> writes) {
+        if (digestEnabled) {
+            ListenableFuture<Void> entries = writes.isEmpty()
+                    ? Futures.<Void>immediateFuture(null)
+                    : batchWrite(new ArrayList<WriteRequest>(writes.values()));
+            
+            return Futures.transform(entries, new AsyncFunction<Void, Void>() {
+                @Override
+                public ListenableFuture<Void> apply(Void input) {
+                    return invalidate(dirs);
+                }
+            });
+        }
+        
+        long now = System.currentTimeMillis();
+        final Map<String, Long> stamps = new HashMap<String, Long>();
+        
+        for (Path dir : dirs) {
+            String key = normalize(dir);
+            Long ahead = stamped.getIfPresent(key);
+            
+            if (stamps.containsKey(key) || (ahead != null && ahead > now)) {
+                continue;
+            }
+            
+            stamps.put(key, now + summaryGranularity);
+            writes.put(SUMMARY_HASH_PREFIX + key, new WriteRequest().withPutRequest(
+                    new PutRequest().withItem(summaryItem(new DirectorySummary(dir, now + summaryGranularity)))));
+        }
+        
+        if (writes.isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
+        
+        ListenableFuture<Void> written = batchWrite(new ArrayList<WriteRequest>(writes.values()));
+        
+        Futures.addCallback(written, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                stamped.putAll(stamps);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+        
+        return written;
+    }
+    
+    /**
+     * Replaces the summaries of the directories with ones without a digest.
+     */
+    private ListenableFuture<Void> invalidate(Collection<Path> dirs) {
+        long now = System.currentTimeMillis();
+        Map<String, WriteRequest> writes = new LinkedHashMap<String, WriteRequest>();
+        
+        for (Path dir : dirs) {
+            writes.put(normalize(dir), new WriteRequest().withPutRequest(
+                    new PutRequest().withItem(summaryItem(new DirectorySummary(dir, now)))));
+        }
+        
+        if (writes.isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
+        
+        return batchWrite(new ArrayList<WriteRequest>(writes.values()));
+    }
+    
+    private ListenableFuture<Void> batchWrite(List<WriteRequest> writes) {
+        List<ListenableFuture<Void>> batches = new ArrayList<ListenableFuture<Void>>();
+        
+        for (int i = 0; i < writes.size(); i += MAX_BATCH_WRITE) {
+            List<WriteRequest> chunk = new ArrayList<WriteRequest>(writes.subList(i, Math.min(writes.size(), i + MAX_BATCH_WRITE)));
+            SettableFuture<Void> batch = SettableFuture.create();
+            
+            dispatch(new BatchWriteCall(Collections.singletonMap(tableName, chunk), batch));
+            batches.add(batch);
+        }
+        
+        return done(batches);
+    }
+    
+    private static ListenableFuture<Void> done(List<ListenableFuture<Void>> futures) {
+        return Futures.transform(Futures.allAsList(futures), new Function<List<Void>, Void>() {
+            @Override
+            public Void apply(List<Void> input) {
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Queues a call and starts as many queued calls as there are free permits.
+     */
+    private void dispatch(Call<?, ?> call) {
+        waiting.add(call);
+        drain();
+    }
+    
+    private void drain() {
+        while (!waiting.isEmpty() && permits.tryAcquire()) {
+            Call<?, ?> call = waiting.poll();
+            
+            if (call == null) {
+                permits.release();
+                continue;
+            }
+            
+            call.start();
+        }
+    }
+    
+    private void release() {
+        permits.release();
+        drain();
+    }
+    
+    /**
+     * One DynamoDB request.  It holds a permit from start() until the client
+     * reports back, and is dispatched again after a backoff delay if it
+     * fails with a retryable error.  A request the rate limiter has no room
+     * for yet gives its permit back and is dispatched again shortly.
+     */
+    private abstract class Call<REQUEST extends AmazonWebServiceRequest, RESULT> implements AsyncHandler<REQUEST, RESULT> {
+        private final SettableFuture<?> future;
+        private final BackoffAlgorithm backoff = new DecorrelatedJitterBackoffAlgorithm(backoffBase, backoffCap);
+        private int attempts = 0;
+        
+        Call(SettableFuture<?> future) {
+            this.future = future;
+        }
+        
+        /**
+         * Sends the request with this call as its handler.
+         */
+        abstract void send();
+        
+        abstract void completed(RESULT result) throws Exception;
+        
+        abstract AdaptiveRateLimiter limiter();
+        
+        /**
+         * @return the number of rate limiter permits the request takes
+         */
+        int cost() {
+            return 1;
+        }
+        
+        void start() {
+            if (future.isDone()) {
+                release();
+                return;
+            }
+            
+            AdaptiveRateLimiter limiter = limiter();
+            
+            if (limiter != null && !limiter.tryAcquire(cost())) {
+                release();
+                later((long) Math.ceil(1000 / limiter.getRate()));
+                return;
+            }
+            
+            attempts++;
+            
+            try {
+                send();
+            } catch (RejectedExecutionException e) {
+                //The client is shutting down and will not report back
+                onError(e);
+            }
+        }
+        
+        @Override
+        public void onSuccess(REQUEST request, RESULT result) {
+            release();
+            succeeded(limiter());
+            
+            try {
+                completed(result);
+            } catch (Exception e) {
+                future.setException(e);
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            release();
+            failed(limiter(), e);
+            retry(e);
+        }
+        
+        void retry(Exception e) {
+            if (attempts >= retryCount || !retryable(e) || future.isDone()) {
+                future.setException(e);
+                return;
+            }
+            
+            long delay = backoff.next();
+            
+            log.warn(String.format("DynamoDB request failed [attempt %d of %d], retrying in %dms: %s", attempts, retryCount, delay, e.getMessage()));
+            
+            later(delay);
+        }
+        
+        private void later(long delay) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(Call.this);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private static boolean retryable(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            return ((AmazonServiceException) e).getStatusCode() >= 500 || isThrottled(e);
+        }
+        
+        return e instanceof AmazonClientException || e instanceof MetastoreException;
+    }
+    
+    /**
+     * Queries one page of a path and dispatches the query for the next page
+     * until the listing is complete.
+     */
+    private class QueryCall extends Call<QueryRequest, QueryResult> {
+        private final QueryRequest query = new QueryRequest();
+        private final Path path;
+        private final boolean includeDeleted;
+        private final List<FileInfo> listing;
+        private final SettableFuture<List<FileInfo>> future;
+
+        QueryCall(Path path, Key startKey, boolean includeDeleted, List<FileInfo> listing, SettableFuture<List<FileInfo>> future) {
+            super(future);
+            this.path = path;
+            this.includeDeleted = includeDeleted;
+            this.listing = listing;
+            this.future = future;
+            
+            query.setTableName(tableName);
+            query.withHashKeyValue(new AttributeValue(normalize(path)));
+            query.setConsistentRead(true);
+            
+            if (startKey != null) {
+                query.setExclusiveStartKey(startKey);
+            }
+        }
+        
+        @Override
+        void send() {
+            if (log.isDebugEnabled()) {
+                log.debug("Querying DynamoDB for path: " + path.toUri());
+            }
+            
+            db.queryAsync(query, this);
+        }
+
+        @Override
+        AdaptiveRateLimiter limiter() {
+            return readLimiter;
+        }
+
+        @Override
+        void completed(QueryResult result) {
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                FileInfo file = new FileInfo(new Path(scheme+":"+item.get(HASH_KEY).getS() +"/"+ item.get(RANGE_KEY).getS()));
+                
+                if (item.containsKey(DELETE_MARKER)) {
+                    file.setDeleted(Boolean.parseBoolean(item.get(DELETE_MARKER).getS()));
+                    
+                    if (!includeDeleted) {
+                        continue;
+                    }
+                }
+                
+                if (item.containsKey(DIRECTORY_VALUE)) {
+                    file.setDirectory(Boolean.parseBoolean(item.get(DIRECTORY_VALUE).getS()));
+                }
+                
+                listing.add(file);
+            }
+            
+            if (result.getLastEvaluatedKey() == null) {
+                future.set(listing);
+            } else {
+                dispatch(new QueryCall(path, result.getLastEvaluatedKey(), includeDeleted, listing, future));
+            }
+        }
+    }
+    
+    /**
+     * Writes one batch, resending unprocessed items with backoff until none
+     * are left or the retries are exhausted.
+     */
+    private class BatchWriteCall extends Call<BatchWriteItemRequest, BatchWriteItemResult> {
+        private final BatchWriteItemRequest batch = new BatchWriteItemRequest();
+        private final SettableFuture<Void> future;
+
+        BatchWriteCall(Map<String, List<WriteRequest>> items, SettableFuture<Void> future) {
+            super(future);
+            this.future = future;
+            batch.setRequestItems(items);
+        }
+
+        @Override
+        void send() {
+            db.batchWriteItemAsync(batch, this);
+        }
+
+        @Override
+        AdaptiveRateLimiter limiter() {
+            return writeLimiter;
+        }
+
+        @Override
+        int cost() {
+            return batch.getRequestItems().get(tableName).size();
+        }
+
+        @Override
+        void completed(BatchWriteItemResult result) {
+            Map<String, List<WriteRequest>> unprocessed = result.getUnprocessedItems();
+            
+            if (unprocessed == null || unprocessed.get(tableName) == null || unprocessed.get(tableName).isEmpty()) {
+                future.set(null);
+                return;
+            }
+            
+            //Unprocessed items are how batch writes report throttling
+            if (writeLimiter != null) {
+                writeLimiter.onThrottle();
+            }
+            
+            batch.setRequestItems(unprocessed);
+            retry(new MetastoreException(unprocessed.get(tableName).size() + " items of DynamoDB batch write were not processed"));
+        }
+    }
+    
+    /**
+     * Marks a path deleted but does not actually delete the entry.
+     */
+    private class MarkDeletedCall extends Call<UpdateItemRequest, UpdateItemResult> {
+        private final UpdateItemRequest update = new UpdateItemRequest();
+        private final SettableFuture<Void> future;
+
+        MarkDeletedCall(Key key, SettableFuture<Void> future) {
+            super(future);
+            this.future = future;
+            
+            update.setTableName(tableName);
+            update.setKey(key);
+            
+            Map<String, AttributeValueUpdate> items = new HashMap<String, AttributeValueUpdate>();
+            items.put(DELETE_MARKER, new AttributeValueUpdate().withValue(new AttributeValue().withS(Boolean.TRUE.toString())));
+            items.put(EPOCH_VALUE, new AttributeValueUpdate().withValue(new AttributeValue().withN(System.currentTimeMillis()+"")));
+            
+            update.setAttributeUpdates(items);
+        }
+
+        @Override
+        void send() {
+            db.updateItemAsync(update, this);
+        }
+
+        @Override
+        AdaptiveRateLimiter limiter() {
+            return writeLimiter;
+        }
+
+        @Override
+        void completed(UpdateItemResult result) {
+            future.set(null);
+        }
+    }
+    
+    /**
+     * Reads the summary item of a directory.
+     */
+    private class GetSummaryCall extends Call<GetItemRequest, GetItemResult> {
+        private final GetItemRequest get;
+        private final SettableFuture<Map<String, AttributeValue>> future;
+
+        GetSummaryCall(Path dir, SettableFuture<Map<String, AttributeValue>> future) {
+            super(future);
+            this.future = future;
+            
+            get = new GetItemRequest(tableName, summaryKey(dir)).withConsistentRead(true);
+        }
+
+        @Override
+        void send() {
+            db.getItemAsync(get, this);
+        }
+
+        @Override
+        AdaptiveRateLimiter limiter() {
+            return readLimiter;
+        }
+
+        @Override
+        void completed(GetItemResult result) {
+            future.set(result.getItem());
+        }
+    }
+    
+    /**
+     * Puts an item on the condition that the expected attribute values hold.
+     */
+    private class ConditionalPutCall extends Call<PutItemRequest, PutItemResult> {
+        private final PutItemRequest put;
+        private final SettableFuture<Void> future;
+
+        ConditionalPutCall(Map<String, AttributeValue> item, Map<String, ExpectedAttributeValue> expected, SettableFuture<Void> future) {
+            super(future);
+            this.future = future;
+            
+            put = new PutItemRequest().withTableName(tableName).withItem(item).withExpected(expected);
+        }
+
+        @Override
+        void send() {
+            db.putItemAsync(put, this);
+        }
+
+        @Override
+        AdaptiveRateLimiter limiter() {
+            return writeLimiter;
+        }
+
+        @Override
+        void completed(PutItemResult result) {
+            future.set(null);
+        }
+    }
+    
+    /**
+     * Waits for an operation, no longer than the current Deadline allows.
+     */
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            if (Deadline.current() == null) {
+                return future.get();
+            }
+            
+            return future.get(Math.max(0, Deadline.remaining()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            
+            throw e;
+        }
+    }
+
+    @Override
+    public List<FileInfo> list(List<Path> paths) throws Exception {
+        return await(listAsync(paths));
+    }
+
+    @Override
+    public void add(List<FileInfo> files) throws Exception {
+        await(addAsync(files));
+    }
+
+    @Override
+    public void add(Path path, boolean directory) throws Exception {
+        await(addAsync(path, directory));
+    }
+
+    @Override
+    public void delete(Path path) throws Exception {
+        await(deleteAsync(path));
+    }
+
+    @Override
+    public void delete(List<Path> paths) throws Exception {
+        await(deleteAsync(paths));
+    }
+
+    @Override
+    public DirectorySummary getSummary(Path dir) throws Exception {
+        SettableFuture<Map<String, AttributeValue>> item = SettableFuture.create();
+        dispatch(new GetSummaryCall(dir, item));
+        
+        Map<String, AttributeValue> summary = await(item);
+        
+        if (summary == null || !summary.containsKey(LAST_WRITE_VALUE)) {
+            return null;
+        }
+        
+        long lastWrite = number(summary, LAST_WRITE_VALUE);
+        
+        if (summary.containsKey(DIGESTED_VALUE) && number(summary, PENDING_VALUE) == 0) {
+            return new DirectorySummary(dir, lastWrite, number(summary, ENTRIES_VALUE), number(summary, DIGEST_VALUE));
+        }
+        
+        return new DirectorySummary(dir, lastWrite);
+    }
+
+    @Override
+    public void putSummary(DirectorySummary summary) throws Exception {
+        await(batchWrite(Collections.singletonList(new WriteRequest().withPutRequest(new PutRequest().withItem(summaryItem(summary))))));
+    }
+
+    /**
+     * Stamps the summary like an add would, which drops its digest.
+     */
+    @Override
+    public void stampSummary(Path dir) throws Exception {
+        await(stamp(Collections.singletonList(dir), new LinkedHashMap<String, WriteRequest>()));
+    }
+
+    /**
+     * Recomputes the digest from the live entries, replacing the summary
+     * only if it was not written since it was read.  Writes through this
+     * class replace the summary after their entries, so a rebuild that
+     * missed one of them fails its condition.
+     */
+    @Override
+    public void rebuildSummary(Path dir) throws Exception {
+        SettableFuture<Map<String, AttributeValue>> read = SettableFuture.create();
+        dispatch(new GetSummaryCall(dir, read));
+        
+        Map<String, AttributeValue> item = await(read);
+        long now = System.currentTimeMillis();
+        long lastWrite = item != null && item.containsKey(LAST_WRITE_VALUE) ? number(item, LAST_WRITE_VALUE) : now;
+        
+        //Pending marks are left by DynamoDBMetastore writes, see its rebuildSummary
+        if (item != null && number(item, PENDING_VALUE) != 0 && now - lastWrite < digestGrace) {
+            if (log.isDebugEnabled()) {
+                log.debug("Not rebuilding summary of " + dir.toUri() + " while writes are pending");
+            }
+            return;
+        }
+        
+        long entries = 0;
+        long digest = 0;
+        
+        for (FileInfo file : await(listAsync(Collections.singletonList(dir), false))) {
+            entries++;
+            digest += DirectorySummary.hash(file.getPath().getName());
+        }
+        
+        ExpectedAttributeValue version = item != null && item.containsKey(VERSION_VALUE)
+                ? new ExpectedAttributeValue(item.get(VERSION_VALUE))
+                : new ExpectedAttributeValue(false);
+        
+        SettableFuture<Void> put = SettableFuture.create();
+        dispatch(new ConditionalPutCall(summaryItem(new DirectorySummary(dir, lastWrite, entries, digest)),
+                Collections.singletonMap(VERSION_VALUE, version), put));
+        
+        try {
+            await(put);
+        } catch (ConditionalCheckFailedException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Summary of " + dir.toUri() + " changed while rebuilding it");
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+    
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    public void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+    
+}
@@ -0,0 +1,177 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.netflix.bdp.s3mper.common.Deadline;
+import com.netflix.bdp.s3mper.metastore.AsyncFileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.Metastore;
+import com.netflix.bdp.s3mper.metastore.SummarizingMetastore;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+/**
+ * Exposes a blocking metastore through the async interface by running each
+ * call on a small thread pool.  The caller's Deadline travels with the call.
+ * The async methods run the blocking methods of this class, so subclasses
+ * only need to override those.
+ */
+public class AsyncMetastoreAdapter implements AsyncFileSystemMetastore, SummarizingMetastore {
+  private final FileSystemMetastore wrapped;
+  private final ListeningExecutorService executor;
+
+  public AsyncMetastoreAdapter(FileSystemMetastore wrapped, int threads) {
+    this.wrapped = wrapped;
+    this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3mper-async-%d").build()));
+  }
+
+  @Override
+  public ListenableFuture<List<FileInfo>> listAsync(final List<Path> paths) {
+    return submit(new Callable<List<FileInfo>>() {
+      @Override
+      public List<FileInfo> call() throws Exception {
+        return list(paths);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> addAsync(final List<FileInfo> paths) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        add(paths);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> addAsync(final Path path, final boolean directory) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        add(path, directory);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> deleteAsync(final Path path) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        delete(path);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> deleteAsync(final List<Path> paths) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        delete(paths);
+        return null;
+      }
+    });
+  }
+
+  private <T> ListenableFuture<T> submit(final Callable<T> call) {
+    final Long deadline = Deadline.current();
+
+    return executor.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        Long previous = Deadline.current();
+        Deadline.restore(deadline);
+
+        try {
+          return call.call();
+        } finally {
+          Deadline.restore(previous);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void initalize(URI uri, Configuration conf) throws Exception {
+    wrapped.initalize(uri, conf);
+  }
+
+  @Override
+  public List<FileInfo> list(List<Path> paths) throws Exception {
+    return wrapped.list(paths);
+  }
+
+  @Override
+  public void add(List<FileInfo> paths) throws Exception {
+    wrapped.add(paths);
+  }
+
+  @Override
+  public void add(Path path, boolean directory) throws Exception {
+    wrapped.add(path, directory);
+  }
+
+  @Override
+  public void delete(Path path) throws Exception {
+    wrapped.delete(path);
+  }
+
+  @Override
+  public void delete(List<Path> paths) throws Exception {
+    wrapped.delete(paths);
+  }
+
+  @Override
+  public DirectorySummary getSummary(Path dir) throws Exception {
+    return Metastore.getSummary(wrapped, dir);
+  }
+
+  @Override
+  public void putSummary(DirectorySummary summary) throws Exception {
+    Metastore.putSummary(wrapped, summary);
+  }
+
+  @Override
+  public void stampSummary(Path dir) throws Exception {
+    Metastore.stampSummary(wrapped, dir);
+  }
+
+  @Override
+  public void rebuildSummary(Path dir) throws Exception {
+    Metastore.rebuildSummary(wrapped, dir);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+    wrapped.close();
+  }
+
+  @Override
+  public int getTimeout() {
+    return wrapped.getTimeout();
+  }
+
+  @Override
+  public void setTimeout(int timeout) {
+    wrapped.setTimeout(timeout);
+  }
+}
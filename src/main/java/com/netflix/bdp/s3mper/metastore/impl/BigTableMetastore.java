@@ -2,6 +2,8 @@ package com.netflix.bdp.s3mper.metastore.impl;
 
 import com.google.cloud.bigtable.hbase.BigtableConfiguration;
 import com.google.common.collect.ImmutableList;
+import com.netflix.bdp.s3mper.common.AdaptiveTimeout;
+import com.netflix.bdp.s3mper.common.HedgePolicy;
 import com.netflix.bdp.s3mper.common.RetryTask;
 import com.netflix.bdp.s3mper.metastore.FileInfo;
 import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
@@ -40,6 +42,10 @@ public class BigTableMetastore implements FileSystemMetastore {
 
     private int retryCount = Integer.getInteger("s3mper.metastore.retry", 3);
     private int timeout = Integer.getInteger("s3mper.metastore.timeout", 5000);
+    private HedgePolicy hedge;
+    private AdaptiveTimeout listTimeout;
+    private AdaptiveTimeout addTimeout;
+    private AdaptiveTimeout deleteTimeout;
 
     @Override
     public void initalize(URI uri, Configuration conf) throws Exception {
@@ -47,6 +53,11 @@ public class BigTableMetastore implements FileSystemMetastore {
             tableName = TableName.valueOf(conf.get("s3mper.metastore.name", "metadata"));
             retryCount = conf.getInt("s3mper.metastore.retry", retryCount);
             timeout = conf.getInt("s3mper.metastore.timeout", timeout);
+            hedge = HedgePolicy.fromConfiguration(conf);
+            MetastoreFallback.configure(conf);
+            listTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
+            addTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
+            deleteTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
 
             connection = BigtableConfiguration.connect(projectId, zone, clusterId);
 
@@ -77,7 +88,7 @@ public class BigTableMetastore implements FileSystemMetastore {
         // Now scan across all columns in row.
         for (Path parent: parents) {
             Result row = new RetryTask<Result>(
-                    new GetTask(parent), retryCount, timeout).call();
+                    new GetTask(parent), retryCount, listTimeout, hedge).call();
 
             NavigableMap<byte[], byte[]> data = row.getFamilyMap(COLUMN_FAMILY_NAME);
             if (data != null) {
@@ -107,7 +118,7 @@ public class BigTableMetastore implements FileSystemMetastore {
                     new AddTask(
                             entry.getKey(),
                             entry.getValue()),
-                    retryCount, timeout).call();
+                    retryCount, addTimeout).call();
         }
     }
 
@@ -117,7 +128,7 @@ public class BigTableMetastore implements FileSystemMetastore {
                 new AddTask(
                         path.getParent(),
                         ImmutableList.of(new FileInfo(path, false, directory))),
-                retryCount, timeout).call();
+                retryCount, addTimeout).call();
     }
 
     private Table getTable() throws IOException {
@@ -126,7 +137,7 @@ public class BigTableMetastore implements FileSystemMetastore {
 
     @Override
     public void delete(Path path) throws Exception {
-        new RetryTask(new DeleteTask(path), retryCount, timeout).call();
+        new RetryTask(new DeleteTask(path), retryCount, deleteTimeout).call();
     }
 
     @Override
@@ -147,12 +158,18 @@ public class BigTableMetastore implements FileSystemMetastore {
 
     @Override
     public int getTimeout() {
-        return 0;
+        return timeout;
     }
 
     @Override
     public void setTimeout(int timeout) {
+        this.timeout = timeout;
 
+        if (listTimeout != null) {
+            listTimeout.setCeiling(timeout);
+            addTimeout.setCeiling(timeout);
+            deleteTimeout.setCeiling(timeout);
+        }
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,336 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.Metastore;
+import com.netflix.bdp.s3mper.metastore.SummarizingMetastore;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.*;
+
+/**
+ * Decorator that keeps recent directory listings in a bounded, expiring
+ * in-process cache.  Reads are served locally until the entry expires and
+ * writes made through this metastore update the cached listing in place, so
+ * a JVM that lists the same input directories repeatedly only queries the
+ * backing store once per TTL.
+ *
+ * Writes from other JVMs are not visible until the cached listing expires, so
+ * the TTL bounds how stale a listing check may be.  Directory summaries are
+ * cached the same way, and a write through this metastore drops the cached
+ * summary of its directory.
+ *
+ * Every write also bumps the generation of its directory.  A listing or
+ * summary fetched after a miss is only kept if the generation did not change
+ * during the fetch, so a write that lands while the fetch is in flight is not
+ * hidden behind the older result for the rest of the TTL.  Generations are
+ * striped by key hash; a collision only costs a skipped put.
+ */
+public class CachingMetastore implements SummarizingMetastore {
+  private static final Logger log = Logger.getLogger(CachingMetastore.class);
+  private static final int GENERATIONS = 1024;
+  private final FileSystemMetastore wrapped;
+  private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+  private Cache<String, List<FileInfo>> cache;
+  private Cache<String, DirectorySummary> summaries;
+  private boolean deleteMarkerEnabled;
+
+  public CachingMetastore(FileSystemMetastore wrapped) {
+    this.wrapped = wrapped;
+  }
+
+  @Override
+  public void initalize(URI uri, Configuration conf) throws Exception {
+    long maxEntries = conf.getLong("s3mper.metastore.cache.size", 100000);
+    long ttl = conf.getLong("s3mper.metastore.cache.ttl", TimeUnit.SECONDS.toMillis(10));
+
+    deleteMarkerEnabled = conf.getBoolean("s3mper.metastore.deleteMarker.enabled", false);
+
+    // Weigh directories by entry count so that the bound tracks memory use
+    // rather than the number of directories.
+    cache = CacheBuilder.newBuilder()
+        .maximumWeight(maxEntries)
+        .weigher(new Weigher<String, List<FileInfo>>() {
+          @Override
+          public int weigh(String key, List<FileInfo> value) {
+            return value.size() + 1;
+          }
+        })
+        .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+        .recordStats()
+        .build();
+
+    summaries = CacheBuilder.newBuilder()
+        .maximumSize(maxEntries)
+        .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+        .build();
+
+    wrapped.initalize(uri, conf);
+  }
+
+  @Override
+  public List<FileInfo> list(List<Path> paths) throws Exception {
+    Map<String, List<FileInfo>> listings = new LinkedHashMap<String, List<FileInfo>>();
+    List<Path> misses = new ArrayList<Path>();
+
+    for (Path path : paths) {
+      String key = normalize(path);
+      List<FileInfo> cached = cache.getIfPresent(key);
+
+      if (cached == null && !listings.containsKey(key)) {
+        misses.add(path);
+      }
+
+      listings.put(key, cached);
+    }
+
+    if (!misses.isEmpty()) {
+      Map<String, List<FileInfo>> fetched = new LinkedHashMap<String, List<FileInfo>>();
+      Map<String, Long> fetchedAt = new LinkedHashMap<String, Long>();
+
+      for (Path path : misses) {
+        String key = normalize(path);
+        fetched.put(key, new ArrayList<FileInfo>());
+        fetchedAt.put(key, generation(key));
+      }
+
+      for (FileInfo info : wrapped.list(misses)) {
+        List<FileInfo> listing = fetched.get(normalize(info.getPath().getParent()));
+
+        if (listing != null) {
+          listing.add(info);
+        }
+      }
+
+      for (Map.Entry<String, List<FileInfo>> entry : fetched.entrySet()) {
+        List<FileInfo> listing = ImmutableList.copyOf(entry.getValue());
+        put(cache, entry.getKey(), listing, fetchedAt.get(entry.getKey()));
+        listings.put(entry.getKey(), listing);
+      }
+    }
+
+    ImmutableList.Builder<FileInfo> result = ImmutableList.builder();
+    for (List<FileInfo> listing : listings.values()) {
+      result.addAll(listing);
+    }
+    return result.build();
+  }
+
+  @Override
+  public void add(List<FileInfo> paths) throws Exception {
+    wrapped.add(paths);
+
+    for (FileInfo info : paths) {
+      update(info.getPath(), new FileInfo(info.getPath(), false, info.isDirectory()));
+    }
+  }
+
+  @Override
+  public void add(Path path, boolean directory) throws Exception {
+    wrapped.add(path, directory);
+    update(path, new FileInfo(path, false, directory));
+  }
+
+  @Override
+  public void delete(Path path) throws Exception {
+    wrapped.delete(path);
+    markDeleted(path);
+  }
+
+  @Override
+  public void delete(List<Path> paths) throws Exception {
+    wrapped.delete(paths);
+
+    for (Path path : paths) {
+      markDeleted(path);
+    }
+  }
+
+  private void markDeleted(Path path) {
+    if (deleteMarkerEnabled) {
+      FileInfo current = find(path);
+
+      if (current != null) {
+        update(path, new FileInfo(current.getPath(), true, current.isDirectory()));
+      }
+    } else {
+      update(path, null);
+    }
+  }
+
+  private FileInfo find(Path path) {
+    List<FileInfo> listing = cache.getIfPresent(normalize(path.getParent()));
+
+    if (listing != null) {
+      String name = normalize(path);
+
+      for (FileInfo info : listing) {
+        if (normalize(info.getPath()).equals(name)) {
+          return info;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Replaces the entry for the given path in the cached listing of its parent
+   * (if that listing is cached).  A null replacement removes the entry.
+   */
+  private void update(Path path, FileInfo replacement) {
+    String key = normalize(path.getParent());
+    String name = normalize(path);
+    ConcurrentMap<String, List<FileInfo>> map = cache.asMap();
+
+    invalidateSummary(key);
+
+    while (true) {
+      List<FileInfo> current = map.get(key);
+
+      if (current == null) {
+        return;
+      }
+
+      List<FileInfo> updated = new ArrayList<FileInfo>(current.size() + 1);
+      for (FileInfo info : current) {
+        if (!normalize(info.getPath()).equals(name)) {
+          updated.add(info);
+        }
+      }
+
+      if (replacement != null) {
+        updated.add(replacement);
+      }
+
+      if (map.replace(key, current, Collections.unmodifiableList(updated))) {
+        return;
+      }
+    }
+  }
+
+  private long generation(String key) {
+    return generations.get((key.hashCode() & Integer.MAX_VALUE) % GENERATIONS);
+  }
+
+  /**
+   * Bumps the generation of the key and drops its cached summary.  Must
+   * follow the write to the wrapped metastore.
+   */
+  private void invalidateSummary(String key) {
+    generations.incrementAndGet((key.hashCode() & Integer.MAX_VALUE) % GENERATIONS);
+    summaries.invalidate(key);
+  }
+
+  /**
+   * Caches a value fetched at the given generation of its key, unless the
+   * key was written since.  The value is put first and removed again if the
+   * generation moved, so a write racing with the put either updates the
+   * cached value or causes it to be removed.
+   */
+  private <V> void put(Cache<String, V> target, String key, V value, long generation) {
+    target.put(key, value);
+
+    if (generation(key) != generation) {
+      target.asMap().remove(key, value);
+    }
+  }
+
+  @Override
+  public DirectorySummary getSummary(Path dir) throws Exception {
+    String key = normalize(dir);
+    DirectorySummary summary = summaries.getIfPresent(key);
+
+    if (summary == null) {
+      long generation = generation(key);
+      summary = Metastore.getSummary(wrapped, dir);
+
+      if (summary != null) {
+        put(summaries, key, summary, generation);
+      }
+    }
+
+    return summary;
+  }
+
+  @Override
+  public void putSummary(DirectorySummary summary) throws Exception {
+    String key = normalize(summary.getPath());
+
+    Metastore.putSummary(wrapped, summary);
+    invalidateSummary(key);
+    summaries.put(key, summary);
+  }
+
+  @Override
+  public void stampSummary(Path dir) throws Exception {
+    try {
+      Metastore.stampSummary(wrapped, dir);
+    } finally {
+      invalidateSummary(normalize(dir));
+    }
+  }
+
+  @Override
+  public void rebuildSummary(Path dir) throws Exception {
+    try {
+      Metastore.rebuildSummary(wrapped, dir);
+    } finally {
+      invalidateSummary(normalize(dir));
+    }
+  }
+
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  public long getHitCount() {
+    return cache.stats().hitCount();
+  }
+
+  public long getMissCount() {
+    return cache.stats().missCount();
+  }
+
+  @Override
+  public void close() {
+    if (cache != null) {
+      log.info("Metastore cache statistics: " + cache.stats());
+      cache.invalidateAll();
+      summaries.invalidateAll();
+    }
+
+    wrapped.close();
+  }
+
+  @Override
+  public int getTimeout() {
+    return wrapped.getTimeout();
+  }
+
+  @Override
+  public void setTimeout(int timeout) {
+    wrapped.setTimeout(timeout);
+  }
+}
@@ -0,0 +1,215 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.common.CircuitBreaker;
+import com.netflix.bdp.s3mper.common.QueueTimeoutException;
+import com.netflix.bdp.s3mper.metastore.CircuitOpenException;
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.Metastore;
+import com.netflix.bdp.s3mper.metastore.SummarizingMetastore;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Decorator that guards the metastore with a CircuitBreaker.  While the
+ * circuit is open calls fail immediately with a CircuitOpenException instead
+ * of waiting out timeouts and retries.
+ *
+ * A failed initialization opens the circuit rather than failing; the backend
+ * is initialized again by the first probe once the circuit half-opens.
+ *
+ * Calls that time out waiting for a retry thread never reached the backend
+ * and are not counted as failures.
+ */
+public class CircuitBreakerMetastore implements SummarizingMetastore {
+  private static final Logger log = Logger.getLogger(CircuitBreakerMetastore.class);
+  private final FileSystemMetastore wrapped;
+
+  private CircuitBreaker breaker;
+  private URI uri;
+  private Configuration conf;
+  private volatile boolean initialized = false;
+
+  public CircuitBreakerMetastore(FileSystemMetastore wrapped) {
+    this.wrapped = wrapped;
+  }
+
+  @Override
+  public void initalize(URI uri, Configuration conf) throws Exception {
+    this.uri = uri;
+    this.conf = conf;
+
+    if (breaker == null) {
+      breaker = CircuitBreaker.fromConfiguration(conf);
+    }
+
+    try {
+      wrapped.initalize(uri, conf);
+      initialized = true;
+    } catch (Exception e) {
+      log.error("Failed to initialize metastore, opening circuit", e);
+      breaker.open();
+    }
+  }
+
+  @Override
+  public List<FileInfo> list(final List<Path> paths) throws Exception {
+    return call(new Callable<List<FileInfo>>() {
+      @Override
+      public List<FileInfo> call() throws Exception {
+        return wrapped.list(paths);
+      }
+    });
+  }
+
+  @Override
+  public void add(final List<FileInfo> paths) throws Exception {
+    call(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        wrapped.add(paths);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void add(final Path path, final boolean directory) throws Exception {
+    call(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        wrapped.add(path, directory);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void delete(final Path path) throws Exception {
+    call(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        wrapped.delete(path);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void delete(final List<Path> paths) throws Exception {
+    call(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        wrapped.delete(paths);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public DirectorySummary getSummary(final Path dir) throws Exception {
+    return call(new Callable<DirectorySummary>() {
+      @Override
+      public DirectorySummary call() throws Exception {
+        return Metastore.getSummary(wrapped, dir);
+      }
+    });
+  }
+
+  @Override
+  public void putSummary(final DirectorySummary summary) throws Exception {
+    call(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        Metastore.putSummary(wrapped, summary);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void stampSummary(final Path dir) throws Exception {
+    call(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        Metastore.stampSummary(wrapped, dir);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void rebuildSummary(final Path dir) throws Exception {
+    call(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        Metastore.rebuildSummary(wrapped, dir);
+        return null;
+      }
+    });
+  }
+
+  private <T> T call(Callable<T> operation) throws Exception {
+    if (!breaker.allowRequest()) {
+      throw new CircuitOpenException("Metastore circuit is open", breaker.takeOpenNotice());
+    }
+
+    long start = System.currentTimeMillis();
+
+    try {
+      if (!initialized) {
+        initializeWrapped();
+      }
+
+      T result = operation.call();
+      breaker.onSuccess(System.currentTimeMillis() - start);
+      return result;
+    } catch (QueueTimeoutException e) {
+      breaker.release();
+      throw e;
+    } catch (Exception e) {
+      breaker.onFailure();
+      throw e;
+    } catch (Error e) {
+      // e.g. a missing backend class; must not keep a half-open probe slot
+      breaker.onFailure();
+      throw e;
+    }
+  }
+
+  private synchronized void initializeWrapped() throws Exception {
+    if (!initialized) {
+      log.info("Retrying metastore initialization");
+      wrapped.initalize(uri, conf);
+      initialized = true;
+    }
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  @Override
+  public void close() {
+    if (initialized) {
+      wrapped.close();
+    }
+  }
+
+  @Override
+  public int getTimeout() {
+    return wrapped.getTimeout();
+  }
+
+  @Override
+  public void setTimeout(int timeout) {
+    wrapped.setTimeout(timeout);
+  }
+}
@@ -0,0 +1,196 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.Metastore;
+import com.netflix.bdp.s3mper.metastore.MetastoreBatchException;
+import com.netflix.bdp.s3mper.metastore.SummarizingMetastore;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.*;
+
+/**
+ * Decorator that drops adds of directories this JVM registered recently.
+ * Output directories are created from many code paths, so the same add often
+ * reaches the metastore several times within seconds.
+ *
+ * Registrations are remembered for the configured window and forgotten when
+ * the path is deleted through this metastore.  A directory deleted by another
+ * JVM is re-added at the latest once the window expires.
+ *
+ * Files are never skipped: a file rewritten after another JVM deleted it must
+ * overwrite the delete marker left by that delete, or the live file would be
+ * delisted.  For the same reason directories are not deduplicated at all
+ * while delete markers are enabled; Metastore does not install this
+ * decorator then.
+ *
+ * With s3mper.metastore.dedup.ancestors every add also registers the parent
+ * directories not known to be registered, in the same batch.
+ */
+public class DedupingMetastore implements SummarizingMetastore {
+  private static final Logger log = Logger.getLogger(DedupingMetastore.class);
+  private final FileSystemMetastore wrapped;
+
+  private Cache<String, Boolean> registered;
+  private boolean ancestors;
+
+  public DedupingMetastore(FileSystemMetastore wrapped) {
+    this.wrapped = wrapped;
+  }
+
+  @Override
+  public void initalize(URI uri, Configuration conf) throws Exception {
+    registered = CacheBuilder.newBuilder()
+        .maximumSize(conf.getLong("s3mper.metastore.dedup.size", 10000))
+        .expireAfterWrite(conf.getLong("s3mper.metastore.dedup.window", TimeUnit.MINUTES.toMillis(1)), TimeUnit.MILLISECONDS)
+        .recordStats()
+        .build();
+
+    ancestors = conf.getBoolean("s3mper.metastore.dedup.ancestors", false);
+
+    wrapped.initalize(uri, conf);
+  }
+
+  private static String key(Path path, boolean directory) {
+    return normalize(path) + (directory ? "/" : "");
+  }
+
+  private boolean isRegistered(FileInfo info) {
+    return info.isDirectory() && registered.getIfPresent(key(info.getPath(), true)) != null;
+  }
+
+  @Override
+  public void add(List<FileInfo> paths) throws Exception {
+    Map<String, FileInfo> missing = new LinkedHashMap<String, FileInfo>();
+
+    for (FileInfo info : paths) {
+      if (!isRegistered(info)) {
+        missing.put(key(info.getPath(), info.isDirectory()), new FileInfo(info.getPath(), false, info.isDirectory()));
+      }
+
+      if (ancestors) {
+        for (Path parent = info.getPath().getParent(); parent != null && !parent.isRoot(); parent = parent.getParent()) {
+          FileInfo dir = new FileInfo(parent, false, true);
+
+          if (isRegistered(dir) || missing.containsKey(key(parent, true))) {
+            break;
+          }
+          missing.put(key(parent, true), dir);
+        }
+      }
+    }
+
+    if (missing.isEmpty()) {
+      return;
+    }
+
+    if (log.isDebugEnabled() && missing.size() < paths.size()) {
+      log.debug("Skipped " + (paths.size() - missing.size()) + " recently registered paths");
+    }
+
+    try {
+      if (missing.size() == 1) {
+        FileInfo info = missing.values().iterator().next();
+        wrapped.add(info.getPath(), info.isDirectory());
+      } else {
+        wrapped.add(new ArrayList<FileInfo>(missing.values()));
+      }
+    } catch (MetastoreBatchException e) {
+      for (Map.Entry<String, FileInfo> entry : missing.entrySet()) {
+        if (entry.getValue().isDirectory() && !e.getFailures().containsKey(entry.getValue().getPath())) {
+          registered.put(entry.getKey(), Boolean.TRUE);
+        }
+      }
+      throw e;
+    }
+
+    for (Map.Entry<String, FileInfo> entry : missing.entrySet()) {
+      if (entry.getValue().isDirectory()) {
+        registered.put(entry.getKey(), Boolean.TRUE);
+      }
+    }
+  }
+
+  @Override
+  public void add(Path path, boolean directory) throws Exception {
+    add(Collections.singletonList(new FileInfo(path, false, directory)));
+  }
+
+  @Override
+  public void delete(Path path) throws Exception {
+    forget(path);
+    wrapped.delete(path);
+  }
+
+  @Override
+  public void delete(List<Path> paths) throws Exception {
+    for (Path path : paths) {
+      forget(path);
+    }
+    wrapped.delete(paths);
+  }
+
+  private void forget(Path path) {
+    registered.invalidate(key(path, true));
+  }
+
+  @Override
+  public List<FileInfo> list(List<Path> paths) throws Exception {
+    return wrapped.list(paths);
+  }
+
+  @Override
+  public DirectorySummary getSummary(Path dir) throws Exception {
+    return Metastore.getSummary(wrapped, dir);
+  }
+
+  @Override
+  public void putSummary(DirectorySummary summary) throws Exception {
+    Metastore.putSummary(wrapped, summary);
+  }
+
+  @Override
+  public void stampSummary(Path dir) throws Exception {
+    Metastore.stampSummary(wrapped, dir);
+  }
+
+  @Override
+  public void rebuildSummary(Path dir) throws Exception {
+    Metastore.rebuildSummary(wrapped, dir);
+  }
+
+  @Override
+  public void close() {
+    if (registered != null) {
+      log.info("Metastore dedup statistics: " + registered.stats());
+      registered.invalidateAll();
+    }
+
+    wrapped.close();
+  }
+
+  @Override
+  public int getTimeout() {
+    return wrapped.getTimeout();
+  }
+
+  @Override
+  public void setTimeout(int timeout) {
+    wrapped.setTimeout(timeout);
+  }
+}
@@ -21,14 +21,24 @@ package com.netflix.bdp.s3mper.metastore.impl;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import com.netflix.bdp.s3mper.common.AdaptiveRateLimiter;
+import com.netflix.bdp.s3mper.common.AdaptiveTimeout;
+import com.netflix.bdp.s3mper.common.AwsClients;
+import com.netflix.bdp.s3mper.common.HedgePolicy;
 import com.netflix.bdp.s3mper.common.RetryTask;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.dynamodb.AmazonDynamoDBClient;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
 import com.amazonaws.services.dynamodb.model.AttributeValue;
+import com.amazonaws.services.dynamodb.model.AttributeAction;
 import com.amazonaws.services.dynamodb.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodb.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodb.model.CreateTableRequest;
 import com.amazonaws.services.dynamodb.model.DeleteItemRequest;
 import com.amazonaws.services.dynamodb.model.DeleteItemResult;
+import com.amazonaws.services.dynamodb.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodb.model.GetItemRequest;
+import com.amazonaws.services.dynamodb.model.GetItemResult;
 import com.amazonaws.services.dynamodb.model.Key;
 import com.amazonaws.services.dynamodb.model.KeySchema;
 import com.amazonaws.services.dynamodb.model.KeySchemaElement;
@@ -41,10 +51,15 @@ import com.amazonaws.services.dynamodb.model.ReturnValue;
 import com.amazonaws.services.dynamodb.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodb.model.UpdateItemRequest;
 import com.amazonaws.services.dynamodb.model.UpdateItemResult;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
 import com.netflix.bdp.s3mper.metastore.FileInfo;
-import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.SummarizingMetastore;
+import java.math.BigDecimal;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +68,8 @@ import org.apache.hadoop.fs.Path;
 import org.apache.log4j.Logger;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.netflix.bdp.s3mper.common.PathUtil.*;
 import java.util.Random;
@@ -60,14 +77,30 @@ import java.util.Random;
 /**
  * Implements FileSystemMetastore using DynamoDB as a backend.
  * 
+ * Every add and delete also stamps the summary item of the directory with
+ * the time of the write.  To save writes, a JVM stamps a directory ahead by
+ * the summary granularity and skips stamping it again until that time, so
+ * the recorded last write is never earlier than the actual one.
+ * 
+ * With s3mper.metastore.summary.digest the summary also carries the digest
+ * of the live entries.  Each write then marks itself pending in the summary,
+ * writes the entry returning the previous one, and applies the change in the
+ * entries to the digest while clearing its pending mark.  A digest is only
+ * reported while nothing is pending.  A write whose effect is uncertain
+ * because it was retried or could not be marked pending drops the digest
+ * instead, and a writer that fails before clearing its mark leaves it
+ * pending; rebuildSummary() restores the digest in both cases.  The
+ * digest costs two summary updates in series with every entry write, all on
+ * the one summary item of the directory.
+ * 
  * @author dweeks
  */
 @SuppressWarnings("deprecation")
-public class DynamoDBMetastore implements FileSystemMetastore {
+public class DynamoDBMetastore implements SummarizingMetastore {
     private static final Logger log = Logger.getLogger(DynamoDBMetastore.class.getName());
     
     private String tableName = "ConsistentListingMetastore";
-    private AmazonDynamoDBClient db = null;
+    private AmazonDynamoDB db = null;
     
     private long readUnits = 500;
     private long writeUnits = 100;
@@ -78,8 +111,21 @@ public class DynamoDBMetastore implements FileSystemMetastore {
     
     private boolean deleteMarkerEnabled;
     
+    private HedgePolicy hedge;
+    private AdaptiveTimeout listTimeout;
+    private AdaptiveTimeout addTimeout;
+    private AdaptiveTimeout deleteTimeout;
+    
+    private AdaptiveRateLimiter readLimiter;
+    private AdaptiveRateLimiter writeLimiter;
+    
     private Random rand = new Random();
     
+    private long summaryGranularity = 1000;
+    private boolean digestEnabled = false;
+    private long digestGrace = TimeUnit.MINUTES.toMillis(10);
+    private final Cache<String, Long> stamped = CacheBuilder.newBuilder().maximumSize(10000).build();
+    
     static final String HASH_KEY = "path";
     static final String RANGE_KEY = "file";
     static final String EPOCH_VALUE = "epoch";
@@ -89,6 +135,27 @@ public class DynamoDBMetastore implements FileSystemMetastore {
     static final String LINK_HASH_KEY = "linkPath";
     static final String LINK_RANGE_KEY = "linkFile";
     static final String TIMESERIES_KEY = "epoch";
+    
+    //Summary items live under their own hash key and carry no epoch, so the
+    //janitor's scans never expire them
+    static final String SUMMARY_HASH_PREFIX = "summary:";
+    static final String SUMMARY_RANGE_KEY = "summary";
+    static final String LAST_WRITE_VALUE = "lastWrite";
+    static final String ENTRIES_VALUE = "entries";
+    static final String DIGEST_VALUE = "digest";
+    static final String DIGESTED_VALUE = "digested";
+    static final String PENDING_VALUE = "pending";
+    static final String VERSION_VALUE = "version";
+    
+    private static final Random versions = new Random();
+    
+    public DynamoDBMetastore() {
+    }
+    
+    @VisibleForTesting
+    DynamoDBMetastore(AmazonDynamoDB db) {
+        this.db = db;
+    }
 
     /**
      * Creates the metastore table in DynamoDB if it doesn't exist with the configured
@@ -102,25 +169,48 @@ public class DynamoDBMetastore implements FileSystemMetastore {
     public void initalize(URI uri, Configuration conf) throws Exception {
         scheme = uri.getScheme();
         
-        String keyId = conf.get("fs."+uri.getScheme()+".awsAccessKeyId");
-        String keySecret = conf.get("fs."+uri.getScheme()+".awsSecretAccessKey");
-        
-        //An override option for accessing across accounts
-        keyId = conf.get("s3mper.override.awsAccessKeyId", keyId);
-        keySecret = conf.get("s3mper.override.awsSecretAccessKey", keySecret);
+        readLimiter = AdaptiveRateLimiter.fromConfiguration(conf, "read");
+        writeLimiter = AdaptiveRateLimiter.fromConfiguration(conf, "write");
         
-        db = new AmazonDynamoDBClient(new BasicAWSCredentials(keyId, keySecret));
+        if (db == null) {
+            String keyId = conf.get("fs."+uri.getScheme()+".awsAccessKeyId");
+            String keySecret = conf.get("fs."+uri.getScheme()+".awsSecretAccessKey");
+
+            //An override option for accessing across accounts
+            keyId = conf.get("s3mper.override.awsAccessKeyId", keyId);
+            keySecret = conf.get("s3mper.override.awsSecretAccessKey", keySecret);
+            
+            ClientConfiguration clientConf = AwsClients.configuration(conf);
+
+            //The limiters have to see throttling instead of the client retrying it internally
+            if (readLimiter != null) {
+                clientConf.setMaxErrorRetry(0);
+            }
+
+            db = AwsClients.dynamoDB(keyId, keySecret, clientConf, conf.get("s3mper.metastore.dynamodb.endpoint"));
+        }
         
         readUnits = conf.getLong("s3mper.metastore.read.units", readUnits);
         writeUnits = conf.getLong("s3mper.metastore.write.units", writeUnits);
         
         retryCount = conf.getInt("s3mper.metastore.retry", retryCount);
         timeout = conf.getInt("s3mper.metastore.timeout", timeout);
+        listTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
+        addTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
+        deleteTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
         
         tableName = conf.get("s3mper.metastore.name", tableName);
         
         deleteMarkerEnabled = conf.getBoolean("s3mper.metastore.deleteMarker.enabled", false);
         
+        hedge = HedgePolicy.fromConfiguration(conf);
+        
+        summaryGranularity = conf.getLong("s3mper.metastore.summary.granularity", summaryGranularity);
+        digestEnabled = conf.getBoolean("s3mper.metastore.summary.digest", digestEnabled);
+        digestGrace = conf.getLong("s3mper.metastore.summary.digest.grace", digestGrace);
+        
+        MetastoreFallback.configure(conf);
+        
         boolean checkTableExists = conf.getBoolean("s3mper.metastore.create", false);
         
         if(checkTableExists) {
@@ -201,7 +291,7 @@ public class DynamoDBMetastore implements FileSystemMetastore {
             Key startKey = null;
             
             do {
-                RetryTask<QueryResult> queryTask = new RetryTask(new QueryTask(path, startKey), retryCount, timeout);
+                RetryTask<QueryResult> queryTask = new RetryTask(new QueryTask(path, startKey), retryCount, listTimeout, hedge);
                 QueryResult result = queryTask.call();
                 
                 for(Map<String, AttributeValue> item : result.getItems()) {
@@ -238,9 +328,17 @@ public class DynamoDBMetastore implements FileSystemMetastore {
      */
     @Override
     public void add(final Path path, boolean directory) throws Exception {
-        RetryTask task = new RetryTask(new AddTask(path, directory), retryCount, timeout);
+        AddTask add = new AddTask(path, directory);
+        
+        if(digestEnabled) {
+            digestedWrite(path, add, addTimeout, true);
+            return;
+        }
+        
+        RetryTask task = new RetryTask(add, retryCount, addTimeout);
         
         task.call();
+        stamp(path.getParent());
     }
 
     /**
@@ -252,32 +350,292 @@ public class DynamoDBMetastore implements FileSystemMetastore {
      */
     @Override
     public void delete(final Path path) throws Exception {
-        RetryTask task;
+        EntryWrite delete = deleteMarkerEnabled ? new MarkDeletedTask(path) : new DeleteTask(path);
         
-        if(deleteMarkerEnabled) {
-            task = new RetryTask(new MarkDeletedTask(path), retryCount, timeout);
-        } else {
-            task = new RetryTask(new DeleteTask(path), retryCount, timeout);
+        if(digestEnabled) {
+            digestedWrite(path, delete, deleteTimeout, false);
+            return;
         }
         
+        RetryTask task = new RetryTask(delete, retryCount, deleteTimeout);
+        
         task.call();
+        stamp(path.getParent());
     }
 
     @Override
     public void delete(List<Path> path) throws Exception {
         MetastoreFallback.delete(this, path);
     }
+    
+    /**
+     * Writes an entry between marking the write pending in the summary of
+     * its directory and applying it to the digest.
+     */
+    private void digestedWrite(Path path, EntryWrite write, AdaptiveTimeout writeTimeout, boolean add) throws Exception {
+        Path dir = path.getParent();
+        boolean pending = false;
+        
+        try {
+            Map<String, AttributeValueUpdate> begin = new HashMap<String, AttributeValueUpdate>();
+            begin.put(PENDING_VALUE, new AttributeValueUpdate(new AttributeValue().withN("1"), AttributeAction.ADD));
+            begin.put(VERSION_VALUE, new AttributeValueUpdate(new AttributeValue().withN("1"), AttributeAction.ADD));
+            begin.put(LAST_WRITE_VALUE, new AttributeValueUpdate(new AttributeValue().withN(System.currentTimeMillis() + ""), AttributeAction.PUT));
+            
+            //Not retried: a repeated ADD would leave the write pending for good
+            new RetryTask(new UpdateSummaryTask(dir, begin), 1, writeTimeout).call();
+            pending = true;
+        } catch (Exception e) {
+            log.warn("Failed to mark write pending in summary of " + dir.toUri() + ", dropping its digest", e);
+        }
+        
+        Map<String, AttributeValue> previous;
+        
+        try {
+            previous = (Map<String, AttributeValue>) new RetryTask(write, retryCount, writeTimeout).call();
+        } catch (Exception e) {
+            finishWrite(path, pending, 0, true);
+            throw e;
+        }
+        
+        boolean live = previous != null && !previous.isEmpty()
+                && !(previous.containsKey(DELETE_MARKER) && Boolean.parseBoolean(previous.get(DELETE_MARKER).getS()));
+        int delta = add ? (live ? 0 : 1) : (live ? -1 : 0);
+        
+        //A retried write may have found its own earlier attempt
+        finishWrite(path, pending, delta, !pending || write.attempts() > 1);
+    }
+    
+    /**
+     * Clears the pending mark of a write and applies the change in the number
+     * of entries to the digest, or drops the digest if the change is unknown.
+     * Failures are only logged: the write stays pending, which keeps the
+     * digest from being used until it is rebuilt.
+     */
+    private void finishWrite(Path path, boolean pending, int delta, boolean unknown) {
+        Map<String, AttributeValueUpdate> finish = new HashMap<String, AttributeValueUpdate>();
+        finish.put(LAST_WRITE_VALUE, new AttributeValueUpdate(new AttributeValue().withN(System.currentTimeMillis() + ""), AttributeAction.PUT));
+        
+        if (pending) {
+            finish.put(PENDING_VALUE, new AttributeValueUpdate(new AttributeValue().withN("-1"), AttributeAction.ADD));
+        }
+        
+        if (unknown) {
+            finish.put(DIGESTED_VALUE, new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+        } else if (delta != 0) {
+            finish.put(ENTRIES_VALUE, new AttributeValueUpdate(new AttributeValue().withN(delta + ""), AttributeAction.ADD));
+            finish.put(DIGEST_VALUE, new AttributeValueUpdate(new AttributeValue().withN(delta * DirectorySummary.hash(path.getName()) + ""), AttributeAction.ADD));
+        }
+        
+        try {
+            new RetryTask(new UpdateSummaryTask(path.getParent(), finish), 1, addTimeout).call();
+        } catch (Exception e) {
+            log.warn("Failed to update summary of " + path.getParent().toUri() + ", its digest stays unusable until rebuilt", e);
+        }
+    }
+    
+    /**
+     * Records a write to the directory in its summary, unless this JVM
+     * already stamped it with a time that is still ahead.
+     */
+    private void stamp(Path dir) throws Exception {
+        String key = normalize(dir);
+        long now = System.currentTimeMillis();
+        Long ahead = stamped.getIfPresent(key);
+        
+        if (ahead != null && ahead > now) {
+            return;
+        }
+        
+        stamped.put(key, now + summaryGranularity);
+        
+        try {
+            putSummary(new DirectorySummary(dir, now + summaryGranularity));
+        } catch (Exception e) {
+            stamped.invalidate(key);
+            throw e;
+        }
+    }
+    
+    @Override
+    public DirectorySummary getSummary(Path dir) throws Exception {
+        RetryTask<GetItemResult> task = new RetryTask(new GetSummaryTask(dir), retryCount, listTimeout, hedge);
+        Map<String, AttributeValue> item = task.call().getItem();
+        
+        if (item == null || !item.containsKey(LAST_WRITE_VALUE)) {
+            return null;
+        }
+        
+        long lastWrite = number(item, LAST_WRITE_VALUE);
+        
+        if (item.containsKey(DIGESTED_VALUE) && number(item, PENDING_VALUE) == 0) {
+            return new DirectorySummary(dir, lastWrite, number(item, ENTRIES_VALUE), number(item, DIGEST_VALUE));
+        }
+        
+        return new DirectorySummary(dir, lastWrite);
+    }
+    
+    @Override
+    public void putSummary(DirectorySummary summary) throws Exception {
+        RetryTask task = new RetryTask(new PutSummaryTask(summary), retryCount, addTimeout);
+        
+        task.call();
+    }
+    
+    /**
+     * Stamps the summary like an add would.  With digests the time is
+     * updated in place so the digest is kept.
+     */
+    @Override
+    public void stampSummary(Path dir) throws Exception {
+        if (!digestEnabled) {
+            stamp(dir);
+            return;
+        }
+        
+        Map<String, AttributeValueUpdate> updates = new HashMap<String, AttributeValueUpdate>();
+        updates.put(LAST_WRITE_VALUE, new AttributeValueUpdate(new AttributeValue().withN(System.currentTimeMillis() + ""), AttributeAction.PUT));
+        
+        new RetryTask(new UpdateSummaryTask(dir, updates), retryCount, addTimeout).call();
+    }
+    
+    /**
+     * Recomputes the digest from the live entries.  The summary is replaced
+     * only if no write marked itself pending since it was read, and not at
+     * all while a write is pending unless that mark is older than
+     * s3mper.metastore.summary.digest.grace, i.e. left by a failed writer.
+     */
+    @Override
+    public void rebuildSummary(Path dir) throws Exception {
+        RetryTask<GetItemResult> read = new RetryTask(new GetSummaryTask(dir), retryCount, listTimeout, hedge);
+        Map<String, AttributeValue> item = read.call().getItem();
+        long now = System.currentTimeMillis();
+        long lastWrite = item != null && item.containsKey(LAST_WRITE_VALUE) ? number(item, LAST_WRITE_VALUE) : now;
+        
+        if (item != null && number(item, PENDING_VALUE) != 0 && now - lastWrite < digestGrace) {
+            if (log.isDebugEnabled()) {
+                log.debug("Not rebuilding summary of " + dir.toUri() + " while writes are pending");
+            }
+            return;
+        }
+        
+        long entries = 0;
+        long digest = 0;
+        
+        for (FileInfo file : list(Collections.singletonList(dir), false)) {
+            entries++;
+            digest += DirectorySummary.hash(file.getPath().getName());
+        }
+        
+        ExpectedAttributeValue version = item != null && item.containsKey(VERSION_VALUE)
+                ? new ExpectedAttributeValue(item.get(VERSION_VALUE))
+                : new ExpectedAttributeValue(false);
+        
+        try {
+            new RetryTask(new PutSummaryTask(new DirectorySummary(dir, lastWrite, entries, digest),
+                    Collections.singletonMap(VERSION_VALUE, version)), 1, addTimeout).call();
+        } catch (Exception e) {
+            if (!(e instanceof ConditionalCheckFailedException || e.getCause() instanceof ConditionalCheckFailedException)) {
+                throw e;
+            }
+            
+            if (log.isDebugEnabled()) {
+                log.debug("Summary of " + dir.toUri() + " changed while rebuilding it");
+            }
+        }
+    }
+    
+    /**
+     * Returns the latest write time of the entries of a directory, including
+     * deleted ones, or -1 if it has none.  Used to seal directories.
+     */
+    public long getLastEntryWrite(Path dir) throws Exception {
+        long lastWrite = -1;
+        Key startKey = null;
+        
+        do {
+            RetryTask<QueryResult> queryTask = new RetryTask(new QueryTask(dir, startKey), retryCount, listTimeout, hedge);
+            QueryResult result = queryTask.call();
+            
+            for(Map<String, AttributeValue> item : result.getItems()) {
+                if(item.containsKey(EPOCH_VALUE)) {
+                    lastWrite = Math.max(lastWrite, Long.parseLong(item.get(EPOCH_VALUE).getN()));
+                }
+            }
+            
+            startKey = result.getLastEvaluatedKey();
+        } while(startKey != null);
+        
+        return lastWrite;
+    }
+    
+    static Key summaryKey(Path dir) {
+        return new Key(new AttributeValue(SUMMARY_HASH_PREFIX + normalize(dir)), new AttributeValue(SUMMARY_RANGE_KEY));
+    }
+    
+    static Map<String, AttributeValue> summaryItem(DirectorySummary summary) {
+        Key key = summaryKey(summary.getPath());
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        
+        item.put(HASH_KEY, key.getHashKeyElement());
+        item.put(RANGE_KEY, key.getRangeKeyElement());
+        item.put(LAST_WRITE_VALUE, new AttributeValue().withN(summary.getLastWrite() + ""));
+        
+        //Replacing the summary must fail a concurrent rebuild, whatever version it read
+        item.put(VERSION_VALUE, new AttributeValue().withN(Math.abs(versions.nextLong() / 2) + ""));
+        
+        if (summary.hasDigest()) {
+            item.put(DIGESTED_VALUE, new AttributeValue(Boolean.TRUE.toString()));
+            item.put(ENTRIES_VALUE, new AttributeValue().withN(summary.getEntries() + ""));
+            item.put(DIGEST_VALUE, new AttributeValue().withN(summary.getDigest() + ""));
+        }
+        
+        return item;
+    }
+    
+    /**
+     * Reads a number attribute written with ADD, which DynamoDB sums without
+     * overflow; the digest is compared modulo 2^64.
+     */
+    static long number(Map<String, AttributeValue> item, String name) {
+        if (!item.containsKey(name)) {
+            return 0;
+        }
+        
+        return new BigDecimal(item.get(name).getN()).toBigInteger().longValue();
+    }
 
     @Override
     public void close() {
     }
     
+    /**
+     * A Callable task that writes the entry of a path and returns the item it
+     * replaced, if any.  Counts its attempts so that a retried write, which
+     * may find the effect of its own earlier attempt, can be recognized.
+     */
+    private abstract class EntryWrite implements Callable<Map<String, AttributeValue>> {
+        private int attempts = 0;
+        
+        @Override
+        public Map<String, AttributeValue> call() throws Exception {
+            attempts++;
+            return write();
+        }
+        
+        int attempts() {
+            return attempts;
+        }
+        
+        abstract Map<String, AttributeValue> write() throws Exception;
+    }
+    
     /**
      * A Callable task for use with RetryTask to add a path to the
      * DynamoDB table.
      * 
      */
-    private class AddTask implements Callable<Object> {
+    private class AddTask extends EntryWrite {
         private Path path;
         private boolean directory;
         
@@ -287,7 +645,7 @@ public class DynamoDBMetastore implements FileSystemMetastore {
         }
         
         @Override
-        public Object call() throws Exception {
+        Map<String, AttributeValue> write() throws Exception {
             long epoch = System.currentTimeMillis();
             
             AttributeValue avPath = new AttributeValue(normalize(path.getParent()));
@@ -307,12 +665,22 @@ public class DynamoDBMetastore implements FileSystemMetastore {
             }
             
             put.setItem(items);
+            put.setReturnValues(digestEnabled ? ReturnValue.ALL_OLD : ReturnValue.NONE);
 
             if(log.isDebugEnabled()) {
                 log.debug("Adding metastore entry for: " + path.toUri());
             }
 
-            db.putItem(put);
+            acquire(writeLimiter, 2);
+            
+            Map<String, AttributeValue> previous;
+            
+            try {
+                previous = db.putItem(put).getAttributes();
+            } catch (AmazonServiceException e) {
+                failed(writeLimiter, e);
+                throw e;
+            }
 
             PutItemRequest tsPut = new PutItemRequest();
             tsPut.setTableName(tableName);
@@ -324,9 +692,16 @@ public class DynamoDBMetastore implements FileSystemMetastore {
             tsItems.put(LINK_RANGE_KEY, avFile);
             tsPut.setItem(tsItems);
             
-            db.putItem(tsPut);
+            try {
+                db.putItem(tsPut);
+            } catch (AmazonServiceException e) {
+                failed(writeLimiter, e);
+                throw e;
+            }
             
-            return null;
+            succeeded(writeLimiter);
+            
+            return previous;
         }
         
     }
@@ -360,7 +735,16 @@ public class DynamoDBMetastore implements FileSystemMetastore {
                 log.debug("Querying DynamoDB for path: " + path.toUri());
             }
             
-            return db.query(query);
+            acquire(readLimiter, 1);
+            
+            try {
+                QueryResult result = db.query(query);
+                succeeded(readLimiter);
+                return result;
+            } catch (AmazonServiceException e) {
+                failed(readLimiter, e);
+                throw e;
+            }
         }
         
     }
@@ -368,7 +752,7 @@ public class DynamoDBMetastore implements FileSystemMetastore {
     /**
      * A Callable task to be used with RetryTask to delete a file.
      */
-    class DeleteTask implements Callable<DeleteItemResult> {
+    class DeleteTask extends EntryWrite {
         private Path path;
 
         public DeleteTask(Path path) {
@@ -376,25 +760,127 @@ public class DynamoDBMetastore implements FileSystemMetastore {
         }
 
         @Override
-        public DeleteItemResult call() throws Exception {
+        Map<String, AttributeValue> write() throws Exception {
             DeleteItemRequest delete = new DeleteItemRequest();
             delete.setTableName(tableName);
             delete.setKey(new Key(new AttributeValue(normalize(path.getParent())), new AttributeValue(path.getName())));
-            delete.setReturnValues(ReturnValue.NONE);
+            delete.setReturnValues(digestEnabled ? ReturnValue.ALL_OLD : ReturnValue.NONE);
             
             if(log.isDebugEnabled()) {
                 log.debug("Deleting DynamoDB path: " + path.toUri());
             }
             
-            return db.deleteItem(delete);
+            acquire(writeLimiter, 1);
+            
+            try {
+                DeleteItemResult result = db.deleteItem(delete);
+                succeeded(writeLimiter);
+                return result.getAttributes();
+            } catch (AmazonServiceException e) {
+                failed(writeLimiter, e);
+                throw e;
+            }
         }
         
     }
     
+    /**
+     * A Callable task to be used with RetryTask to read a directory summary.
+     */
+    private class GetSummaryTask implements Callable<GetItemResult> {
+        private Path dir;
+
+        public GetSummaryTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public GetItemResult call() throws Exception {
+            GetItemRequest get = new GetItemRequest(tableName, summaryKey(dir)).withConsistentRead(true);
+            
+            acquire(readLimiter, 1);
+            
+            try {
+                GetItemResult result = db.getItem(get);
+                succeeded(readLimiter);
+                return result;
+            } catch (AmazonServiceException e) {
+                failed(readLimiter, e);
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * A Callable task to be used with RetryTask to write a directory summary.
+     */
+    private class PutSummaryTask implements Callable<Object> {
+        private DirectorySummary summary;
+        private Map<String, ExpectedAttributeValue> expected;
+
+        public PutSummaryTask(DirectorySummary summary) {
+            this(summary, null);
+        }
+
+        public PutSummaryTask(DirectorySummary summary, Map<String, ExpectedAttributeValue> expected) {
+            this.summary = summary;
+            this.expected = expected;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            Map<String, AttributeValue> item = summaryItem(summary);
+            
+            acquire(writeLimiter, 1);
+            
+            try {
+                db.putItem(new PutItemRequest().withTableName(tableName).withItem(item).withExpected(expected));
+                succeeded(writeLimiter);
+                return null;
+            } catch (AmazonServiceException e) {
+                failed(writeLimiter, e);
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * A Callable task to be used with RetryTask to update the attributes of
+     * a directory summary.
+     */
+    private class UpdateSummaryTask implements Callable<Object> {
+        private Path dir;
+        private Map<String, AttributeValueUpdate> updates;
+
+        public UpdateSummaryTask(Path dir, Map<String, AttributeValueUpdate> updates) {
+            this.dir = dir;
+            this.updates = updates;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            UpdateItemRequest update = new UpdateItemRequest()
+                    .withTableName(tableName)
+                    .withKey(summaryKey(dir))
+                    .withAttributeUpdates(updates);
+            
+            acquire(writeLimiter, 1);
+            
+            try {
+                db.updateItem(update);
+                succeeded(writeLimiter);
+                return null;
+            } catch (AmazonServiceException e) {
+                failed(writeLimiter, e);
+                throw e;
+            }
+        }
+    }
+    
     /**
      * Marks a path deleted but does not actually delete the entry.
      */
-    private class MarkDeletedTask implements Callable<UpdateItemResult> {
+    private class MarkDeletedTask extends EntryWrite {
         private Path path;
 
         public MarkDeletedTask(Path path) {
@@ -402,7 +888,7 @@ public class DynamoDBMetastore implements FileSystemMetastore {
         }
         
         @Override
-        public UpdateItemResult call() throws Exception {
+        Map<String, AttributeValue> write() throws Exception {
             UpdateItemRequest update = new UpdateItemRequest();
             update.setTableName(tableName);
             update.setKey(new Key(new AttributeValue(normalize(path.getParent())), new AttributeValue(path.getName())));
@@ -412,15 +898,57 @@ public class DynamoDBMetastore implements FileSystemMetastore {
             items.put(EPOCH_VALUE, new AttributeValueUpdate().withValue(new AttributeValue().withN(System.currentTimeMillis()+"")));
             
             update.setAttributeUpdates(items);
+            update.setReturnValues(digestEnabled ? ReturnValue.ALL_OLD : ReturnValue.NONE);
 
             if(log.isDebugEnabled()) {
                 log.debug("Marking DynamoDB path deleted: " + path.toUri());
             }
             
-            return db.updateItem(update);
+            acquire(writeLimiter, 1);
+            
+            try {
+                UpdateItemResult result = db.updateItem(update);
+                succeeded(writeLimiter);
+                return result.getAttributes();
+            } catch (AmazonServiceException e) {
+                failed(writeLimiter, e);
+                throw e;
+            }
         }
         
     }
+    
+    /**
+     * @return true if DynamoDB rejected the request for exceeding the
+     *         provisioned throughput
+     */
+    static boolean isThrottled(Exception e) {
+        if (!(e instanceof AmazonServiceException)) {
+            return false;
+        }
+        
+        String code = ((AmazonServiceException) e).getErrorCode();
+        
+        return "ProvisionedThroughputExceededException".equals(code) || "ThrottlingException".equals(code);
+    }
+    
+    static void acquire(AdaptiveRateLimiter limiter, int permits) throws TimeoutException {
+        if (limiter != null) {
+            limiter.acquire(permits);
+        }
+    }
+    
+    static void succeeded(AdaptiveRateLimiter limiter) {
+        if (limiter != null) {
+            limiter.onSuccess();
+        }
+    }
+    
+    static void failed(AdaptiveRateLimiter limiter, Exception e) {
+        if (limiter != null && isThrottled(e)) {
+            limiter.onThrottle();
+        }
+    }
   
     public int getRetryCount() {
         return retryCount;
@@ -436,6 +964,12 @@ public class DynamoDBMetastore implements FileSystemMetastore {
 
     public void setTimeout(int timeout) {
         this.timeout = timeout;
+        
+        if (listTimeout != null) {
+            listTimeout.setCeiling(timeout);
+            addTimeout.setCeiling(timeout);
+            deleteTimeout.setCeiling(timeout);
+        }
     }
     
 }
@@ -0,0 +1,271 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.netflix.bdp.s3mper.common.AdaptiveTimeout;
+import com.netflix.bdp.s3mper.common.HedgePolicy;
+import com.netflix.bdp.s3mper.common.RetryTask;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * FileSystemMetastore for any HBase cluster reachable through the standard
+ * client configuration (hbase-site.xml or properties on the job config).
+ *
+ * Uses the same layout as BigTableMetastore: one row per directory keyed by
+ * the directory uri, one column per entry.  Batch writes go out as a single
+ * Table.batch call, which the client splits into one multi request per
+ * region server and sends to all of them in parallel.
+ */
+public class HBaseMetastore implements FileSystemMetastore {
+
+    private static final Logger log = Logger.getLogger(HBaseMetastore.class);
+
+    static final byte[] COLUMN_FAMILY_NAME = Bytes.toBytes("md");
+
+    private Connection connection;
+    private TableName tableName;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private int retryCount = Integer.getInteger("s3mper.metastore.retry", 3);
+    private int timeout = Integer.getInteger("s3mper.metastore.timeout", 5000);
+    private HedgePolicy hedge;
+    private AdaptiveTimeout listTimeout;
+    private AdaptiveTimeout addTimeout;
+    private AdaptiveTimeout deleteTimeout;
+
+    @Override
+    public void initalize(URI uri, Configuration conf) throws Exception {
+        tableName = TableName.valueOf(conf.get("s3mper.metastore.name", "metadata"));
+        retryCount = conf.getInt("s3mper.metastore.retry", retryCount);
+        timeout = conf.getInt("s3mper.metastore.timeout", timeout);
+        hedge = HedgePolicy.fromConfiguration(conf);
+        listTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
+        addTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
+        deleteTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
+
+        connection = ConnectionFactory.createConnection(HBaseConfiguration.create(conf));
+
+        if (conf.getBoolean("s3mper.metastore.create", false)) {
+            createTable();
+        }
+    }
+
+    private void createTable() throws IOException {
+        Admin admin = connection.getAdmin();
+
+        try {
+            if (!admin.tableExists(tableName)) {
+                log.info("Creating metastore table: " + tableName);
+
+                HTableDescriptor descriptor = new HTableDescriptor(tableName);
+                descriptor.addFamily(new HColumnDescriptor(COLUMN_FAMILY_NAME));
+                admin.createTable(descriptor);
+            }
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Override
+    public List<FileInfo> list(List<Path> parents) throws Exception {
+        ImmutableList.Builder<FileInfo> result = ImmutableList.builder();
+
+        List<Get> gets = new ArrayList<Get>(parents.size());
+        for (Path parent : parents) {
+            gets.add(new Get(rowKey(parent)).addFamily(COLUMN_FAMILY_NAME));
+        }
+
+        Result[] rows = new RetryTask<Result[]>(new GetTask(gets), retryCount, listTimeout, hedge).call();
+
+        for (int i = 0; i < rows.length; i++) {
+            NavigableMap<byte[], byte[]> data = rows[i].getFamilyMap(COLUMN_FAMILY_NAME);
+            if (data == null) {
+                continue;
+            }
+
+            for (Map.Entry<byte[], byte[]> entry : data.entrySet()) {
+                String name = Bytes.toString(entry.getKey());
+                Map mmm = mapper.readValue(Bytes.toString(entry.getValue()), HashMap.class);
+                result.add(new FileInfo(new Path(parents.get(i), name), false, (Boolean) mmm.get("isDirectory")));
+            }
+        }
+
+        return result.build();
+    }
+
+    @Override
+    public void add(List<FileInfo> paths) throws Exception {
+        Map<Path, Put> puts = new LinkedHashMap<Path, Put>();
+
+        for (FileInfo path : paths) {
+            Path parent = path.getPath().getParent();
+            Put put = puts.get(parent);
+
+            if (put == null) {
+                put = new Put(rowKey(parent));
+                puts.put(parent, put);
+            }
+
+            addColumn(put, path);
+        }
+
+        batch(new ArrayList<Row>(puts.values()), addTimeout);
+    }
+
+    @Override
+    public void add(Path path, boolean directory) throws Exception {
+        Put put = new Put(rowKey(path.getParent()));
+        addColumn(put, new FileInfo(path, false, directory));
+
+        batch(Collections.<Row>singletonList(put), addTimeout);
+    }
+
+    @Override
+    public void delete(Path path) throws Exception {
+        delete(Collections.singletonList(path));
+    }
+
+    @Override
+    public void delete(List<Path> paths) throws Exception {
+        Map<Path, Delete> deletes = new LinkedHashMap<Path, Delete>();
+
+        for (Path path : paths) {
+            Path parent = path.getParent();
+            Delete delete = deletes.get(parent);
+
+            if (delete == null) {
+                delete = new Delete(rowKey(parent));
+                deletes.put(parent, delete);
+            }
+
+            delete.addColumns(COLUMN_FAMILY_NAME, Bytes.toBytes(path.getName()));
+        }
+
+        batch(new ArrayList<Row>(deletes.values()), deleteTimeout);
+    }
+
+    /**
+     * Sends all mutations in one batch.  The client groups them by region
+     * server and resubmits the actions of regions that moved on its own, so
+     * a retry here only covers a batch that failed as a whole.
+     */
+    private void batch(List<Row> mutations, AdaptiveTimeout batchTimeout) throws Exception {
+        if (mutations.isEmpty()) {
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Batching " + mutations.size() + " rows");
+        }
+
+        new RetryTask<Object>(new BatchTask(mutations), retryCount, batchTimeout).call();
+    }
+
+    private static byte[] rowKey(Path parent) {
+        return Bytes.toBytes(parent.toUri().toString());
+    }
+
+    private static void addColumn(Put put, FileInfo file) {
+        String jsonBlob = file.isDirectory() ? "{\"isDirectory\": true}" : "{\"isDirectory\": false}";
+
+        put.addColumn(
+                COLUMN_FAMILY_NAME,
+                Bytes.toBytes(file.getPath().getName()),
+                Bytes.toBytes(jsonBlob));
+    }
+
+    private Table getTable() throws IOException {
+        return connection.getTable(tableName);
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            log.error("Error while closing metastore", e);
+            throw new RuntimeException(e);
+        }
+        connection = null;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+
+        if (listTimeout != null) {
+            listTimeout.setCeiling(timeout);
+            addTimeout.setCeiling(timeout);
+            deleteTimeout.setCeiling(timeout);
+        }
+    }
+
+    /**
+     * Sends a batch of mutations.
+     */
+    private class BatchTask implements Callable<Object> {
+
+        private final List<Row> mutations;
+
+        public BatchTask(List<Row> mutations) {
+            this.mutations = mutations;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            Table table = getTable();
+
+            try {
+                table.batch(mutations, new Object[mutations.size()]);
+            } finally {
+                table.close();
+            }
+
+            return null;
+        }
+
+    }
+
+    private class GetTask implements Callable<Result[]> {
+
+        private final List<Get> gets;
+
+        public GetTask(List<Get> gets) {
+            this.gets = gets;
+        }
+
+        @Override
+        public Result[] call() throws Exception {
+            Table table = getTable();
+
+            try {
+                return table.get(gets);
+            } finally {
+                table.close();
+            }
+        }
+
+    }
+
+}
@@ -21,8 +21,9 @@ package com.netflix.bdp.s3mper.metastore.impl;
 
 import com.google.common.collect.ImmutableList;
 
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
 import com.netflix.bdp.s3mper.metastore.FileInfo;
-import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.SummarizingMetastore;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -37,14 +38,17 @@ import java.util.*;
  *
  * @author liljencrantz@spotify.com
  */
-public class InMemoryMetastore implements FileSystemMetastore {
+public class InMemoryMetastore implements SummarizingMetastore {
     private static final Logger log = Logger.getLogger(InMemoryMetastore.class.getName());
 
     private Map<Path, List<FileInfo>> data;
+    private Map<Path, DirectorySummary> summaries;
 
     @Override
     public void initalize(URI uri, Configuration conf) throws Exception {
         data = new HashMap<Path, List<FileInfo>>();
+        summaries = new HashMap<Path, DirectorySummary>();
+        MetastoreFallback.configure(conf);
     }
 
     @Override
@@ -66,22 +70,30 @@ public class InMemoryMetastore implements FileSystemMetastore {
     @Override
     public void add(Path path, boolean directory) throws Exception {
         synchronized (this) {
-            delete(path);
+            boolean existed = remove(path);
             get(path.getParent()).add(new FileInfo(path, false, directory));
+            written(path, existed ? 0 : 1);
         }
     }
 
     @Override
     public void delete(final Path path) throws Exception {
         synchronized (this) {
-            List<FileInfo> list = get(path.getParent());
-            for (Iterator<FileInfo> it = list.iterator(); it.hasNext();) {
-                FileInfo fi = it.next();
-                if (fi.getPath().equals(path)) {
-                    it.remove();
-                }
+            written(path, remove(path) ? -1 : 0);
+        }
+    }
+
+    private boolean remove(Path path) {
+        boolean removed = false;
+        List<FileInfo> list = get(path.getParent());
+        for (Iterator<FileInfo> it = list.iterator(); it.hasNext();) {
+            FileInfo fi = it.next();
+            if (fi.getPath().equals(path)) {
+                it.remove();
+                removed = true;
             }
         }
+        return removed;
     }
 
     @Override
@@ -89,9 +101,73 @@ public class InMemoryMetastore implements FileSystemMetastore {
         MetastoreFallback.delete(this, path);
     }
 
+    @Override
+    public DirectorySummary getSummary(Path dir) throws Exception {
+        synchronized (this) {
+            return summaries.get(dir);
+        }
+    }
+
+    @Override
+    public void putSummary(DirectorySummary summary) throws Exception {
+        synchronized (this) {
+            summaries.put(summary.getPath(), summary);
+        }
+    }
+
+    @Override
+    public void stampSummary(Path dir) throws Exception {
+        synchronized (this) {
+            DirectorySummary summary = summaries.get(dir);
+            long now = System.currentTimeMillis();
+
+            if (summary == null || !summary.hasDigest()) {
+                summaries.put(dir, digest(dir, now));
+            } else {
+                summaries.put(dir, new DirectorySummary(dir, now, summary.getEntries(), summary.getDigest()));
+            }
+        }
+    }
+
+    @Override
+    public void rebuildSummary(Path dir) throws Exception {
+        synchronized (this) {
+            DirectorySummary summary = summaries.get(dir);
+            summaries.put(dir, digest(dir, summary == null ? System.currentTimeMillis() : summary.getLastWrite()));
+        }
+    }
+
+    /**
+     * Updates the summary of the parent of a written path by the change in
+     * the number of its entries.
+     */
+    private void written(Path path, int delta) {
+        Path dir = path.getParent();
+        DirectorySummary summary = summaries.get(dir);
+        long now = System.currentTimeMillis();
+
+        if (summary == null || !summary.hasDigest()) {
+            summaries.put(dir, digest(dir, now));
+        } else {
+            summaries.put(dir, new DirectorySummary(dir, now, summary.getEntries() + delta,
+                    summary.getDigest() + delta * DirectorySummary.hash(path.getName())));
+        }
+    }
+
+    private DirectorySummary digest(Path dir, long lastWrite) {
+        long digest = 0;
+        List<FileInfo> entries = get(dir);
+
+        for (FileInfo entry : entries) {
+            digest += DirectorySummary.hash(entry.getPath().getName());
+        }
+        return new DirectorySummary(dir, lastWrite, entries.size(), digest);
+    }
+
     @Override
     public void close() {
         data = null;
+        summaries = null;
     }
 
     @Override
@@ -0,0 +1,564 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.netflix.bdp.s3mper.common.AdaptiveTimeout;
+import com.netflix.bdp.s3mper.common.RetryTask;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.*;
+
+/**
+ * Implements FileSystemMetastore on top of a relational database accessed
+ * through JDBC.  The table layout mirrors the DynamoDB one:
+ *
+ *      dir (String)      |  name (String)  |  epoch  |  flags
+ *  //netflix/data            test.xml         <ms>      <bits>
+ *
+ * Batch operations are executed as a single JDBC batch inside one transaction
+ * so that bulk commits cost one round trip rather than one per file.
+ *
+ * Each attempt borrows its own connection and up to
+ * s3mper.metastore.jdbc.connections idle ones are kept for reuse.  Statements
+ * get a query timeout derived from the attempt timeout.
+ */
+public class JdbcMetastore implements FileSystemMetastore {
+    private static final Logger log = Logger.getLogger(JdbcMetastore.class.getName());
+
+    static final int FLAG_DIRECTORY = 1;
+    static final int FLAG_DELETED = 2;
+
+    /** Upper bound on bind parameters in a single IN clause */
+    private static final int LIST_CHUNK = 500;
+
+    private String tableName = "s3mper_metastore";
+    private String url;
+    private String user;
+    private String password;
+
+    private BlockingQueue<Connection> idle = new ArrayBlockingQueue<Connection>(4);
+    private volatile boolean closed = false;
+
+    private int retryCount = Integer.getInteger("s3mper.metastore.retry", 3);
+    private int timeout = Integer.getInteger("s3mper.metastore.timeout", 5000);
+    private AdaptiveTimeout listTimeout;
+    private AdaptiveTimeout addTimeout;
+    private AdaptiveTimeout deleteTimeout;
+    private String scheme;
+
+    private boolean deleteMarkerEnabled;
+
+    /**
+     * Opens the connection and creates the metastore table and index if
+     * they don't already exist.
+     *
+     * @param uri
+     * @param conf
+     * @throws Exception
+     */
+    @Override
+    public void initalize(URI uri, Configuration conf) throws Exception {
+        scheme = uri.getScheme();
+
+        url = conf.get("s3mper.metastore.jdbc.url");
+        user = conf.get("s3mper.metastore.jdbc.user");
+        password = conf.get("s3mper.metastore.jdbc.password");
+
+        if(url == null) {
+            throw new IllegalArgumentException("s3mper.metastore.jdbc.url must be set to use the JDBC metastore");
+        }
+
+        String driver = conf.get("s3mper.metastore.jdbc.driver");
+
+        if(driver != null) {
+            Class.forName(driver);
+        }
+
+        retryCount = conf.getInt("s3mper.metastore.retry", retryCount);
+        timeout = conf.getInt("s3mper.metastore.timeout", timeout);
+        listTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
+        addTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
+        deleteTimeout = AdaptiveTimeout.fromConfiguration(conf, timeout);
+
+        tableName = conf.get("s3mper.metastore.name", tableName);
+
+        idle = new ArrayBlockingQueue<Connection>(Math.max(1, conf.getInt("s3mper.metastore.jdbc.connections", 4)));
+
+        deleteMarkerEnabled = conf.getBoolean("s3mper.metastore.deleteMarker.enabled", false);
+
+        if(conf.getBoolean("s3mper.metastore.create", false)) {
+            createTable();
+        }
+    }
+
+    /**
+     * Creates the table with a primary key on (dir, name), which serves the
+     * directory range query, and a secondary index on epoch for expiration.
+     *
+     * @throws SQLException
+     */
+    private void createTable() throws SQLException {
+        Connection c = borrow();
+        boolean failed = true;
+
+        try {
+            Statement stmt = c.createStatement();
+
+            try {
+                try {
+                    stmt.executeQuery("SELECT dir FROM " + tableName + " WHERE 1 = 0").close();
+                    failed = false;
+                    return;
+                } catch (SQLException e) {
+                    log.info("Creating metastore table: " + tableName);
+                    c.rollback();
+                }
+
+                stmt.executeUpdate("CREATE TABLE " + tableName + " ("
+                        + "dir VARCHAR(1024) NOT NULL, "
+                        + "name VARCHAR(1024) NOT NULL, "
+                        + "epoch BIGINT NOT NULL, "
+                        + "flags INT NOT NULL, "
+                        + "PRIMARY KEY (dir, name))");
+                stmt.executeUpdate("CREATE INDEX " + tableName + "_epoch ON " + tableName + " (epoch)");
+                c.commit();
+                failed = false;
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            release(c, failed);
+        }
+    }
+
+    /**
+     * Takes an idle connection or opens a new one.  Every attempt uses its
+     * own connection, so a retry never waits behind an attempt that timed
+     * out but is still running.
+     */
+    private Connection borrow() throws SQLException {
+        Connection c;
+
+        while ((c = idle.poll()) != null) {
+            if (!c.isClosed()) {
+                return c;
+            }
+        }
+
+        c = DriverManager.getConnection(url, user, password);
+        c.setAutoCommit(false);
+        return c;
+    }
+
+    /**
+     * Returns a connection to the idle connections, or closes it if the
+     * attempt failed, since its state is unknown at that point, or if
+     * enough connections are idle.
+     */
+    private void release(Connection c, boolean failed) {
+        if (!failed && !closed && idle.offer(c)) {
+            return;
+        }
+
+        try {
+            if (failed) {
+                c.rollback();
+            }
+            c.close();
+        } catch (SQLException e) {
+            log.debug("Error closing metastore connection", e);
+        }
+    }
+
+    /**
+     * Limits a statement to the current attempt timeout, so that a statement
+     * blocked in the database does not outlive its attempt.
+     */
+    private static void limit(Statement stmt, AdaptiveTimeout timeout) throws SQLException {
+        stmt.setQueryTimeout((int) Math.max(1, (timeout.getTimeout() + 999) / 1000));
+    }
+
+    @Override
+    public List<FileInfo> list(List<Path> paths) throws Exception {
+        ImmutableList.Builder<FileInfo> result = ImmutableList.builder();
+
+        for(List<Path> chunk : Lists.partition(paths, LIST_CHUNK)) {
+            result.addAll(new RetryTask<List<FileInfo>>(new ListTask(chunk), retryCount, listTimeout).call());
+        }
+
+        return result.build();
+    }
+
+    @Override
+    public void add(List<FileInfo> paths) throws Exception {
+        if(paths.isEmpty()) {
+            return;
+        }
+
+        new RetryTask<Object>(new AddTask(paths), retryCount, addTimeout).call();
+    }
+
+    @Override
+    public void add(Path path, boolean directory) throws Exception {
+        add(ImmutableList.of(new FileInfo(path, false, directory)));
+    }
+
+    @Override
+    public void delete(Path path) throws Exception {
+        delete(ImmutableList.of(path));
+    }
+
+    @Override
+    public void delete(List<Path> paths) throws Exception {
+        if(paths.isEmpty()) {
+            return;
+        }
+
+        new RetryTask<Object>(new DeleteTask(paths), retryCount, deleteTimeout).call();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        for (Connection c; (c = idle.poll()) != null; ) {
+            try {
+                c.close();
+            } catch (SQLException e) {
+                log.error("Error while closing metastore", e);
+            }
+        }
+    }
+
+    private static int flags(boolean directory, boolean deleted) {
+        return (directory ? FLAG_DIRECTORY : 0) | (deleted ? FLAG_DELETED : 0);
+    }
+
+    /**
+     * A Callable task that fetches all entries for a set of directories
+     * with a single query.
+     */
+    private class ListTask implements Callable<List<FileInfo>> {
+        private final List<Path> paths;
+
+        public ListTask(List<Path> paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        public List<FileInfo> call() throws Exception {
+            StringBuilder sql = new StringBuilder("SELECT dir, name, flags FROM ").append(tableName).append(" WHERE dir IN (");
+
+            for (int i = 0; i < paths.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+
+            sql.append(")");
+
+            List<FileInfo> listing = new ArrayList<FileInfo>();
+            Connection c = borrow();
+            boolean failed = true;
+
+            try {
+                PreparedStatement stmt = c.prepareStatement(sql.toString());
+
+                try {
+                    limit(stmt, listTimeout);
+
+                    for (int i = 0; i < paths.size(); i++) {
+                        stmt.setString(i + 1, normalize(paths.get(i)));
+                    }
+
+                    ResultSet rs = stmt.executeQuery();
+
+                    while (rs.next()) {
+                        int flags = rs.getInt(3);
+                        boolean deleted = (flags & FLAG_DELETED) != 0;
+
+                        if(deleted && !deleteMarkerEnabled) {
+                            continue;
+                        }
+
+                        listing.add(new FileInfo(new Path(scheme + ":" + rs.getString(1) + "/" + rs.getString(2)),
+                                deleted, (flags & FLAG_DIRECTORY) != 0));
+                    }
+
+                    rs.close();
+                } finally {
+                    stmt.close();
+                }
+
+                c.commit();
+                failed = false;
+            } finally {
+                release(c, failed);
+            }
+
+            return listing;
+        }
+    }
+
+    /**
+     * A Callable task that writes a set of entries as one batch in a single
+     * transaction.  Existing entries are replaced so re-adding a path clears
+     * any delete marker.  A path listed more than once is written once, as
+     * last listed, since the inserts would otherwise violate the primary key.
+     */
+    private class AddTask implements Callable<Object> {
+        private final List<FileInfo> files;
+
+        public AddTask(List<FileInfo> files) {
+            Map<String, FileInfo> unique = new LinkedHashMap<String, FileInfo>();
+
+            for (FileInfo file : files) {
+                unique.remove(normalize(file.getPath()));
+                unique.put(normalize(file.getPath()), file);
+            }
+
+            this.files = new ArrayList<FileInfo>(unique.values());
+        }
+
+        @Override
+        public Object call() throws Exception {
+            long epoch = System.currentTimeMillis();
+            Connection c = borrow();
+            boolean failed = true;
+
+            try {
+                PreparedStatement delete = c.prepareStatement("DELETE FROM " + tableName + " WHERE dir = ? AND name = ?");
+                PreparedStatement insert = c.prepareStatement("INSERT INTO " + tableName + " (dir, name, epoch, flags) VALUES (?, ?, ?, ?)");
+
+                try {
+                    limit(delete, addTimeout);
+                    limit(insert, addTimeout);
+
+                    for (FileInfo file : files) {
+                        String dir = normalize(file.getPath().getParent());
+                        String name = file.getPath().getName();
+
+                        delete.setString(1, dir);
+                        delete.setString(2, name);
+                        delete.addBatch();
+
+                        insert.setString(1, dir);
+                        insert.setString(2, name);
+                        insert.setLong(3, epoch);
+                        insert.setInt(4, flags(file.isDirectory(), false));
+                        insert.addBatch();
+                    }
+
+                    if(log.isDebugEnabled()) {
+                        log.debug("Adding " + files.size() + " metastore entries in one batch");
+                    }
+
+                    delete.executeBatch();
+                    insert.executeBatch();
+                } finally {
+                    delete.close();
+                    insert.close();
+                }
+
+                c.commit();
+                failed = false;
+            } finally {
+                release(c, failed);
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * A Callable task that deletes (or marks deleted) a set of entries as one
+     * batch in a single transaction.  A marker is written even for a path
+     * that has no entry, as DynamoDBMetastore does, so that a file this
+     * metastore never registered is still delisted.  A marker inserted
+     * concurrently with an add of the same path fails on the primary key and
+     * is retried as an update.
+     */
+    private class DeleteTask implements Callable<Object> {
+        private final List<Path> paths;
+
+        public DeleteTask(List<Path> paths) {
+            Map<String, Path> unique = new LinkedHashMap<String, Path>();
+
+            for (Path path : paths) {
+                unique.put(normalize(path), path);
+            }
+
+            this.paths = new ArrayList<Path>(unique.values());
+        }
+
+        @Override
+        public Object call() throws Exception {
+            long epoch = System.currentTimeMillis();
+            Connection c = borrow();
+            boolean failed = true;
+
+            try {
+                if(log.isDebugEnabled()) {
+                    log.debug("Deleting " + paths.size() + " metastore entries in one batch");
+                }
+
+                if(deleteMarkerEnabled) {
+                    mark(c, epoch);
+                } else {
+                    PreparedStatement stmt = c.prepareStatement("DELETE FROM " + tableName + " WHERE dir = ? AND name = ?");
+
+                    try {
+                        limit(stmt, deleteTimeout);
+
+                        for (Path path : paths) {
+                            stmt.setString(1, normalize(path.getParent()));
+                            stmt.setString(2, path.getName());
+                            stmt.addBatch();
+                        }
+
+                        stmt.executeBatch();
+                    } finally {
+                        stmt.close();
+                    }
+                }
+
+                c.commit();
+                failed = false;
+            } finally {
+                release(c, failed);
+            }
+
+            return null;
+        }
+
+        /**
+         * Sets the deleted bit of existing entries and inserts markers for
+         * the paths that have none.
+         */
+        private void mark(Connection c, long epoch) throws SQLException {
+            Map<String, Integer> existing = new LinkedHashMap<String, Integer>();
+
+            for (List<Path> chunk : Lists.partition(paths, LIST_CHUNK / 2)) {
+                StringBuilder sql = new StringBuilder("SELECT dir, name, flags FROM ").append(tableName).append(" WHERE ");
+
+                for (int i = 0; i < chunk.size(); i++) {
+                    sql.append(i == 0 ? "" : " OR ").append("(dir = ? AND name = ?)");
+                }
+
+                PreparedStatement select = c.prepareStatement(sql.toString());
+
+                try {
+                    limit(select, deleteTimeout);
+
+                    for (int i = 0; i < chunk.size(); i++) {
+                        select.setString(2 * i + 1, normalize(chunk.get(i).getParent()));
+                        select.setString(2 * i + 2, chunk.get(i).getName());
+                    }
+
+                    ResultSet rs = select.executeQuery();
+
+                    while (rs.next()) {
+                        existing.put(rs.getString(1) + "/" + rs.getString(2), rs.getInt(3));
+                    }
+
+                    rs.close();
+                } finally {
+                    select.close();
+                }
+            }
+
+            PreparedStatement update = c.prepareStatement("UPDATE " + tableName + " SET flags = ?, epoch = ? WHERE dir = ? AND name = ?");
+            PreparedStatement insert = c.prepareStatement("INSERT INTO " + tableName + " (dir, name, epoch, flags) VALUES (?, ?, ?, ?)");
+
+            try {
+                limit(update, deleteTimeout);
+                limit(insert, deleteTimeout);
+
+                for (Path path : paths) {
+                    String dir = normalize(path.getParent());
+                    Integer flags = existing.get(dir + "/" + path.getName());
+
+                    if (flags != null) {
+                        update.setInt(1, flags | FLAG_DELETED);
+                        update.setLong(2, epoch);
+                        update.setString(3, dir);
+                        update.setString(4, path.getName());
+                        update.addBatch();
+                    } else {
+                        insert.setString(1, dir);
+                        insert.setString(2, path.getName());
+                        insert.setLong(3, epoch);
+                        insert.setInt(4, FLAG_DELETED);
+                        insert.addBatch();
+                    }
+                }
+
+                update.executeBatch();
+                insert.executeBatch();
+            } finally {
+                update.close();
+                insert.close();
+            }
+        }
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    public void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+
+        if (listTimeout != null) {
+            listTimeout.setCeiling(timeout);
+            addTimeout.setCeiling(timeout);
+            deleteTimeout.setCeiling(timeout);
+        }
+    }
+
+}
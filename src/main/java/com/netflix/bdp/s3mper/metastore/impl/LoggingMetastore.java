@@ -1,7 +1,10 @@
 package com.netflix.bdp.s3mper.metastore.impl;
 
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
 import com.netflix.bdp.s3mper.metastore.FileInfo;
 import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.Metastore;
+import com.netflix.bdp.s3mper.metastore.SummarizingMetastore;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -10,7 +13,7 @@ import org.apache.log4j.Logger;
 import java.net.URI;
 import java.util.List;
 
-public class LoggingMetastore implements FileSystemMetastore {
+public class LoggingMetastore implements SummarizingMetastore {
   private static final Logger log = Logger.getLogger(LoggingMetastore.class);
   private final FileSystemMetastore wrapped;
 
@@ -65,6 +68,31 @@ public class LoggingMetastore implements FileSystemMetastore {
     wrapped.delete(paths);
   }
 
+  @Override
+  public DirectorySummary getSummary(Path dir) throws Exception {
+    DirectorySummary summary = Metastore.getSummary(wrapped, dir);
+    log.debug("Metastore summary for " + dir.toUri() + ": " + summary);
+    return summary;
+  }
+
+  @Override
+  public void putSummary(DirectorySummary summary) throws Exception {
+    log.debug("Putting metastore summary: " + summary);
+    Metastore.putSummary(wrapped, summary);
+  }
+
+  @Override
+  public void stampSummary(Path dir) throws Exception {
+    log.debug("Stamping metastore summary for: " + dir.toUri());
+    Metastore.stampSummary(wrapped, dir);
+  }
+
+  @Override
+  public void rebuildSummary(Path dir) throws Exception {
+    log.debug("Rebuilding metastore summary for: " + dir.toUri());
+    Metastore.rebuildSummary(wrapped, dir);
+  }
+
   @Override
   public void close() {
     log.debug("Closing metastore");
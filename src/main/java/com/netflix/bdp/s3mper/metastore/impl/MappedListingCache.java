@@ -0,0 +1,306 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed size, hash addressed table of directory listings stored in a memory
+ * mapped file so that every JVM on the host shares the same entries.
+ *
+ * Each slot is guarded by a sequence number: writers take an exclusive file
+ * lock on the slot, bump the sequence to an odd value, write the payload and
+ * bump it back to even.  Readers never lock; they copy the slot and accept it
+ * only if the sequence was even and unchanged and the payload checksum and key
+ * match, so a torn or concurrent write is simply treated as a miss.
+ *
+ * The sequence number also serves as the generation of the slot: a listing
+ * fetched after a miss is only stored if the slot was not written, and in
+ * particular not invalidated, since the generation read before the fetch.
+ */
+public class MappedListingCache {
+    private static final Logger log = Logger.getLogger(MappedListingCache.class);
+
+    private static final int VERSION_OFFSET = 0;
+    private static final int EXPIRY_OFFSET = 8;
+    private static final int LENGTH_OFFSET = 16;
+    private static final int CRC_OFFSET = 20;
+    private static final int HEADER_SIZE = 24;
+
+    private static final int FLAG_DIRECTORY = 1;
+    private static final int FLAG_DELETED = 2;
+
+    private final int slots;
+    private final int slotSize;
+    private final long ttl;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    /** File locks are held per JVM, so threads of this JVM serialize here first */
+    private final Striped<Lock> slotLocks = Striped.lock(64);
+
+    public MappedListingCache(File dir, int slots, int slotSize, long ttl) throws IOException {
+        if ((long) slots * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Shared cache size must be less than 2GB");
+        }
+
+        if (slotSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Shared cache slot size too small: " + slotSize);
+        }
+
+        this.slots = slots;
+        this.slotSize = slotSize;
+        this.ttl = ttl;
+
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create shared cache directory: " + dir);
+        }
+
+        // The geometry is part of the name so that differently configured JVMs
+        // never interpret each other's slots.
+        File cacheFile = new File(dir, "listings-" + slots + "x" + slotSize + ".cache");
+        int size = slots * slotSize;
+
+        file = new RandomAccessFile(cacheFile, "rw");
+
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+
+        channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        log.debug("Mapped shared listing cache: " + cacheFile);
+    }
+
+    /**
+     * Returns the cached listing for the key or null if it is absent, expired
+     * or currently being written.
+     */
+    public List<FileInfo> get(String key) {
+        int base = slot(key);
+        ByteBuffer view = buffer.duplicate();
+
+        long version = view.getLong(base + VERSION_OFFSET);
+
+        if ((version & 1) != 0) {
+            return null;
+        }
+
+        long expiry = view.getLong(base + EXPIRY_OFFSET);
+        int length = view.getInt(base + LENGTH_OFFSET);
+        int crc = view.getInt(base + CRC_OFFSET);
+
+        if (expiry < System.currentTimeMillis() || length <= 0 || length > slotSize - HEADER_SIZE) {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        view.position(base + HEADER_SIZE);
+        view.get(payload);
+
+        if (view.getLong(base + VERSION_OFFSET) != version || checksum(payload) != crc) {
+            return null;
+        }
+
+        try {
+            return decode(key, payload);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the generation of the slot of the key, to be read before
+     * fetching a listing to put.  A slot being written has no generation and
+     * returns -1, which no put accepts.
+     */
+    public long generation(String key) {
+        long version = buffer.getLong(slot(key) + VERSION_OFFSET);
+
+        return (version & 1) != 0 ? -1 : version;
+    }
+
+    /**
+     * Stores the listing for the key if the slot is still at the given
+     * generation.  If another process is writing the same slot, the slot
+     * changed, or the listing does not fit, the write is skipped.
+     */
+    public void put(String key, List<FileInfo> listing, long generation) {
+        byte[] payload;
+
+        try {
+            payload = encode(key, listing);
+        } catch (IOException e) {
+            log.debug("Failed to encode listing for shared cache: " + key, e);
+            return;
+        }
+
+        if (payload.length > slotSize - HEADER_SIZE) {
+            return;
+        }
+
+        write(key, payload, System.currentTimeMillis() + ttl, generation);
+    }
+
+    /**
+     * Expires the slot for the key so that the next reader on any JVM goes to
+     * the metastore.  Waits for a concurrent writer of the slot to finish.
+     */
+    public void invalidate(String key) {
+        write(key, null, 0, -1);
+    }
+
+    /**
+     * Writes the slot of the key.  A put (generation >= 0) gives up if the
+     * slot is locked or no longer at the generation; an invalidation waits
+     * for the lock.
+     */
+    private void write(String key, byte[] payload, long expiry, long generation) {
+        boolean wait = generation < 0;
+        int base = slot(key);
+        Lock local = slotLocks.get(base);
+
+        if (wait) {
+            local.lock();
+        } else if (!local.tryLock()) {
+            return;
+        }
+
+        try {
+            FileLock lock = null;
+
+            try {
+                lock = wait ? channel.lock(base, slotSize, false) : channel.tryLock(base, slotSize, false);
+            } catch (OverlappingFileLockException e) {
+                log.debug("Shared cache slot already locked by this JVM", e);
+            } catch (IOException e) {
+                log.debug("Failed to lock shared cache slot", e);
+            }
+
+            if (lock == null) {
+                return;
+            }
+
+            try {
+                if (!wait && buffer.getLong(base + VERSION_OFFSET) != generation) {
+                    return;
+                }
+
+                writeSlot(base, payload, expiry);
+            } finally {
+                try {
+                    lock.release();
+                } catch (IOException e) {
+                    log.debug("Failed to release shared cache slot", e);
+                }
+            }
+        } finally {
+            local.unlock();
+        }
+    }
+
+    private void writeSlot(int base, byte[] payload, long expiry) {
+        ByteBuffer view = buffer.duplicate();
+        long version = view.getLong(base + VERSION_OFFSET);
+
+        if ((version & 1) != 0) {
+            // A writer died mid update, holding the lock guarantees it is gone
+            version++;
+        }
+
+        view.putLong(base + VERSION_OFFSET, version + 1);
+        view.putLong(base + EXPIRY_OFFSET, expiry);
+
+        if (payload != null) {
+            view.putInt(base + LENGTH_OFFSET, payload.length);
+            view.putInt(base + CRC_OFFSET, checksum(payload));
+            view.position(base + HEADER_SIZE);
+            view.put(payload);
+        } else {
+            view.putInt(base + LENGTH_OFFSET, 0);
+        }
+
+        view.putLong(base + VERSION_OFFSET, version + 2);
+    }
+
+    public void close() {
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            log.debug("Failed to close shared cache", e);
+        }
+    }
+
+    private int slot(String key) {
+        int hash = Hashing.murmur3_32().hashString(key, Charsets.UTF_8).asInt();
+        return ((hash & Integer.MAX_VALUE) % slots) * slotSize;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(String key, List<FileInfo> listing) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeUTF(key);
+        out.writeInt(listing.size());
+
+        for (FileInfo info : listing) {
+            out.writeUTF(info.getPath().toString());
+            out.writeByte((info.isDirectory() ? FLAG_DIRECTORY : 0) | (info.isDeleted() ? FLAG_DELETED : 0));
+        }
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static List<FileInfo> decode(String key, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        if (!key.equals(in.readUTF())) {
+            return null;
+        }
+
+        int count = in.readInt();
+        List<FileInfo> listing = new ArrayList<FileInfo>(count);
+
+        for (int i = 0; i < count; i++) {
+            Path path = new Path(in.readUTF());
+            int flags = in.readByte();
+
+            listing.add(new FileInfo(path, (flags & FLAG_DELETED) != 0, (flags & FLAG_DIRECTORY) != 0));
+        }
+
+        return listing;
+    }
+}
@@ -1,27 +1,168 @@
 package com.netflix.bdp.s3mper.metastore.impl;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.bdp.s3mper.common.Deadline;
 import com.netflix.bdp.s3mper.metastore.FileInfo;
 import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.MetastoreBatchException;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility class that provides fallback implementations of batch API calls
+ * on top of the single path calls.
+ *
+ * The list is split into chunks of s3mper.metastore.fallback.chunk items
+ * that are worked off concurrently by the calling thread and up to
+ * s3mper.metastore.fallback.threads - 1 threads from a shared pool.  A
+ * failing item does not stop the others.  Once every item has been tried a
+ * single failure is rethrown as is, several are reported together in a
+ * MetastoreBatchException (or a TimeoutException if they all timed out).
  *
  * @author dweeks
  */
 public class MetastoreFallback {
 
-    static void add(FileSystemMetastore metastore, List<FileInfo> path) throws Exception {
-        for (FileInfo file: path) {
-            metastore.add(file.getPath(), file.isDirectory());
+    private static volatile int threads = Integer.getInteger("s3mper.metastore.fallback.threads", 8);
+    private static volatile int chunkSize = Integer.getInteger("s3mper.metastore.fallback.chunk", 16);
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3mper-fallback-%d").build());
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Applies the fallback settings of the configuration.  Called by the
+     * backends on initialization.
+     */
+    static synchronized void configure(Configuration conf) {
+        threads = Math.max(1, conf.getInt("s3mper.metastore.fallback.threads", threads));
+        chunkSize = Math.max(1, conf.getInt("s3mper.metastore.fallback.chunk", chunkSize));
+
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
         }
     }
 
-    static void delete(FileSystemMetastore metastore, List<Path> path) throws Exception {
-        for (Path file: path) {
-            metastore.delete(file);
+    static void add(final FileSystemMetastore metastore, List<FileInfo> path) throws Exception {
+        apply(path, new Operation<FileInfo>() {
+            @Override
+            public Path path(FileInfo item) {
+                return item.getPath();
+            }
+
+            @Override
+            public void apply(FileInfo item) throws Exception {
+                metastore.add(item.getPath(), item.isDirectory());
+            }
+        }, "add");
+    }
+
+    static void delete(final FileSystemMetastore metastore, List<Path> path) throws Exception {
+        apply(path, new Operation<Path>() {
+            @Override
+            public Path path(Path item) {
+                return item;
+            }
+
+            @Override
+            public void apply(Path item) throws Exception {
+                metastore.delete(item);
+            }
+        }, "delete");
+    }
+
+    private interface Operation<T> {
+        Path path(T item);
+        void apply(T item) throws Exception;
+    }
+
+    private static <T> void apply(final List<T> items, final Operation<T> operation, String name) throws Exception {
+        final Map<Path, Exception> failures = Collections.synchronizedMap(new LinkedHashMap<Path, Exception>());
+        final int chunk = chunkSize;
+        final int chunks = (items.size() + chunk - 1) / chunk;
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(chunks);
+        final Long deadline = Deadline.current();
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                Long previous = Deadline.current();
+                Deadline.restore(deadline);
+
+                try {
+                    for (int c = next.getAndIncrement(); c < chunks; c = next.getAndIncrement()) {
+                        try {
+                            for (T item : items.subList(c * chunk, Math.min(items.size(), (c + 1) * chunk))) {
+                                try {
+                                    operation.apply(item);
+                                } catch (Exception e) {
+                                    failures.put(operation.path(item), e);
+                                }
+                            }
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                } finally {
+                    Deadline.restore(previous);
+                }
+            }
+        };
+
+        //Helpers that start late find no chunks left, so the caller never waits on the queue
+        for (int i = 1; i < Math.min(threads, chunks); i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+
+        worker.run();
+        done.await();
+
+        if (failures.isEmpty()) {
+            return;
         }
+
+        if (failures.size() == 1) {
+            throw failures.values().iterator().next();
+        }
+
+        MetastoreBatchException batch = new MetastoreBatchException(
+                String.format("Metastore %s failed for %d of %d paths", name, failures.size(), items.size()),
+                new LinkedHashMap<Path, Exception>(failures));
+
+        //Keep timeouts recognizable to callers that treat them differently
+        for (Exception e : failures.values()) {
+            if (!(e instanceof TimeoutException)) {
+                throw batch;
+            }
+        }
+
+        TimeoutException timeout = new TimeoutException(batch.getMessage());
+        timeout.initCause(batch);
+        throw timeout;
     }
 }
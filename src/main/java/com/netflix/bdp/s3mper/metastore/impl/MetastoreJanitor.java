@@ -19,10 +19,12 @@
 
 package com.netflix.bdp.s3mper.metastore.impl;
 
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.dynamodb.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodb.model.Key;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.RateLimiter;
+import com.netflix.bdp.s3mper.common.AwsClients;
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
 import com.netflix.bdp.s3mper.metastore.FileInfo;
 import java.net.URI;
 import java.util.ArrayList;
@@ -69,6 +71,17 @@ public class MetastoreJanitor {
     
     private BlockingQueue<Key> queue = new LinkedBlockingQueue<Key>();
     
+    public MetastoreJanitor() {
+    }
+    
+    /**
+     * Janitor for clearing and sealing paths of an initialized metastore.
+     */
+    @VisibleForTesting
+    MetastoreJanitor(DynamoDBMetastore metastore) {
+        this.metastore = metastore;
+    }
+    
     public void initalize(URI uri, Configuration conf) throws Exception {
         String keyId = conf.get("fs."+uri.getScheme()+".awsAccessKeyId");
         String keySecret = conf.get("fs."+uri.getScheme()+".awsSecretAccessKey");
@@ -77,7 +90,7 @@ public class MetastoreJanitor {
         keyId = conf.get("s3mper.override.awsAccessKeyId", keyId);
         keySecret = conf.get("s3mper.override.awsSecretAccessKey", keySecret);
         
-        db = new AmazonDynamoDBClient(new BasicAWSCredentials(keyId, keySecret));
+        db = AwsClients.dynamoDB(keyId, keySecret, AwsClients.configuration(conf), conf.get("s3mper.metastore.dynamodb.endpoint"));
         
         tableName = conf.get("s3mper.metastore.name", tableName);
         
@@ -99,6 +112,39 @@ public class MetastoreJanitor {
         }
     }
     
+    /**
+     * Seals a directory that has not been written to for the given time: its
+     * entries are deleted and only its summary is kept, recording the last
+     * write, so listings past the convergence window still skip the check.
+     * 
+     * @param path
+     * @param unit
+     * @param time
+     * @return true if the directory was sealed
+     * @throws Exception 
+     */
+    public boolean seal(Path path, TimeUnit unit, long time) throws Exception {
+        long lastWrite = metastore.getLastEntryWrite(path);
+        DirectorySummary summary = metastore.getSummary(path);
+        
+        if (summary != null) {
+            lastWrite = Math.max(lastWrite, summary.getLastWrite());
+        }
+        
+        if (lastWrite < 0 || System.currentTimeMillis() - lastWrite < unit.toMillis(time)) {
+            log.info(format("Not sealing %s, last written at %d", path, lastWrite));
+            return false;
+        }
+        
+        clearPath(path);
+        
+        //Written after the deletes so that they don't advance the last write
+        metastore.putSummary(new DirectorySummary(path, lastWrite));
+        
+        log.info(format("Sealed %s, last written at %d", path, lastWrite));
+        return true;
+    }
+    
     /**
      * Scans the timeseries index in dynamodb (i.e. hash key = 'epoch' ) and 
      * deletes entries older than the given time.
@@ -0,0 +1,496 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.*;
+import static com.netflix.bdp.s3mper.metastore.impl.SidecarProtocol.*;
+
+/**
+ * A per host daemon that serves SidecarMetastore clients over a loopback
+ * socket and owns the only backend metastore client on the host.
+ *
+ * Writes from all connected tasks are queued and committed by a single thread
+ * as bulk add/delete calls; a batch closes when it reaches the configured size
+ * or once the linger time has passed.  Concurrent listings of the same
+ * directory share one backend query.  With s3mper.sidecar.cache.enabled
+ * listings are also cached in process (see CachingMetastore) so they stay
+ * warm across short lived tasks, at the cost of hiding writes from other
+ * hosts for up to the cache TTL.
+ */
+public class MetastoreSidecar {
+    private static final Logger log = Logger.getLogger(MetastoreSidecar.class.getName());
+
+    public static final int DEFAULT_PORT = 17386;
+
+    private final FileSystemMetastore backend;
+    private FileSystemMetastore metastore;
+
+    private int batchSize;
+    private long linger;
+
+    private ServerSocket server;
+    private ExecutorService handlers;
+    private Thread acceptor;
+    private Thread committer;
+    private volatile boolean running;
+
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final BlockingQueue<PendingWrite> writes = new LinkedBlockingQueue<PendingWrite>();
+    private final ConcurrentMap<String, Future<List<FileInfo>>> reads =
+            new ConcurrentHashMap<String, Future<List<FileInfo>>>();
+
+    private final AtomicLong sharedReads = new AtomicLong();
+    private final AtomicLong batchedWrites = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+
+    public MetastoreSidecar(FileSystemMetastore backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Initializes the backend and starts accepting connections.  Returns once
+     * the server socket is bound.
+     */
+    public void start(URI uri, Configuration conf) throws Exception {
+        FileSystemMetastore impl = backend;
+
+        if (conf.getBoolean("s3mper.sidecar.cache.enabled", false)) {
+            impl = new CachingMetastore(impl);
+        }
+
+        impl.initalize(uri, conf);
+        metastore = impl;
+
+        batchSize = conf.getInt("s3mper.sidecar.batch.size", 500);
+        linger = conf.getLong("s3mper.sidecar.batch.linger", 10);
+
+        InetAddress address = InetAddress.getByName(conf.get("s3mper.sidecar.host", "127.0.0.1"));
+        int port = conf.getInt("s3mper.sidecar.port", DEFAULT_PORT);
+
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(address, port));
+
+        handlers = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3mper-sidecar-%d").build());
+
+        running = true;
+
+        committer = new Thread(new Committer(), "s3mper-sidecar-committer");
+        committer.setDaemon(true);
+        committer.start();
+
+        acceptor = new Thread(new Acceptor(), "s3mper-sidecar-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        log.info("s3mper sidecar listening on " + server.getLocalSocketAddress());
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Blocks until the sidecar is closed.
+     */
+    public void join() throws InterruptedException {
+        acceptor.join();
+    }
+
+    public void close() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        try {
+            server.close();
+        } catch (IOException e) {
+            log.debug("Failed to close sidecar socket", e);
+        }
+
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+
+        handlers.shutdownNow();
+
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        log.info("s3mper sidecar statistics: sharedReads=" + sharedReads.get()
+                + ", writes=" + batchedWrites.get() + ", commits=" + commits.get());
+
+        metastore.close();
+    }
+
+    /** Number of directory listings served by joining another client's query */
+    public long getSharedReadCount() {
+        return sharedReads.get();
+    }
+
+    /** Number of client write requests committed */
+    public long getWriteCount() {
+        return batchedWrites.get();
+    }
+
+    /** Number of bulk calls made to the backend for those writes */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    List<FileInfo> list(List<Path> paths) throws Exception {
+        Map<String, SettableFuture<List<FileInfo>>> owned = new LinkedHashMap<String, SettableFuture<List<FileInfo>>>();
+        List<Future<List<FileInfo>>> pending = new ArrayList<Future<List<FileInfo>>>();
+        List<Path> fetch = new ArrayList<Path>();
+        Set<String> seen = new HashSet<String>();
+
+        for (Path path : paths) {
+            String key = normalize(path);
+
+            if (!seen.add(key)) {
+                continue;
+            }
+
+            SettableFuture<List<FileInfo>> future = SettableFuture.create();
+            Future<List<FileInfo>> existing = reads.putIfAbsent(key, future);
+
+            if (existing == null) {
+                owned.put(key, future);
+                fetch.add(path);
+                pending.add(future);
+            } else {
+                sharedReads.incrementAndGet();
+                pending.add(existing);
+            }
+        }
+
+        if (!fetch.isEmpty()) {
+            try {
+                Map<String, List<FileInfo>> fetched = new HashMap<String, List<FileInfo>>();
+
+                for (String key : owned.keySet()) {
+                    fetched.put(key, new ArrayList<FileInfo>());
+                }
+
+                for (FileInfo info : metastore.list(fetch)) {
+                    List<FileInfo> listing = fetched.get(normalize(info.getPath().getParent()));
+
+                    if (listing != null) {
+                        listing.add(info);
+                    }
+                }
+
+                for (Map.Entry<String, SettableFuture<List<FileInfo>>> entry : owned.entrySet()) {
+                    entry.getValue().set(fetched.get(entry.getKey()));
+                }
+            } catch (Exception e) {
+                for (SettableFuture<List<FileInfo>> future : owned.values()) {
+                    future.setException(e);
+                }
+            } finally {
+                for (Map.Entry<String, SettableFuture<List<FileInfo>>> entry : owned.entrySet()) {
+                    reads.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        ImmutableList.Builder<FileInfo> result = ImmutableList.builder();
+
+        for (Future<List<FileInfo>> future : pending) {
+            result.addAll(await(future));
+        }
+
+        return result.build();
+    }
+
+    void add(List<FileInfo> files) throws Exception {
+        PendingWrite write = new PendingWrite(files, null);
+        writes.add(write);
+        await(write.done);
+    }
+
+    void delete(List<Path> paths) throws Exception {
+        PendingWrite write = new PendingWrite(null, paths);
+        writes.add(write);
+        await(write.done);
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Commits a batch of queued writes.  Consecutive writes of the same kind
+     * are merged into one backend call so that the order between adds and
+     * deletes is preserved.
+     */
+    private void commit(List<PendingWrite> batch) {
+        int start = 0;
+
+        while (start < batch.size()) {
+            boolean delete = batch.get(start).isDelete();
+            int end = start;
+
+            List<FileInfo> files = new ArrayList<FileInfo>();
+            List<Path> paths = new ArrayList<Path>();
+
+            while (end < batch.size() && batch.get(end).isDelete() == delete) {
+                PendingWrite write = batch.get(end++);
+
+                if (delete) {
+                    paths.addAll(write.paths);
+                } else {
+                    files.addAll(write.files);
+                }
+            }
+
+            Exception failure = null;
+
+            try {
+                if (delete) {
+                    metastore.delete(paths);
+                } else {
+                    metastore.add(files);
+                }
+                commits.incrementAndGet();
+            } catch (Exception e) {
+                log.warn("Failed to commit " + (end - start) + " sidecar writes", e);
+                failure = e;
+            }
+
+            // Reads already in flight may predate this write, so later readers
+            // must not join them.
+            for (Path path : paths) {
+                reads.remove(normalize(path.getParent()));
+            }
+            for (FileInfo info : files) {
+                reads.remove(normalize(info.getPath().getParent()));
+            }
+
+            for (int i = start; i < end; i++) {
+                if (failure == null) {
+                    batch.get(i).done.set(null);
+                } else {
+                    batch.get(i).done.setException(failure);
+                }
+            }
+
+            batchedWrites.addAndGet(end - start);
+            start = end;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Failed to close sidecar connection", e);
+        }
+    }
+
+    private static class PendingWrite {
+        private final List<FileInfo> files;
+        private final List<Path> paths;
+        private final SettableFuture<Void> done = SettableFuture.create();
+
+        PendingWrite(List<FileInfo> files, List<Path> paths) {
+            this.files = files;
+            this.paths = paths;
+        }
+
+        boolean isDelete() {
+            return paths != null;
+        }
+
+        int size() {
+            return isDelete() ? paths.size() : files.size();
+        }
+    }
+
+    private class Committer implements Runnable {
+        @Override
+        public void run() {
+            while (running || !writes.isEmpty()) {
+                try {
+                    PendingWrite first = writes.poll(100, TimeUnit.MILLISECONDS);
+
+                    if (first == null) {
+                        continue;
+                    }
+
+                    List<PendingWrite> batch = new ArrayList<PendingWrite>();
+                    batch.add(first);
+
+                    int size = first.size();
+                    long deadline = System.currentTimeMillis() + linger;
+
+                    while (size < batchSize) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        PendingWrite next = remaining > 0
+                                ? writes.poll(remaining, TimeUnit.MILLISECONDS)
+                                : writes.poll();
+
+                        if (next == null) {
+                            break;
+                        }
+
+                        batch.add(next);
+                        size += next.size();
+                    }
+
+                    commit(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("Unexpected failure in sidecar committer", e);
+                }
+            }
+        }
+    }
+
+    private class Acceptor implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    connections.add(socket);
+                    handlers.execute(new Handler(socket));
+                } catch (IOException e) {
+                    if (running) {
+                        log.warn("Failed to accept sidecar connection", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private class Handler implements Runnable {
+        private final Socket socket;
+
+        Handler(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                while (running) {
+                    byte op;
+
+                    try {
+                        op = in.readByte();
+                    } catch (EOFException e) {
+                        return;
+                    }
+
+                    List<FileInfo> files = null;
+                    List<Path> paths = null;
+
+                    if (op == OP_ADD) {
+                        files = readFiles(in);
+                    } else if (op == OP_LIST || op == OP_DELETE) {
+                        paths = readPaths(in);
+                    } else {
+                        throw new IOException("Unknown sidecar op: " + op);
+                    }
+
+                    List<FileInfo> result = null;
+                    Exception failure = null;
+
+                    try {
+                        if (op == OP_LIST) {
+                            result = list(paths);
+                        } else if (op == OP_ADD) {
+                            add(files);
+                        } else {
+                            delete(paths);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+
+                    if (failure == null) {
+                        out.writeByte(STATUS_OK);
+
+                        if (op == OP_LIST) {
+                            writeFiles(out, result);
+                        }
+                    } else {
+                        out.writeByte(STATUS_ERROR);
+                        out.writeUTF(String.valueOf(failure.getMessage() != null ? failure.getMessage() : failure));
+                    }
+
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    log.debug("Sidecar connection closed", e);
+                }
+            } finally {
+                connections.remove(socket);
+                closeQuietly(socket);
+            }
+        }
+    }
+}
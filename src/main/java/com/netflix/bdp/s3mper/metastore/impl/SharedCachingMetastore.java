@@ -0,0 +1,213 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.collect.ImmutableList;
+
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.Metastore;
+import com.netflix.bdp.s3mper.metastore.SummarizingMetastore;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.*;
+
+/**
+ * Decorator that shares directory listings between all s3mper enabled JVMs on
+ * a host through a memory mapped file (see MappedListingCache).  Task JVMs
+ * listing the same input directories then cost one metastore query per host
+ * and TTL instead of one per task slot.
+ *
+ * Writes made through this metastore expire the affected entry for every JVM
+ * on the host.  A listing fetched on a miss is only stored if its slot was
+ * not expired meanwhile, so a fetch that raced with a write cannot put the
+ * listing from before the write back for the TTL.  If the cache file cannot be mapped the decorator logs a
+ * warning and passes everything through.
+ */
+public class SharedCachingMetastore implements SummarizingMetastore {
+  private static final Logger log = Logger.getLogger(SharedCachingMetastore.class);
+  private final FileSystemMetastore wrapped;
+
+  private MappedListingCache cache;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public SharedCachingMetastore(FileSystemMetastore wrapped) {
+    this.wrapped = wrapped;
+  }
+
+  @Override
+  public void initalize(URI uri, Configuration conf) throws Exception {
+    wrapped.initalize(uri, conf);
+
+    File dir = new File(conf.get("s3mper.metastore.cache.shared.dir",
+        System.getProperty("java.io.tmpdir") + File.separator + "s3mper"));
+    int slots = conf.getInt("s3mper.metastore.cache.shared.slots", 4096);
+    int slotSize = conf.getInt("s3mper.metastore.cache.shared.slot.size", 16 * 1024);
+    long ttl = conf.getLong("s3mper.metastore.cache.shared.ttl", TimeUnit.SECONDS.toMillis(10));
+
+    try {
+      cache = new MappedListingCache(dir, slots, slotSize, ttl);
+    } catch (Exception e) {
+      log.warn("Unable to map shared listing cache in " + dir + ", continuing without it", e);
+      cache = null;
+    }
+  }
+
+  @Override
+  public List<FileInfo> list(List<Path> paths) throws Exception {
+    if (cache == null) {
+      return wrapped.list(paths);
+    }
+
+    Map<String, List<FileInfo>> listings = new LinkedHashMap<String, List<FileInfo>>();
+    Map<String, Long> generations = new HashMap<String, Long>();
+    List<Path> missing = new ArrayList<Path>();
+
+    for (Path path : paths) {
+      String key = normalize(path);
+
+      if (listings.containsKey(key)) {
+        continue;
+      }
+
+      long generation = cache.generation(key);
+      List<FileInfo> cached = cache.get(key);
+
+      if (cached == null) {
+        generations.put(key, generation);
+        missing.add(path);
+        misses.incrementAndGet();
+      } else {
+        hits.incrementAndGet();
+      }
+
+      listings.put(key, cached);
+    }
+
+    if (!missing.isEmpty()) {
+      Map<String, List<FileInfo>> fetched = new LinkedHashMap<String, List<FileInfo>>();
+
+      for (Path path : missing) {
+        fetched.put(normalize(path), new ArrayList<FileInfo>());
+      }
+
+      for (FileInfo info : wrapped.list(missing)) {
+        List<FileInfo> listing = fetched.get(normalize(info.getPath().getParent()));
+
+        if (listing != null) {
+          listing.add(info);
+        }
+      }
+
+      for (Map.Entry<String, List<FileInfo>> entry : fetched.entrySet()) {
+        cache.put(entry.getKey(), entry.getValue(), generations.get(entry.getKey()));
+        listings.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    ImmutableList.Builder<FileInfo> result = ImmutableList.builder();
+    for (List<FileInfo> listing : listings.values()) {
+      result.addAll(listing);
+    }
+    return result.build();
+  }
+
+  @Override
+  public void add(List<FileInfo> paths) throws Exception {
+    wrapped.add(paths);
+
+    for (FileInfo info : paths) {
+      invalidate(info.getPath());
+    }
+  }
+
+  @Override
+  public void add(Path path, boolean directory) throws Exception {
+    wrapped.add(path, directory);
+    invalidate(path);
+  }
+
+  @Override
+  public void delete(Path path) throws Exception {
+    wrapped.delete(path);
+    invalidate(path);
+  }
+
+  @Override
+  public void delete(List<Path> paths) throws Exception {
+    wrapped.delete(paths);
+
+    for (Path path : paths) {
+      invalidate(path);
+    }
+  }
+
+  private void invalidate(Path path) {
+    if (cache != null) {
+      cache.invalidate(normalize(path.getParent()));
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  @Override
+  public DirectorySummary getSummary(Path dir) throws Exception {
+    return Metastore.getSummary(wrapped, dir);
+  }
+
+  @Override
+  public void putSummary(DirectorySummary summary) throws Exception {
+    Metastore.putSummary(wrapped, summary);
+  }
+
+  @Override
+  public void stampSummary(Path dir) throws Exception {
+    Metastore.stampSummary(wrapped, dir);
+  }
+
+  @Override
+  public void rebuildSummary(Path dir) throws Exception {
+    Metastore.rebuildSummary(wrapped, dir);
+  }
+
+  @Override
+  public void close() {
+    if (cache != null) {
+      log.info("Shared metastore cache statistics: hits=" + hits.get() + ", misses=" + misses.get());
+      cache.close();
+      cache = null;
+    }
+
+    wrapped.close();
+  }
+
+  @Override
+  public int getTimeout() {
+    return wrapped.getTimeout();
+  }
+
+  @Override
+  public void setTimeout(int timeout) {
+    wrapped.setTimeout(timeout);
+  }
+}
@@ -0,0 +1,201 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.common.RetryTask;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.MetastoreException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static com.netflix.bdp.s3mper.metastore.impl.SidecarProtocol.*;
+
+/**
+ * Metastore client that forwards every call to a MetastoreSidecar running on
+ * the same host.  Task JVMs using it never build a backend client of their
+ * own; the sidecar batches their writes, shares reads of the same directory
+ * and keeps a cache that is warm across tasks.
+ */
+public class SidecarMetastore implements FileSystemMetastore {
+    private static final Logger log = Logger.getLogger(SidecarMetastore.class.getName());
+
+    private String host = "127.0.0.1";
+    private int port = MetastoreSidecar.DEFAULT_PORT;
+
+    private int retryCount = Integer.getInteger("s3mper.metastore.retry", 3);
+    private int timeout = Integer.getInteger("s3mper.metastore.timeout", 5000);
+
+    private final Queue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+
+    @Override
+    public void initalize(URI uri, Configuration conf) throws Exception {
+        host = conf.get("s3mper.sidecar.host", host);
+        port = conf.getInt("s3mper.sidecar.port", port);
+
+        retryCount = conf.getInt("s3mper.metastore.retry", retryCount);
+        timeout = conf.getInt("s3mper.metastore.timeout", timeout);
+    }
+
+    @Override
+    public List<FileInfo> list(final List<Path> paths) throws Exception {
+        return new RetryTask<List<FileInfo>>(new Request<List<FileInfo>>(OP_LIST) {
+            @Override
+            void write(DataOutputStream out) throws IOException {
+                writePaths(out, paths);
+            }
+
+            @Override
+            List<FileInfo> read(DataInputStream in) throws IOException {
+                return readFiles(in);
+            }
+        }, retryCount, timeout).call();
+    }
+
+    @Override
+    public void add(final List<FileInfo> paths) throws Exception {
+        new RetryTask<Object>(new Request<Object>(OP_ADD) {
+            @Override
+            void write(DataOutputStream out) throws IOException {
+                writeFiles(out, paths);
+            }
+        }, retryCount, timeout).call();
+    }
+
+    @Override
+    public void add(Path path, boolean directory) throws Exception {
+        add(Collections.singletonList(new FileInfo(path, false, directory)));
+    }
+
+    @Override
+    public void delete(Path path) throws Exception {
+        delete(Collections.singletonList(path));
+    }
+
+    @Override
+    public void delete(final List<Path> paths) throws Exception {
+        new RetryTask<Object>(new Request<Object>(OP_DELETE) {
+            @Override
+            void write(DataOutputStream out) throws IOException {
+                writePaths(out, paths);
+            }
+        }, retryCount, timeout).call();
+    }
+
+    @Override
+    public void close() {
+        Connection connection;
+
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    private Connection borrow() throws IOException {
+        Connection connection = idle.poll();
+
+        if (connection == null) {
+            connection = new Connection(host, port, timeout);
+        }
+
+        return connection;
+    }
+
+    /**
+     * A single request/response exchange.  A connection that fails mid
+     * exchange is discarded, otherwise it goes back to the idle pool.
+     */
+    private abstract class Request<T> implements Callable<T> {
+        private final byte op;
+
+        Request(byte op) {
+            this.op = op;
+        }
+
+        abstract void write(DataOutputStream out) throws IOException;
+
+        T read(DataInputStream in) throws IOException {
+            return null;
+        }
+
+        @Override
+        public T call() throws Exception {
+            Connection connection = borrow();
+            T result;
+            String error = null;
+
+            try {
+                connection.out.writeByte(op);
+                write(connection.out);
+                connection.out.flush();
+
+                if (connection.in.readByte() == STATUS_OK) {
+                    result = read(connection.in);
+                } else {
+                    result = null;
+                    error = connection.in.readUTF();
+                }
+            } catch (IOException e) {
+                log.debug("Sidecar connection failed", e);
+                connection.close();
+                throw e;
+            }
+
+            idle.offer(connection);
+
+            if (error != null) {
+                throw new MetastoreException("Sidecar request failed: " + error);
+            }
+
+            return result;
+        }
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Connection(String host, int port, int timeout) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout);
+            socket.connect(new InetSocketAddress(host, port), timeout);
+
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Failed to close sidecar connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+
+import org.apache.hadoop.fs.Path;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format shared by SidecarMetastore and MetastoreSidecar.  Every request
+ * is an op code followed by its arguments and is answered with a status byte,
+ * an error message or the result.  Connections carry one request at a time.
+ */
+final class SidecarProtocol {
+
+    static final byte OP_LIST = 1;
+    static final byte OP_ADD = 2;
+    static final byte OP_DELETE = 3;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    private SidecarProtocol() {
+    }
+
+    static void writePaths(DataOutputStream out, List<Path> paths) throws IOException {
+        out.writeInt(paths.size());
+
+        for (Path path : paths) {
+            out.writeUTF(path.toString());
+        }
+    }
+
+    static List<Path> readPaths(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Path> paths = new ArrayList<Path>(count);
+
+        for (int i = 0; i < count; i++) {
+            paths.add(new Path(in.readUTF()));
+        }
+
+        return paths;
+    }
+
+    static void writeFiles(DataOutputStream out, List<FileInfo> files) throws IOException {
+        out.writeInt(files.size());
+
+        for (FileInfo file : files) {
+            out.writeUTF(file.getPath().toString());
+            out.writeBoolean(file.isDeleted());
+            out.writeBoolean(file.isDirectory());
+        }
+    }
+
+    static List<FileInfo> readFiles(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<FileInfo> files = new ArrayList<FileInfo>(count);
+
+        for (int i = 0; i < count; i++) {
+            Path path = new Path(in.readUTF());
+            boolean deleted = in.readBoolean();
+            boolean directory = in.readBoolean();
+
+            files.add(new FileInfo(path, deleted, directory));
+        }
+
+        return files;
+    }
+}
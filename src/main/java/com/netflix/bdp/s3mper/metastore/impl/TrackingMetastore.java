@@ -0,0 +1,431 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.common.io.BaseEncoding;
+
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.Metastore;
+import com.netflix.bdp.s3mper.metastore.SummarizingMetastore;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.*;
+
+/**
+ * Decorator that keeps a registry of the prefixes that ever had entries
+ * added, and answers listings of directories outside of it without querying
+ * the metastore.  Reference datasets that were never written through s3mper
+ * then cost no metastore queries.
+ *
+ * A prefix is the first s3mper.metastore.tracking.depth components of a
+ * directory below the bucket.  The registry of a bucket is stored in the
+ * metastore itself, as one entry per prefix under the reserved directory
+ * _S3MPER_TRACKED at the root of the bucket, named by the base32hex encoding
+ * of the prefix.  Each JVM loads it on first use and reloads it after the
+ * refresh interval, so writes to new prefixes by other JVMs go unchecked for
+ * at most that long.  A JVM registers a prefix before its first add under it
+ * and again after the reregister interval, which keeps registry entries from
+ * being expired by the janitor while the prefix is written to.
+ *
+ * Prefixes written before tracking was enabled are not in the registry, so
+ * every prefix of a bucket counts as tracked until its registry is marked
+ * complete with an entry named _COMPLETE.  That marker is written with
+ * complete(), once the prefixes holding older entries were registered with
+ * track() or those entries were expired or sealed ("s3mper meta track").
+ * JVMs that loaded a complete registry renew the marker with their prefixes.
+ *
+ * Directories found empty are remembered for s3mper.metastore.tracking.negative.ttl
+ * unless an entry is added or deleted through this metastore.  As in
+ * CachingMetastore, writes bump a generation of their directory and an empty
+ * result is only remembered if the generation did not move while it was
+ * fetched.
+ */
+public class TrackingMetastore implements SummarizingMetastore {
+  private static final Logger log = Logger.getLogger(TrackingMetastore.class);
+
+  public static final String TRACKED_DIR = "_S3MPER_TRACKED";
+
+  /** Not valid base32hex, so it cannot collide with a prefix entry */
+  public static final String COMPLETE_ENTRY = "_COMPLETE";
+
+  private static final int GENERATIONS = 1024;
+
+  private static final BaseEncoding ENCODING = BaseEncoding.base32Hex().omitPadding();
+
+  private final FileSystemMetastore wrapped;
+
+  private int depth = 2;
+  private long refresh = TimeUnit.MINUTES.toMillis(1);
+
+  private final Map<String, Registry> registries = new ConcurrentHashMap<String, Registry>();
+  private Cache<String, Boolean> registered;
+  private Cache<String, Boolean> empty;
+  private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+  private final AtomicLong bypassed = new AtomicLong();
+  private final AtomicLong emptyHits = new AtomicLong();
+
+  public TrackingMetastore(FileSystemMetastore wrapped) {
+    this.wrapped = wrapped;
+  }
+
+  @Override
+  public void initalize(URI uri, Configuration conf) throws Exception {
+    depth = conf.getInt("s3mper.metastore.tracking.depth", depth);
+    refresh = conf.getLong("s3mper.metastore.tracking.refresh", refresh);
+
+    registered = CacheBuilder.newBuilder()
+        .maximumSize(conf.getLong("s3mper.metastore.tracking.size", 10000))
+        .expireAfterWrite(conf.getLong("s3mper.metastore.tracking.reregister", TimeUnit.HOURS.toMillis(1)), TimeUnit.MILLISECONDS)
+        .build();
+
+    empty = CacheBuilder.newBuilder()
+        .maximumSize(conf.getLong("s3mper.metastore.tracking.negative.size", 10000))
+        .expireAfterWrite(conf.getLong("s3mper.metastore.tracking.negative.ttl", TimeUnit.SECONDS.toMillis(10)), TimeUnit.MILLISECONDS)
+        .build();
+
+    wrapped.initalize(uri, conf);
+  }
+
+  @Override
+  public List<FileInfo> list(List<Path> paths) throws Exception {
+    List<Path> queried = new ArrayList<Path>();
+    Map<String, Long> queriedAt = new LinkedHashMap<String, Long>();
+
+    for (Path path : paths) {
+      if (!isTracked(path)) {
+        bypassed.incrementAndGet();
+      } else if (empty.getIfPresent(normalize(path)) != null) {
+        emptyHits.incrementAndGet();
+      } else {
+        queried.add(path);
+        queriedAt.put(normalize(path), generation(normalize(path)));
+      }
+    }
+
+    if (queried.isEmpty()) {
+      return new ArrayList<FileInfo>();
+    }
+
+    List<FileInfo> listing = wrapped.list(queried);
+    Set<String> found = new HashSet<String>();
+
+    for (FileInfo info : listing) {
+      found.add(normalize(info.getPath().getParent()));
+    }
+
+    for (Map.Entry<String, Long> entry : queriedAt.entrySet()) {
+      if (!found.contains(entry.getKey())) {
+        // Put first, so a write racing with the put either sees it or moves the generation
+        empty.put(entry.getKey(), Boolean.TRUE);
+
+        if (generation(entry.getKey()) != entry.getValue()) {
+          empty.invalidate(entry.getKey());
+        }
+      }
+    }
+
+    return listing;
+  }
+
+  @Override
+  public void add(List<FileInfo> paths) throws Exception {
+    List<Path> dirs = new ArrayList<Path>();
+
+    for (FileInfo info : paths) {
+      dirs.add(info.getPath().getParent());
+    }
+
+    register(dirs);
+
+    try {
+      wrapped.add(paths);
+    } finally {
+      invalidate(dirs);
+    }
+  }
+
+  @Override
+  public void add(Path path, boolean directory) throws Exception {
+    List<Path> dirs = Collections.singletonList(path.getParent());
+
+    register(dirs);
+
+    try {
+      wrapped.add(path, directory);
+    } finally {
+      invalidate(dirs);
+    }
+  }
+
+  @Override
+  public void delete(Path path) throws Exception {
+    try {
+      wrapped.delete(path);
+    } finally {
+      invalidate(Collections.singletonList(path.getParent()));
+    }
+  }
+
+  @Override
+  public void delete(List<Path> paths) throws Exception {
+    List<Path> dirs = new ArrayList<Path>();
+
+    for (Path path : paths) {
+      dirs.add(path.getParent());
+    }
+
+    try {
+      wrapped.delete(paths);
+    } finally {
+      invalidate(dirs);
+    }
+  }
+
+  /**
+   * Forgets that the directories were empty.  Must follow the write to the
+   * wrapped metastore, so that a listing fetched before the write cannot
+   * remember them as empty again.
+   */
+  private void invalidate(List<Path> dirs) {
+    for (Path dir : dirs) {
+      String key = normalize(dir);
+
+      generations.incrementAndGet((key.hashCode() & Integer.MAX_VALUE) % GENERATIONS);
+      empty.invalidate(key);
+    }
+  }
+
+  private long generation(String key) {
+    return generations.get((key.hashCode() & Integer.MAX_VALUE) % GENERATIONS);
+  }
+
+  /**
+   * Registers the prefixes of the directories, regardless of whether this
+   * JVM registered them recently.  Used to backfill prefixes written before
+   * tracking was enabled.
+   */
+  public void track(List<Path> dirs) throws Exception {
+    for (Path dir : dirs) {
+      registered.invalidate(normalize(new Path(registryDir(dir), ENCODING.encode(prefix(dir).getBytes(Charsets.UTF_8)))));
+    }
+
+    register(dirs);
+  }
+
+  /**
+   * Marks the registry of the bucket of the path as complete, so that
+   * listings outside of the registered prefixes start bypassing the
+   * metastore.  Only safe once every prefix with entries is registered.
+   */
+  public void complete(Path path) throws Exception {
+    Path registryDir = registryDir(path);
+
+    wrapped.add(new Path(registryDir, COMPLETE_ENTRY), false);
+    registries.remove(registryDir.toString());
+  }
+
+  /**
+   * Adds the registry entries of the prefixes of the directories that this
+   * JVM has not registered within the reregister interval.
+   */
+  private void register(List<Path> dirs) throws Exception {
+    Map<String, FileInfo> entries = new LinkedHashMap<String, FileInfo>();
+
+    for (Path dir : dirs) {
+      Path entry = new Path(registryDir(dir), ENCODING.encode(prefix(dir).getBytes(Charsets.UTF_8)));
+      String key = normalize(entry);
+
+      if (registered.getIfPresent(key) == null) {
+        entries.put(key, new FileInfo(entry, false, false));
+      }
+
+      // Renew the completion marker along with the prefixes, so the janitor does not expire it
+      Registry registry = registries.get(registryDir(dir).toString());
+      Path marker = new Path(registryDir(dir), COMPLETE_ENTRY);
+
+      if (registry != null && registry.complete && registered.getIfPresent(normalize(marker)) == null) {
+        entries.put(normalize(marker), new FileInfo(marker, false, false));
+      }
+    }
+
+    if (entries.isEmpty()) {
+      return;
+    }
+
+    if (log.isDebugEnabled()) {
+      log.debug("Registering tracked prefixes: " + entries.keySet());
+    }
+
+    wrapped.add(new ArrayList<FileInfo>(entries.values()));
+
+    for (Map.Entry<String, FileInfo> entry : entries.entrySet()) {
+      registered.put(entry.getKey(), Boolean.TRUE);
+
+      Registry registry = registries.get(registryDir(entry.getValue().getPath().getParent()).toString());
+
+      if (registry != null && !COMPLETE_ENTRY.equals(entry.getValue().getPath().getName())) {
+        registry.prefixes.add(decode(entry.getValue().getPath().getName()));
+      }
+    }
+  }
+
+  /**
+   * @return false if no entry was ever added under the prefix of the
+   *         directory, as far as the cached registry of its bucket knows;
+   *         always true until that registry is complete
+   */
+  boolean isTracked(Path dir) {
+    Registry registry = registry(registryDir(dir));
+
+    return registry == null || !registry.complete || registry.prefixes.contains(prefix(dir));
+  }
+
+  /**
+   * Returns the registry of a bucket, loading it if it is missing or older
+   * than the refresh interval.  If it cannot be loaded the previous one is
+   * kept, and null is returned if there is none.
+   */
+  private Registry registry(Path registryDir) {
+    String key = registryDir.toString();
+    Registry registry = registries.get(key);
+
+    if (registry != null && System.currentTimeMillis() - registry.loaded < refresh) {
+      return registry;
+    }
+
+    synchronized (this) {
+      registry = registries.get(key);
+
+      if (registry != null && System.currentTimeMillis() - registry.loaded < refresh) {
+        return registry;
+      }
+
+      try {
+        Registry loaded = new Registry(System.currentTimeMillis());
+
+        for (FileInfo info : wrapped.list(Collections.singletonList(registryDir))) {
+          if (info.isDeleted()) {
+            continue;
+          }
+
+          if (COMPLETE_ENTRY.equals(info.getPath().getName())) {
+            loaded.complete = true;
+          } else {
+            loaded.prefixes.add(decode(info.getPath().getName()));
+          }
+        }
+
+        if (log.isDebugEnabled()) {
+          log.debug("Loaded " + loaded.prefixes.size() + " tracked prefixes from " + registryDir
+              + (loaded.complete ? "" : ", incomplete"));
+        }
+
+        registries.put(key, loaded);
+        return loaded;
+      } catch (Exception e) {
+        log.warn("Failed to load tracked prefixes from " + registryDir + ", keeping the previous ones", e);
+        return registry;
+      }
+    }
+  }
+
+  private static Path registryDir(Path dir) {
+    URI uri = dir.toUri();
+    return new Path(uri.getScheme(), uri.getAuthority(), "/" + TRACKED_DIR);
+  }
+
+  /**
+   * @return the first depth components of the path of the directory, or
+   *         all of them if it has fewer
+   */
+  String prefix(Path dir) {
+    Iterable<String> components = Splitter.on('/').omitEmptyStrings().split(dir.toUri().normalize().getPath());
+    return "/" + Joiner.on('/').join(Iterables.limit(components, depth));
+  }
+
+  private static String decode(String name) {
+    try {
+      return new String(ENCODING.decode(name), Charsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      log.warn("Ignoring invalid tracked prefix entry: " + name);
+      return name;
+    }
+  }
+
+  public long getBypassCount() {
+    return bypassed.get();
+  }
+
+  public long getEmptyHitCount() {
+    return emptyHits.get();
+  }
+
+  @Override
+  public DirectorySummary getSummary(Path dir) throws Exception {
+    return Metastore.getSummary(wrapped, dir);
+  }
+
+  @Override
+  public void putSummary(DirectorySummary summary) throws Exception {
+    Metastore.putSummary(wrapped, summary);
+  }
+
+  @Override
+  public void stampSummary(Path dir) throws Exception {
+    Metastore.stampSummary(wrapped, dir);
+  }
+
+  @Override
+  public void rebuildSummary(Path dir) throws Exception {
+    Metastore.rebuildSummary(wrapped, dir);
+  }
+
+  @Override
+  public void close() {
+    log.info("Tracked prefix statistics: bypassed=" + bypassed.get() + ", empty=" + emptyHits.get());
+    wrapped.close();
+  }
+
+  @Override
+  public int getTimeout() {
+    return wrapped.getTimeout();
+  }
+
+  @Override
+  public void setTimeout(int timeout) {
+    wrapped.setTimeout(timeout);
+  }
+
+  private static class Registry {
+    final long loaded;
+    boolean complete = false;
+    final Set<String> prefixes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    Registry(long loaded) {
+      this.loaded = loaded;
+    }
+  }
+}
@@ -0,0 +1,297 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.FileSystemMetastore;
+import com.netflix.bdp.s3mper.metastore.MetastoreBatchException;
+import com.netflix.bdp.s3mper.metastore.MetastoreException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decorator that takes adds off the caller's thread.  Adds are queued and a
+ * background thread commits everything queued within the linger time as one
+ * batch add, so concurrent writers share metastore round trips.
+ *
+ * The future returned by addAsync completes once the entry is committed,
+ * which is what callers wait on before reporting a file as written; the
+ * blocking add methods wait on it directly.  Lists and deletes, and flush(),
+ * first wait for all queued adds so they never overtake them.
+ */
+public class WriteBehindMetastore extends AsyncMetastoreAdapter {
+  private static final Logger log = Logger.getLogger(WriteBehindMetastore.class);
+
+  private final FileSystemMetastore wrapped;
+  private final BlockingQueue<PendingAdd> queue = new LinkedBlockingQueue<PendingAdd>();
+
+  private int batchSize = 500;
+  private long linger = 10;
+
+  private volatile SettableFuture<Void> last = null;
+  private volatile Exception failure = null;
+  private volatile boolean running = false;
+  private Thread committer;
+
+  public WriteBehindMetastore(FileSystemMetastore wrapped, int threads) {
+    super(wrapped, threads);
+    this.wrapped = wrapped;
+  }
+
+  @Override
+  public synchronized void initalize(URI uri, Configuration conf) throws Exception {
+    super.initalize(uri, conf);
+
+    batchSize = conf.getInt("s3mper.metastore.writeBehind.batch.size", batchSize);
+    linger = conf.getLong("s3mper.metastore.writeBehind.linger", linger);
+
+    if (committer == null) {
+      running = true;
+      committer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          commitLoop();
+        }
+      }, "s3mper-write-behind");
+      committer.setDaemon(true);
+      committer.start();
+    }
+  }
+
+  @Override
+  public ListenableFuture<Void> addAsync(Path path, boolean directory) {
+    return enqueue(new FileInfo(path, false, directory));
+  }
+
+  @Override
+  public ListenableFuture<Void> addAsync(List<FileInfo> paths) {
+    List<ListenableFuture<Void>> adds = new ArrayList<ListenableFuture<Void>>();
+
+    for (FileInfo file : paths) {
+      adds.add(enqueue(file));
+    }
+
+    return Futures.transform(Futures.allAsList(adds), new Function<List<Void>, Void>() {
+      @Override
+      public Void apply(List<Void> input) {
+        return null;
+      }
+    });
+  }
+
+  private synchronized ListenableFuture<Void> enqueue(FileInfo file) {
+    if (!running) {
+      return Futures.immediateFailedFuture(new MetastoreException("Write-behind metastore is not running"));
+    }
+
+    PendingAdd add = new PendingAdd(file);
+    last = add.done;
+    queue.add(add);
+
+    return add.done;
+  }
+
+  @Override
+  public void add(List<FileInfo> paths) throws Exception {
+    await(addAsync(paths));
+  }
+
+  @Override
+  public void add(Path path, boolean directory) throws Exception {
+    await(addAsync(path, directory));
+  }
+
+  @Override
+  public List<FileInfo> list(List<Path> paths) throws Exception {
+    drain();
+    return super.list(paths);
+  }
+
+  @Override
+  public void delete(Path path) throws Exception {
+    drain();
+    super.delete(path);
+  }
+
+  @Override
+  public void delete(List<Path> paths) throws Exception {
+    drain();
+    super.delete(paths);
+  }
+
+  @Override
+  public DirectorySummary getSummary(Path dir) throws Exception {
+    drain();
+    return super.getSummary(dir);
+  }
+
+  @Override
+  public void rebuildSummary(Path dir) throws Exception {
+    drain();
+    super.rebuildSummary(dir);
+  }
+
+  /**
+   * Waits until every add queued so far is committed.
+   *
+   * @throws MetastoreException if an add failed since the last flush
+   */
+  public void flush() throws Exception {
+    drain();
+
+    Exception failed = failure;
+
+    if (failed != null) {
+      failure = null;
+      throw new MetastoreException("Write-behind metastore failed to commit adds", failed);
+    }
+  }
+
+  /**
+   * Waits for the queued adds; their failures are reported to their own callers.
+   */
+  private void drain() throws InterruptedException {
+    SettableFuture<Void> pending = last;
+
+    if (pending == null) {
+      return;
+    }
+
+    try {
+      pending.get();
+    } catch (ExecutionException e) {
+      // reported through the add's future
+    }
+  }
+
+  private static void await(ListenableFuture<Void> future) throws Exception {
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private void commitLoop() {
+    while (running || !queue.isEmpty()) {
+      try {
+        PendingAdd first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+        if (first == null) {
+          continue;
+        }
+
+        List<PendingAdd> batch = new ArrayList<PendingAdd>();
+        batch.add(first);
+
+        long end = System.currentTimeMillis() + linger;
+
+        while (batch.size() < batchSize) {
+          PendingAdd next = queue.poll(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+
+        commit(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+  }
+
+  private void commit(List<PendingAdd> batch) {
+    // The same path added twice in a batch is written once, as last added
+    Map<Path, FileInfo> files = new LinkedHashMap<Path, FileInfo>();
+
+    for (PendingAdd add : batch) {
+      files.remove(add.file.getPath());
+      files.put(add.file.getPath(), add.file);
+    }
+
+    try {
+      if (files.size() == 1) {
+        FileInfo file = files.values().iterator().next();
+        wrapped.add(file.getPath(), file.isDirectory());
+      } else {
+        wrapped.add(new ArrayList<FileInfo>(files.values()));
+      }
+
+      if (log.isDebugEnabled()) {
+        log.debug("Committed " + files.size() + " metastore adds");
+      }
+
+      for (PendingAdd add : batch) {
+        add.done.set(null);
+      }
+    } catch (MetastoreBatchException e) {
+      log.error(e.getMessage(), e);
+      failure = e;
+
+      for (PendingAdd add : batch) {
+        Exception failed = e.getFailures().get(add.file.getPath());
+
+        if (failed == null) {
+          add.done.set(null);
+        } else {
+          add.done.setException(failed);
+        }
+      }
+    } catch (Exception e) {
+      log.error("Failed to commit " + files.size() + " metastore adds", e);
+      failure = e;
+
+      for (PendingAdd add : batch) {
+        add.done.setException(e);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      running = false;
+    }
+
+    if (committer != null) {
+      try {
+        committer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    super.close();
+  }
+
+  private static class PendingAdd {
+    final FileInfo file;
+    final SettableFuture<Void> done = SettableFuture.create();
+
+    PendingAdd(FileInfo file) {
+      this.file = file;
+    }
+  }
+}
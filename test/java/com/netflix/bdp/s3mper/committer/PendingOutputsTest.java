@@ -0,0 +1,49 @@
+package com.netflix.bdp.s3mper.committer;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PendingOutputsTest {
+
+    private static final Path output = new Path("s3n://s3mper-test/output");
+
+    @After
+    public void tearDown() {
+        PendingOutputs.remove(output);
+    }
+
+    @Test
+    public void testIsPending() {
+        assertTrue(PendingOutputs.isPending(new Path(output, "_temporary/0/task_0/part-0")));
+        assertTrue(PendingOutputs.isPending(new Path(output, PendingOutputs.EXPECTED_MARKER)));
+        assertFalse(PendingOutputs.isPending(new Path(output, "part-0")));
+    }
+
+    @Test
+    public void testListAndRename() {
+        Path task = new Path(output, "_temporary/0/task_0");
+
+        PendingOutputs.add(new Path(task, "part-0"), false);
+        PendingOutputs.add(new Path(task, "dt=1/part-1"), false);
+        PendingOutputs.add(new Path(task, "dt=1/part-2"), false);
+
+        List<FileInfo> children = PendingOutputs.list(Collections.singletonList(task));
+        assertEquals(2, children.size());
+        assertEquals(new Path(task, "dt=1"), children.get(0).getPath());
+        assertTrue(children.get(0).isDirectory());
+
+        PendingOutputs.rename(new Path(task, "dt=1"), new Path(output, "dt=1"));
+
+        assertEquals(2, PendingOutputs.list(Collections.singletonList(new Path(output, "dt=1"))).size());
+        assertEquals(1, PendingOutputs.files(task).size());
+    }
+}
@@ -0,0 +1,39 @@
+package com.netflix.bdp.s3mper.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveRateLimiterTest {
+
+    @Test
+    public void testThrottlingHalvesOncePerCooldown() throws Exception {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100, 1, 1000, 1, 0.5, 200);
+
+        // A burst of throttles from the same overload counts once
+        for (int i = 0; i < 10; i++) {
+            limiter.onThrottle();
+        }
+        assertEquals(50, limiter.getRate(), 0.001);
+
+        Thread.sleep(250);
+        limiter.onThrottle();
+        assertEquals(25, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testSuccessGrowsAdditively() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10, 1, 12, 1, 0.5, 0);
+
+        // One second worth of successes at the current rate adds the increase
+        for (int i = 0; i < 10; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(11, limiter.getRate(), 0.1);
+
+        for (int i = 0; i < 1000; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(12, limiter.getRate(), 0.001);
+    }
+}
@@ -0,0 +1,42 @@
+package com.netflix.bdp.s3mper.common;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ExcludedPathsTest {
+
+    @Test
+    public void testDefaults() {
+        ExcludedPaths excluded = new ExcludedPaths(ExcludedPaths.DEFAULT_PATTERNS);
+
+        assertFalse(excluded.matches(new Path("s3n://bucket/out/_temporary/0/task_0/part-0")));
+        assertFalse(excluded.matches(new Path("s3n://bucket/out/_SUCCESS")));
+    }
+
+    @Test
+    public void testPatterns() {
+        ExcludedPaths excluded = new ExcludedPaths("_temporary,.hive-staging*,_SUCCESS");
+
+        assertTrue(excluded.matches(new Path("s3n://bucket/out/_temporary/0/task_0/part-0")));
+        assertTrue(excluded.matches(new Path("s3n://bucket/table/.hive-staging_hive_2016-01-01/-ext-10000/000000_0")));
+        assertTrue(excluded.matches(new Path("s3n://bucket/out/_SUCCESS")));
+        assertFalse(excluded.matches(new Path("s3n://bucket/out/part-0")));
+        assertFalse(excluded.matches(new Path("s3n://bucket/out/_SUCCESS_NOT")));
+    }
+
+    @Test
+    public void testConfiguration() {
+        ExcludedPaths defaults = new ExcludedPaths(ExcludedPaths.DEFAULT_PATTERNS);
+        Configuration conf = new Configuration(false);
+
+        assertSame(defaults, ExcludedPaths.fromConfiguration(conf, defaults));
+
+        conf.set("s3mper.metastore.exclude", "_SUCCESS");
+        assertTrue(ExcludedPaths.fromConfiguration(conf, defaults).matches(new Path("s3n://bucket/out/_SUCCESS")));
+    }
+}
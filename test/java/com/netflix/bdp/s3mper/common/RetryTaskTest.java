@@ -0,0 +1,288 @@
+package com.netflix.bdp.s3mper.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryTaskTest {
+
+    @Test
+    public void testRetriesUntilSuccess() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+
+        String result = new RetryTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (calls.incrementAndGet() < 3) {
+                    throw new IllegalStateException("failed");
+                }
+                return "done";
+            }
+        }, 3, 1000, new IncrementalBackoffAlgorithm(1)).call();
+
+        assertEquals("done", result);
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testTimedOutAttemptIsCancelled() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        try {
+            new RetryTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                    return null;
+                }
+            }, 1, 100).call();
+
+            fail("Expected the attempt to time out");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        assertTrue("Timed out attempt kept running", interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDeadlineBoundsAllAttempts() throws Exception {
+        Long previous = Deadline.start(500);
+        long start = System.currentTimeMillis();
+
+        try {
+            new RetryTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    return null;
+                }
+            }, 10, 300, new IncrementalBackoffAlgorithm(50)).call();
+
+            fail("Expected the deadline to pass");
+        } catch (TimeoutException e) {
+            // expected
+        } finally {
+            Deadline.restore(previous);
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Retries ran past the deadline: " + elapsed, elapsed < 1000);
+        assertEquals(null, Deadline.current());
+    }
+
+    @Test
+    public void testQueuedTimeDoesNotCountAgainstTimeout() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        List<Thread> blockers = saturate(release);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(150);
+                } catch (InterruptedException e) {
+                    // released early
+                }
+                release.countDown();
+            }
+        }).start();
+
+        // Queued and running each take less than the timeout, together more
+        String result = new RetryTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                Thread.sleep(200);
+                return "done";
+            }
+        }, 1, 300).call();
+
+        assertEquals("done", result);
+
+        for (Thread blocker : blockers) {
+            blocker.join();
+        }
+    }
+
+    @Test
+    public void testSaturatedPoolTimesOut() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Thread> blockers = saturate(release);
+
+        AdaptiveTimeout timeout = new AdaptiveTimeout(true, 99, 0.5, 50, 5000);
+
+        for (int i = 0; i < 100; i++) {
+            timeout.getLatencies().record(100);
+        }
+
+        long start = System.currentTimeMillis();
+
+        try {
+            new RetryTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return null;
+                }
+            }, 1, timeout).call();
+
+            fail("Expected the wait for a retry thread to time out");
+        } catch (QueueTimeoutException e) {
+            // expected
+        } finally {
+            release.countDown();
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Waited past the timeout: " + elapsed, elapsed < 1000);
+
+        // The backend was never called, so its timeout is left alone
+        assertEquals(150, timeout.getTimeout());
+
+        for (Thread blocker : blockers) {
+            blocker.join();
+        }
+    }
+
+    /**
+     * Occupies every pool thread with an attempt that ignores interruption
+     * until released.
+     */
+    private static List<Thread> saturate(final CountDownLatch release) throws InterruptedException {
+        int threads = Integer.getInteger("s3mper.retry.threads", 64);
+        final CountDownLatch running = new CountDownLatch(threads);
+        List<Thread> blockers = new ArrayList<Thread>();
+
+        for (int i = 0; i < threads; i++) {
+            Thread blocker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new RetryTask<Object>(new Callable<Object>() {
+                            @Override
+                            public Object call() throws Exception {
+                                running.countDown();
+
+                                while (true) {
+                                    try {
+                                        release.await();
+                                        return null;
+                                    } catch (InterruptedException e) {
+                                        // hung in the backend
+                                    }
+                                }
+                            }
+                        }, 1, 5000).call();
+                    } catch (Exception e) {
+                        // not under test
+                    }
+                }
+            });
+            blocker.start();
+            blockers.add(blocker);
+        }
+
+        running.await();
+        return blockers;
+    }
+
+    @Test
+    public void testSlowAttemptIsHedged() throws Exception {
+        HedgePolicy hedge = new HedgePolicy(95, 10, 1.0);
+
+        for (int i = 0; i < 100; i++) {
+            hedge.getLatencies().record(20);
+        }
+
+        final AtomicInteger calls = new AtomicInteger();
+        long start = System.currentTimeMillis();
+
+        String result = new RetryTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (calls.incrementAndGet() == 1) {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+                    return "slow";
+                }
+                return "hedged";
+            }
+        }, 1, 3000, hedge).call();
+
+        assertEquals("hedged", result);
+        assertEquals(2, calls.get());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void testAdaptiveTimeoutFollowsLatency() throws Exception {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(true, 99, 0.5, 50, 5000);
+
+        assertEquals(5000, timeout.getTimeout());
+
+        for (int i = 0; i < 100; i++) {
+            timeout.getLatencies().record(100);
+        }
+
+        assertEquals(150, timeout.getTimeout());
+
+        // Timed out attempts push the estimate up until it reaches the ceiling
+        for (int i = 0; i < 100; i++) {
+            timeout.recordTimeout(timeout.getTimeout());
+        }
+
+        assertEquals(5000, timeout.getTimeout());
+    }
+
+    @Test
+    public void testCeilingFollowsSetTimeout() throws Exception {
+        AdaptiveTimeout fixed = new AdaptiveTimeout(false, 99, 0.5, 250, 5000);
+        fixed.setCeiling(5);
+        assertEquals(5, fixed.getTimeout());
+
+        AdaptiveTimeout adaptive = new AdaptiveTimeout(true, 99, 0.5, 250, 5000);
+
+        for (int i = 0; i < 100; i++) {
+            adaptive.getLatencies().record(1000);
+        }
+
+        adaptive.setCeiling(5);
+        assertEquals(5, adaptive.getTimeout());
+
+        try {
+            new RetryTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Thread.sleep(1000);
+                    return null;
+                }
+            }, 1, fixed).call();
+
+            fail("Expected the attempt to time out");
+        } catch (TimeoutException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testJitteredBackoffIsCapped() {
+        DecorrelatedJitterBackoffAlgorithm backoff = new DecorrelatedJitterBackoffAlgorithm(100, 1000);
+
+        for (int i = 0; i < 100; i++) {
+            long delay = backoff.next();
+            assertTrue("Delay out of bounds: " + delay, delay >= 100 && delay <= 1000);
+        }
+    }
+}
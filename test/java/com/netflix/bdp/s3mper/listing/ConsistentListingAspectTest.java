@@ -175,6 +175,7 @@ public class ConsistentListingAspectTest {
         conf.setLong("s3mper.listing.recheck.count", 10);
         conf.setLong("s3mper.listing.recheck.period", 1000);
         conf.setFloat("s3mper.listing.threshold", 1);
+        conf.setLong("s3mper.listing.convergence.window", 0);
                 
         janitor.clearPath(testPath);
         deleteFs.delete(testPath, true);
@@ -597,6 +598,47 @@ public class ConsistentListingAspectTest {
         deleteFs.listStatus(testPath);
     }
     
+    @Test
+    public void testConvergedListingSkipsCheck() throws Exception {
+        Path p1 = new Path(testPath.toUri() + "/converged-1.test");
+        Path p2 = new Path(testPath.toUri() + "/converged-2.test");
+        
+        conf.setLong("s3mper.listing.convergence.window", 2000);
+        conf.setLong("s3mper.listing.recheck.count", 0);
+        
+        deleteFs.create(p1).close();
+        meta.add(p2, false);
+        
+        try {
+            deleteFs.listStatus(testPath);
+            fail("Missing file was not detected within the convergence window");
+        } catch (Exception e) {}
+        
+        //Past the window and the summary granularity
+        Thread.sleep(4000);
+        
+        assertEquals("Converged directory was checked", 1, deleteFs.listStatus(testPath).length);
+        
+        meta.delete(p2);
+    }
+    
+    @Test
+    public void testSummaryStampedOnClose() throws Exception {
+        Path path = new Path(testPath.toUri() + "/stamped.test");
+        
+        conf.setLong("s3mper.listing.convergence.window", 1000);
+        
+        OutputStream fout = deleteFs.create(path);
+        
+        //Open for longer than the summary granularity
+        Thread.sleep(2000);
+        
+        long closed = System.currentTimeMillis();
+        fout.close();
+        
+        assertTrue("Summary was not stamped on close", meta.getSummary(testPath).getLastWrite() >= closed);
+    }
+    
     @Test
     public void testTaskFailure() throws Exception {
         Path p1 = new Path(testPath.toUri() + "/task-fail-1.test");
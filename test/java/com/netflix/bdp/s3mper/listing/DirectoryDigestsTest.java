@@ -0,0 +1,116 @@
+package com.netflix.bdp.s3mper.listing;
+
+import com.netflix.bdp.s3mper.common.ExcludedPaths;
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.impl.InMemoryMetastore;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.normalize;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryDigestsTest {
+
+    private static final Path dir = new Path("s3n://s3mper-test/digests");
+    private static final Path other = new Path("s3n://s3mper-test/other");
+    private static final ExcludedPaths none = new ExcludedPaths("");
+
+    private InMemoryMetastore meta;
+
+    @Before
+    public void setUp() throws Exception {
+        meta = new InMemoryMetastore();
+        meta.initalize(URI.create("s3n://s3mper-test"), new Configuration(false));
+    }
+
+    @Test
+    public void testListingMatchesSummary() throws Exception {
+        meta.add(new Path(dir, "a"), false);
+        meta.add(new Path(dir, "b"), false);
+
+        assertTrue(digests(file("a"), file("b")).matches(summaries(dir)));
+
+        // Missing, extra and renamed entries
+        assertFalse(digests(file("a")).matches(summaries(dir)));
+        assertFalse(digests(file("a"), file("b"), file("c")).matches(summaries(dir)));
+        assertFalse(digests(file("a"), file("c")).matches(summaries(dir)));
+    }
+
+    @Test
+    public void testEntriesOfUnsummarizedDirectory() throws Exception {
+        meta.add(new Path(dir, "a"), false);
+
+        FileStatus stray = new FileStatus(0, false, 1, 0, 0, new Path(other, "a"));
+
+        assertFalse(digests(file("a"), stray).matches(summaries(dir)));
+    }
+
+    @Test
+    public void testUntrackedPathsLeftOut() throws Exception {
+        meta.add(new Path(dir, "a"), false);
+
+        FileStatus subdir = new FileStatus(0, true, 1, 0, 0, new Path(dir, "sub"));
+        FileStatus marker = file("_SUCCESS");
+        FileStatus [] listing = new FileStatus[] {file("a"), subdir, marker};
+
+        assertTrue(DirectoryDigests.of(listing, false, new ExcludedPaths("_SUCCESS")).matches(summaries(dir)));
+        assertFalse(DirectoryDigests.of(listing, true, new ExcludedPaths("_SUCCESS")).matches(summaries(dir)));
+        assertFalse(DirectoryDigests.of(listing, false, none).matches(summaries(dir)));
+    }
+
+    @Test
+    public void testStaleSummaries() throws Exception {
+        Path current = new Path(dir, "current");
+        Path outdated = new Path(dir, "outdated");
+        Path undigested = new Path(dir, "undigested");
+        Path unwritten = new Path(dir, "unwritten");
+        Path unsummarized = new Path(dir, "unsummarized");
+
+        meta.add(new Path(current, "a"), false);
+        meta.add(new Path(outdated, "a"), false);
+        meta.putSummary(new DirectorySummary(undigested, 0));
+
+        Map<String, DirectorySummary> summaries = summaries(current, outdated, undigested, unwritten, unsummarized);
+
+        // Written behind the digest's back
+        List<FileInfo> entries = Arrays.asList(
+                new FileInfo(new Path(current, "a")),
+                new FileInfo(new Path(current, "deleted"), true, false),
+                new FileInfo(new Path(outdated, "a")),
+                new FileInfo(new Path(outdated, "b")),
+                new FileInfo(new Path(unsummarized, "a")));
+
+        assertEquals(Arrays.asList(outdated, undigested, unsummarized),
+                DirectoryDigests.of(entries).stale(Arrays.asList(current, outdated, undigested, unwritten, unsummarized), summaries));
+    }
+
+    private static FileStatus file(String name) {
+        return new FileStatus(0, false, 1, 0, 0, new Path(dir, name));
+    }
+
+    private static DirectoryDigests digests(FileStatus... listing) {
+        return DirectoryDigests.of(listing, false, none);
+    }
+
+    private Map<String, DirectorySummary> summaries(Path... dirs) throws Exception {
+        Map<String, DirectorySummary> summaries = new HashMap<String, DirectorySummary>();
+
+        for (Path path : dirs) {
+            summaries.put(normalize(path), meta.getSummary(path));
+        }
+
+        return summaries;
+    }
+}
@@ -0,0 +1,58 @@
+package com.netflix.bdp.s3mper.listing;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class WriteSessionTest {
+
+    private static final Path dir = new Path("s3n://s3mper-test/session");
+    private static final List<Path> dirs = Collections.singletonList(dir);
+
+    @Test
+    public void testLocalAfterVerification() {
+        WriteSession session = new WriteSession(60000, 100);
+
+        session.written(new Path(dir, "file-0"), false);
+        assertNull("Directory must be verified first", session.list(dirs));
+
+        List<FileInfo> metastore = new ArrayList<FileInfo>();
+        metastore.add(new FileInfo(new Path(dir, "file-0"), false, false));
+        assertEquals(0, session.verify(dirs, metastore).size());
+
+        session.written(new Path(dir, "file-1"), false);
+        assertEquals(2, session.list(dirs).size());
+
+        session.deleted(new Path(dir, "file-0"));
+        assertEquals(1, session.list(dirs).size());
+    }
+
+    @Test
+    public void testForeignWriter() {
+        WriteSession session = new WriteSession(60000, 100);
+
+        session.written(new Path(dir, "file-0"), false);
+
+        List<FileInfo> metastore = new ArrayList<FileInfo>();
+        metastore.add(new FileInfo(new Path(dir, "file-0"), false, false));
+        metastore.add(new FileInfo(new Path(dir, "other"), false, false));
+        assertEquals(1, session.verify(dirs, metastore).size());
+        assertNull(session.list(dirs));
+
+        session.verify(dirs, metastore.subList(0, 1));
+        assertNull("Foreign directories stay foreign", session.list(dirs));
+
+        session.forget(dir);
+        session.written(new Path(dir, "file-0"), false);
+        session.verify(dirs, metastore.subList(0, 1));
+        assertNotNull(session.list(dirs));
+    }
+}
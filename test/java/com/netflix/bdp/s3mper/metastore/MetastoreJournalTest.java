@@ -0,0 +1,157 @@
+package com.netflix.bdp.s3mper.metastore;
+
+import com.netflix.bdp.s3mper.metastore.impl.InMemoryMetastore;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class MetastoreJournalTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/journal");
+
+    private File dir;
+    private RecordingMetastore meta;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "s3mper-journal-" + UUID.randomUUID());
+
+        meta = new RecordingMetastore();
+        meta.initalize(URI.create("s3n://s3mper-test"), new Configuration(false));
+    }
+
+    @After
+    public void tearDown() {
+        File [] files = dir.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testReplayAfterRestart() throws Exception {
+        MetastoreJournal journal = new MetastoreJournal(dir, meta, 60000, 2);
+
+        for (int i = 0; i < 5; i++) {
+            journal.add(Collections.singletonList(new FileInfo(new Path(testPath, "file-" + i), false, false)));
+        }
+        journal.delete(Arrays.asList(new Path(testPath, "file-0"), new Path(testPath, "file-1")));
+        journal.add(Collections.singletonList(new FileInfo(new Path(testPath, "file-0"), false, false)));
+        journal.close();
+
+        // A torn record at the end of the segment is ignored
+        File segment = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(raf.length());
+        raf.writeInt(100);
+        raf.writeByte(MetastoreJournal.ADD);
+        raf.close();
+
+        replay(2);
+
+        assertEquals(4, meta.list(Collections.singletonList(testPath)).size());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testSegmentsReplayedInOrder() throws Exception {
+        Path file = new Path(testPath, "file");
+
+        // Two processes sharing the directory: the add is journaled before the delete
+        MetastoreJournal first = new MetastoreJournal(dir, meta, 60000, 10);
+        first.add(Collections.singletonList(new FileInfo(file, false, false)));
+        first.close();
+
+        MetastoreJournal second = new MetastoreJournal(dir, meta, 60000, 10);
+        second.delete(Collections.singletonList(file));
+        second.close();
+
+        assertEquals(2, dir.listFiles().length);
+
+        replay(10);
+
+        assertEquals(0, meta.list(Collections.singletonList(testPath)).size());
+    }
+
+    @Test
+    public void testBatchCollapsedPerPath() throws Exception {
+        Path file = new Path(testPath, "file");
+        Path other = new Path(testPath, "other");
+
+        MetastoreJournal journal = new MetastoreJournal(dir, meta, 60000, 10);
+
+        for (int i = 0; i < 3; i++) {
+            journal.add(Collections.singletonList(new FileInfo(file, false, false)));
+            journal.delete(Collections.singletonList(other));
+        }
+        journal.add(Collections.singletonList(new FileInfo(other, false, false)));
+        journal.close();
+
+        replay(10);
+
+        assertEquals(1, meta.batches.size());
+        assertEquals(2, meta.batches.get(0).size());
+        assertEquals(2, new HashSet<Path>(meta.batches.get(0)).size());
+        assertEquals(2, meta.list(Collections.singletonList(testPath)).size());
+    }
+
+    @Test
+    public void testAddKeptWithoutFileSystemCheck() throws Exception {
+        // Not found by an eventually consistent lookup, but still registered
+        Path file = new Path(testPath, "not-yet-visible");
+
+        MetastoreJournal journal = new MetastoreJournal(dir, meta, 60000, 10);
+        journal.add(Collections.singletonList(new FileInfo(file, false, false)));
+        journal.close();
+
+        replay(10);
+
+        List<FileInfo> listing = meta.list(Collections.singletonList(testPath));
+        assertEquals(1, listing.size());
+        assertEquals(file, listing.get(0).getPath());
+    }
+
+    private void replay(int batchSize) throws Exception {
+        MetastoreJournal restarted = new MetastoreJournal(dir, meta, 60000, batchSize);
+
+        try {
+            restarted.replay();
+        } finally {
+            restarted.close();
+        }
+    }
+
+    private static class RecordingMetastore extends InMemoryMetastore {
+        final List<List<Path>> batches = new ArrayList<List<Path>>();
+
+        @Override
+        public void add(List<FileInfo> files) throws Exception {
+            List<Path> paths = new ArrayList<Path>();
+
+            for (FileInfo file : files) {
+                paths.add(file.getPath());
+            }
+            batches.add(paths);
+
+            super.add(files);
+        }
+    }
+}
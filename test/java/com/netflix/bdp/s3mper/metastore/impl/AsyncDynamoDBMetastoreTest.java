@@ -0,0 +1,297 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodb.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodb.model.AttributeValue;
+import com.amazonaws.services.dynamodb.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodb.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodb.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodb.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodb.model.GetItemRequest;
+import com.amazonaws.services.dynamodb.model.GetItemResult;
+import com.amazonaws.services.dynamodb.model.Key;
+import com.amazonaws.services.dynamodb.model.PutItemRequest;
+import com.amazonaws.services.dynamodb.model.PutItemResult;
+import com.amazonaws.services.dynamodb.model.QueryRequest;
+import com.amazonaws.services.dynamodb.model.QueryResult;
+import com.amazonaws.services.dynamodb.model.WriteRequest;
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncDynamoDBMetastoreTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/async-dynamodb");
+
+    private FakeDynamoDB fake;
+    private AsyncDynamoDBMetastore meta;
+
+    @Before
+    public void setUp() throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.setInt("s3mper.metastore.dynamodb.inflight", 2);
+        conf.setLong("s3mper.retry.backoff.base", 1);
+        conf.setLong("s3mper.retry.backoff.cap", 10);
+
+        fake = new FakeDynamoDB();
+        meta = new AsyncDynamoDBMetastore(fake.client());
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+    }
+
+    @After
+    public void tearDown() {
+        meta.close();
+        fake.executor.shutdownNow();
+    }
+
+    @Test
+    public void testBatchedWritesAndPagedListing() throws Exception {
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        List<Path> dirs = new ArrayList<Path>();
+
+        for (int d = 0; d < 4; d++) {
+            Path dir = new Path(testPath, "dir-" + d);
+            dirs.add(dir);
+
+            for (int i = 0; i < 15; i++) {
+                files.add(new FileInfo(new Path(dir, "file-" + i), false, false));
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        meta.add(files);
+
+        // 60 entries, 60 timeseries entries and 4 summaries in five batches, plus one resend
+        assertEquals(6, fake.batches.get());
+        assertTrue("Unprocessed items were not resent", fake.unprocessedSent.get());
+
+        assertEquals(60, meta.list(dirs).size());
+        assertTrue(meta.getSummary(dirs.get(0)).getLastWrite() >= start);
+        assertNull(meta.getSummary(testPath));
+        assertTrue("Too many requests in flight: " + fake.maxInFlight.get(), fake.maxInFlight.get() <= 2);
+
+        meta.delete(Arrays.asList(new Path(dirs.get(0), "file-0"), new Path(dirs.get(0), "file-1")));
+        assertEquals(13, meta.list(Collections.singletonList(dirs.get(0))).size());
+    }
+
+    @Test
+    public void testDigestRebuiltAndDroppedByBatchWrites() throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.setBoolean("s3mper.metastore.summary.digest", true);
+
+        AsyncDynamoDBMetastore digests = new AsyncDynamoDBMetastore(fake.client());
+        digests.initalize(URI.create("s3n://s3mper-test"), conf);
+
+        try {
+            Path dir = new Path(testPath, "digest");
+            digests.add(Arrays.asList(new FileInfo(new Path(dir, "a"), false, false), new FileInfo(new Path(dir, "b"), false, false)));
+            assertFalse(digests.getSummary(dir).hasDigest());
+
+            digests.rebuildSummary(dir);
+            DirectorySummary summary = digests.getSummary(dir);
+            assertTrue(summary.hasDigest());
+            assertEquals(2, summary.getEntries());
+            assertEquals(DirectorySummary.hash("a") + DirectorySummary.hash("b"), summary.getDigest());
+
+            digests.add(new Path(dir, "c"), false);
+            assertFalse(digests.getSummary(dir).hasDigest());
+        } finally {
+            digests.close();
+        }
+    }
+
+    /**
+     * Serves queries two items per page and leaves the last item of the
+     * first batch write unprocessed.
+     */
+    private static class FakeDynamoDB implements InvocationHandler {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final Map<String, ConcurrentSkipListMap<String, Map<String, AttributeValue>>> table =
+                new HashMap<String, ConcurrentSkipListMap<String, Map<String, AttributeValue>>>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicBoolean unprocessedSent = new AtomicBoolean();
+
+        AmazonDynamoDBAsync client() {
+            return (AmazonDynamoDBAsync) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {AmazonDynamoDBAsync.class}, this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, final Object[] args) throws Throwable {
+            final AsyncHandler<AmazonWebServiceRequest, Object> handler = (AsyncHandler<AmazonWebServiceRequest, Object>) args[1];
+
+            if (method.getName().equals("queryAsync")) {
+                return run((AmazonWebServiceRequest) args[0], handler, new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return query((QueryRequest) args[0]);
+                    }
+                });
+            }
+            if (method.getName().equals("getItemAsync")) {
+                return run((AmazonWebServiceRequest) args[0], handler, new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        Key key = ((GetItemRequest) args[0]).getKey();
+                        return new GetItemResult().withItem(
+                                partition(key.getHashKeyElement().getS()).get(key.getRangeKeyElement().getS()));
+                    }
+                });
+            }
+            if (method.getName().equals("putItemAsync")) {
+                try {
+                    final PutItemResult result = put((PutItemRequest) args[0]);
+
+                    return run((AmazonWebServiceRequest) args[0], handler, new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            return result;
+                        }
+                    });
+                } catch (ConditionalCheckFailedException e) {
+                    handler.onError(e);
+                    return null;
+                }
+            }
+            if (method.getName().equals("batchWriteItemAsync")) {
+                return run((AmazonWebServiceRequest) args[0], handler, new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return write((BatchWriteItemRequest) args[0]);
+                    }
+                });
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+
+        private Object run(final AmazonWebServiceRequest request, final AsyncHandler<AmazonWebServiceRequest, Object> handler, final Callable<Object> call) {
+            int current = inFlight.incrementAndGet();
+
+            while (maxInFlight.get() < current) {
+                maxInFlight.set(current);
+            }
+
+            return executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Thread.sleep(5);
+                    Object result = call.call();
+                    inFlight.decrementAndGet();
+                    handler.onSuccess(request, result);
+                    return result;
+                }
+            });
+        }
+
+        private synchronized ConcurrentSkipListMap<String, Map<String, AttributeValue>> partition(String hash) {
+            if (!table.containsKey(hash)) {
+                table.put(hash, new ConcurrentSkipListMap<String, Map<String, AttributeValue>>());
+            }
+            return table.get(hash);
+        }
+
+        private QueryResult query(QueryRequest query) {
+            ConcurrentSkipListMap<String, Map<String, AttributeValue>> items = partition(query.getHashKeyValue().getS());
+
+            if (query.getExclusiveStartKey() != null) {
+                items = new ConcurrentSkipListMap<String, Map<String, AttributeValue>>(
+                        items.tailMap(query.getExclusiveStartKey().getRangeKeyElement().getS(), false));
+            }
+
+            List<Map<String, AttributeValue>> page = new ArrayList<Map<String, AttributeValue>>();
+            QueryResult result = new QueryResult();
+
+            for (Map<String, AttributeValue> item : items.values()) {
+                if (page.size() == 2) {
+                    result.setLastEvaluatedKey(new Key(item.get("path"), page.get(1).get("file")));
+                    break;
+                }
+                page.add(item);
+            }
+
+            return result.withItems(page);
+        }
+
+        /**
+         * Puts an item if the expected attribute values hold, comparing
+         * numbers by their string form.
+         */
+        private synchronized PutItemResult put(PutItemRequest put) {
+            Map<String, AttributeValue> item = put.getItem();
+            Map<String, AttributeValue> old = partition(item.get("path").getS()).get(item.get("file").getS());
+
+            if (put.getExpected() != null) {
+                for (Map.Entry<String, ExpectedAttributeValue> expected : put.getExpected().entrySet()) {
+                    AttributeValue value = old == null ? null : old.get(expected.getKey());
+                    boolean holds = Boolean.FALSE.equals(expected.getValue().getExists())
+                            ? value == null
+                            : value != null && value.equals(expected.getValue().getValue());
+
+                    if (!holds) {
+                        throw new ConditionalCheckFailedException("The conditional request failed");
+                    }
+                }
+            }
+
+            partition(item.get("path").getS()).put(item.get("file").getS(), item);
+            return new PutItemResult();
+        }
+
+        private BatchWriteItemResult write(BatchWriteItemRequest batch) {
+            batches.incrementAndGet();
+            assertEquals(1, batch.getRequestItems().size());
+
+            List<WriteRequest> writes = batch.getRequestItems().values().iterator().next();
+            List<WriteRequest> unprocessed = new ArrayList<WriteRequest>();
+            assertTrue(writes.size() <= AsyncDynamoDBMetastore.MAX_BATCH_WRITE);
+
+            if (writes.size() > 1 && unprocessedSent.compareAndSet(false, true)) {
+                unprocessed.add(writes.get(writes.size() - 1));
+                writes = writes.subList(0, writes.size() - 1);
+            }
+
+            for (WriteRequest write : writes) {
+                if (write.getPutRequest() != null) {
+                    Map<String, AttributeValue> item = write.getPutRequest().getItem();
+                    partition(item.get("path").getS()).put(item.get("file").getS(), item);
+                } else {
+                    Key key = write.getDeleteRequest().getKey();
+                    partition(key.getHashKeyElement().getS()).remove(key.getRangeKeyElement().getS());
+                }
+            }
+
+            return new BatchWriteItemResult().withUnprocessedItems(
+                    Collections.singletonMap(batch.getRequestItems().keySet().iterator().next(), unprocessed));
+        }
+    }
+}
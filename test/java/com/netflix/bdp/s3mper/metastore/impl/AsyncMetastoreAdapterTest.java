@@ -0,0 +1,76 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.netflix.bdp.s3mper.common.Deadline;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class AsyncMetastoreAdapterTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/async");
+
+    private AsyncMetastoreAdapter meta;
+
+    @Before
+    public void setUp() throws Exception {
+        meta = new AsyncMetastoreAdapter(new DeadlineRecordingMetastore(), 4);
+        meta.initalize(URI.create("s3n://s3mper-test"), new Configuration(false));
+    }
+
+    @After
+    public void tearDown() {
+        meta.close();
+    }
+
+    @Test
+    public void testConcurrentCalls() throws Exception {
+        List<ListenableFuture<Void>> adds = new ArrayList<ListenableFuture<Void>>();
+
+        for (int i = 0; i < 20; i++) {
+            adds.add(meta.addAsync(new Path(testPath, "file-" + i), false));
+        }
+
+        Futures.allAsList(adds).get();
+
+        assertEquals(20, meta.listAsync(Collections.singletonList(testPath)).get().size());
+
+        meta.deleteAsync(new Path(testPath, "file-0")).get();
+        assertEquals(19, meta.list(Collections.singletonList(testPath)).size());
+    }
+
+    @Test
+    public void testDeadlineIsPropagated() throws Exception {
+        Long previous = Deadline.start(60000);
+
+        try {
+            meta.listAsync(Collections.singletonList(testPath)).get();
+        } finally {
+            Deadline.restore(previous);
+        }
+
+        assertNotNull(DeadlineRecordingMetastore.seen);
+    }
+
+    private static class DeadlineRecordingMetastore extends InMemoryMetastore {
+        static volatile Long seen;
+
+        @Override
+        public List<FileInfo> list(List<Path> pathList) throws Exception {
+            seen = Deadline.current();
+            return super.list(pathList);
+        }
+    }
+}
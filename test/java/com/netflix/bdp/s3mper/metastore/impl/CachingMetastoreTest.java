@@ -0,0 +1,158 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CachingMetastoreTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/caching");
+
+    private CountingMetastore backend;
+    private CachingMetastore meta;
+
+    private void initialize(long size, long ttl) throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.setLong("s3mper.metastore.cache.size", size);
+        conf.setLong("s3mper.metastore.cache.ttl", ttl);
+
+        backend = new CountingMetastore();
+        meta = new CachingMetastore(backend);
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        initialize(1000, 60000);
+        Path dir = new Path(testPath, "stats");
+        backend.add(new Path(dir, "file"), false);
+
+        assertEquals(1, list(dir).size());
+        assertEquals(1, list(dir).size());
+        assertEquals(1, list(dir).size());
+
+        assertEquals(1, backend.lists);
+        assertEquals(1, meta.getMissCount());
+        assertEquals(2, meta.getHitCount());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        initialize(1000, 50);
+        Path dir = new Path(testPath, "expiry");
+
+        assertEquals(0, list(dir).size());
+
+        // Written by another JVM, not seen until the listing expires
+        backend.add(new Path(dir, "file"), false);
+        assertEquals(0, list(dir).size());
+
+        Thread.sleep(100);
+
+        assertEquals(1, list(dir).size());
+        assertEquals(2, backend.lists);
+    }
+
+    @Test
+    public void testEvictionByEntries() throws Exception {
+        // Each two-entry listing weighs 3, so only one of them fits
+        initialize(5, 60000);
+        Path first = new Path(testPath, "first");
+        Path second = new Path(testPath, "second");
+
+        for (Path dir : new Path[] {first, second}) {
+            backend.add(new Path(dir, "a"), false);
+            backend.add(new Path(dir, "b"), false);
+        }
+
+        list(first);
+        list(second);
+        assertEquals(2, backend.lists);
+
+        list(second);
+        assertEquals(2, backend.lists);
+
+        list(first);
+        assertEquals(3, backend.lists);
+    }
+
+    @Test
+    public void testWritesUpdateCachedListing() throws Exception {
+        initialize(1000, 60000);
+        Path dir = new Path(testPath, "update");
+        Path file = new Path(dir, "file");
+
+        assertEquals(0, list(dir).size());
+
+        meta.add(file, false);
+        List<FileInfo> listing = list(dir);
+        assertEquals(1, listing.size());
+        assertEquals(file, listing.get(0).getPath());
+
+        meta.add(Collections.singletonList(new FileInfo(file, false, true)));
+        listing = list(dir);
+        assertEquals(1, listing.size());
+        assertTrue(listing.get(0).isDirectory());
+
+        meta.delete(file);
+        assertEquals(0, list(dir).size());
+
+        assertEquals(1, backend.lists);
+    }
+
+    @Test
+    public void testWriteDuringFetchNotLost() throws Exception {
+        initialize(1000, 60000);
+        Path dir = new Path(testPath, "racing");
+        final Path file = new Path(dir, "file");
+
+        // The add lands after the backend answered, before the answer is cached
+        backend.afterList = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    meta.add(file, false);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        assertEquals(0, list(dir).size());
+
+        List<FileInfo> listing = list(dir);
+        assertEquals(1, listing.size());
+        assertEquals(file, listing.get(0).getPath());
+        assertEquals(2, backend.lists);
+    }
+
+    private List<FileInfo> list(Path path) throws Exception {
+        return meta.list(Collections.singletonList(path));
+    }
+
+    private static class CountingMetastore extends InMemoryMetastore {
+        int lists = 0;
+        Runnable afterList;
+
+        @Override
+        public List<FileInfo> list(List<Path> pathList) throws Exception {
+            lists++;
+            List<FileInfo> listing = super.list(pathList);
+
+            if (afterList != null) {
+                Runnable run = afterList;
+                afterList = null;
+                run.run();
+            }
+            return listing;
+        }
+    }
+}
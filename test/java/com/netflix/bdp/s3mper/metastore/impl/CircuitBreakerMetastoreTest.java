@@ -0,0 +1,188 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.common.CircuitBreaker;
+import com.netflix.bdp.s3mper.common.QueueTimeoutException;
+import com.netflix.bdp.s3mper.metastore.CircuitOpenException;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerMetastoreTest {
+
+    private static final URI uri = URI.create("s3n://s3mper-test");
+    private static final Path testPath = new Path("s3n://s3mper-test/circuit");
+
+    private Configuration conf;
+    private FlakyMetastore backend;
+    private CircuitBreakerMetastore meta;
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration(false);
+        conf.setInt("s3mper.metastore.circuit.window", 4);
+        conf.setInt("s3mper.metastore.circuit.min.calls", 4);
+        conf.setLong("s3mper.metastore.circuit.open.duration", 200);
+
+        backend = new FlakyMetastore();
+        meta = new CircuitBreakerMetastore(backend);
+    }
+
+    @Test
+    public void testOpensAndRecovers() throws Exception {
+        meta.initalize(uri, conf);
+        meta.add(new Path(testPath, "file"), false);
+
+        backend.failing = true;
+
+        // One success and three failures fill the window of four calls
+        for (int i = 0; i < 3; i++) {
+            try {
+                meta.list(Collections.singletonList(testPath));
+                fail("Expected the backend to fail");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, meta.getCircuitBreaker().getState());
+
+        int calls = backend.calls;
+        assertTrue(rejected().isNewlyOpened());
+        assertFalse(rejected().isNewlyOpened());
+        assertEquals("Open circuit must not reach the backend", calls, backend.calls);
+
+        backend.failing = false;
+        Thread.sleep(300);
+
+        assertEquals(1, meta.list(Collections.singletonList(testPath)).size());
+        assertEquals(CircuitBreaker.State.CLOSED, meta.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testFailedInitializationIsRetried() throws Exception {
+        backend.failing = true;
+        meta.initalize(uri, conf);
+
+        assertEquals(CircuitBreaker.State.OPEN, meta.getCircuitBreaker().getState());
+        assertTrue(rejected().isNewlyOpened());
+
+        backend.failing = false;
+        Thread.sleep(300);
+
+        meta.add(new Path(testPath, "file"), false);
+        assertEquals(1, meta.list(Collections.singletonList(testPath)).size());
+        assertEquals(CircuitBreaker.State.CLOSED, meta.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testQueueTimeoutsNotCounted() throws Exception {
+        meta.initalize(uri, conf);
+
+        backend.failing = true;
+        backend.failure = new QueueTimeoutException("no retry thread");
+
+        for (int i = 0; i < 4; i++) {
+            try {
+                meta.list(Collections.singletonList(testPath));
+                fail("Expected the call to time out");
+            } catch (QueueTimeoutException e) {
+                // expected
+            }
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, meta.getCircuitBreaker().getState());
+
+        // A probe that never reached the backend frees its slot
+        meta.getCircuitBreaker().open();
+        Thread.sleep(300);
+
+        try {
+            meta.list(Collections.singletonList(testPath));
+            fail("Expected the call to time out");
+        } catch (QueueTimeoutException e) {
+            // expected
+        }
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, meta.getCircuitBreaker().getState());
+
+        backend.failing = false;
+        meta.list(Collections.singletonList(testPath));
+        assertEquals(CircuitBreaker.State.CLOSED, meta.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testErrorReleasesProbe() throws Exception {
+        backend.failing = true;
+        meta.initalize(uri, conf);
+        assertEquals(CircuitBreaker.State.OPEN, meta.getCircuitBreaker().getState());
+
+        // The probe fails initializing the backend with an Error
+        backend.error = new NoClassDefFoundError("backend");
+        Thread.sleep(300);
+
+        try {
+            meta.list(Collections.singletonList(testPath));
+            fail("Expected the initialization to fail");
+        } catch (NoClassDefFoundError e) {
+            // expected
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, meta.getCircuitBreaker().getState());
+
+        backend.failing = false;
+        backend.error = null;
+        Thread.sleep(300);
+
+        meta.list(Collections.singletonList(testPath));
+        assertEquals(CircuitBreaker.State.CLOSED, meta.getCircuitBreaker().getState());
+    }
+
+    private CircuitOpenException rejected() throws Exception {
+        try {
+            meta.list(Collections.singletonList(testPath));
+        } catch (CircuitOpenException e) {
+            return e;
+        }
+
+        fail("Expected the circuit to be open");
+        return null;
+    }
+
+    private static class FlakyMetastore extends InMemoryMetastore {
+        volatile boolean failing = false;
+        volatile Exception failure = new IllegalStateException("unavailable");
+        volatile Error error;
+        volatile int calls = 0;
+
+        @Override
+        public void initalize(URI uri, Configuration conf) throws Exception {
+            if (error != null) {
+                throw error;
+            }
+            if (failing) {
+                throw new IllegalStateException("unavailable");
+            }
+            super.initalize(uri, conf);
+        }
+
+        @Override
+        public List<FileInfo> list(List<Path> pathList) throws Exception {
+            calls++;
+            if (failing) {
+                throw failure;
+            }
+            return super.list(pathList);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class DedupingMetastoreTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/dedup");
+
+    private Configuration conf;
+    private CountingMetastore backend;
+    private DedupingMetastore meta;
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration(false);
+        backend = new CountingMetastore();
+        meta = new DedupingMetastore(backend);
+    }
+
+    @Test
+    public void testRepeatedAddsAreSkipped() throws Exception {
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+
+        meta.add(testPath, true);
+        meta.add(testPath, true);
+        assertEquals(1, backend.entries);
+
+        meta.delete(testPath);
+        meta.add(testPath, true);
+        assertEquals(2, backend.entries);
+    }
+
+    @Test
+    public void testFileAddsAreNotSkipped() throws Exception {
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+
+        // A rewrite must replace a delete marker left by another JVM
+        meta.add(new Path(testPath, "file"), false);
+        meta.add(new Path(testPath, "file"), false);
+        assertEquals(2, backend.entries);
+    }
+
+    @Test
+    public void testMissingAncestors() throws Exception {
+        conf.setBoolean("s3mper.metastore.dedup.ancestors", true);
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+
+        meta.add(new Path(testPath, "a/b/file-0"), false);
+        assertEquals(4, backend.entries);
+
+        meta.add(new Path(testPath, "a/b/file-1"), false);
+        assertEquals(5, backend.entries);
+        assertEquals(2, meta.list(Collections.singletonList(new Path(testPath, "a/b"))).size());
+    }
+
+    private static class CountingMetastore extends InMemoryMetastore {
+        int entries = 0;
+
+        @Override
+        public void add(Path path, boolean directory) throws Exception {
+            entries++;
+            super.add(path, directory);
+        }
+    }
+}
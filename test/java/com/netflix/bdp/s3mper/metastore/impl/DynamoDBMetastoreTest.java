@@ -0,0 +1,216 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodb.model.AttributeAction;
+import com.amazonaws.services.dynamodb.model.AttributeValue;
+import com.amazonaws.services.dynamodb.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodb.model.PutItemRequest;
+import com.amazonaws.services.dynamodb.model.QueryRequest;
+import com.amazonaws.services.dynamodb.model.UpdateItemRequest;
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DynamoDBMetastoreTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/dynamodb");
+
+    private InMemoryDynamoDB fake;
+    private DynamoDBMetastore meta;
+
+    private void initialize(long granularity, boolean digest) throws Exception {
+        fake = new InMemoryDynamoDB();
+        meta = metastore(granularity, digest, 600000);
+    }
+
+    private DynamoDBMetastore metastore(long granularity, boolean digest, long grace) throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.setLong("s3mper.metastore.summary.granularity", granularity);
+        conf.setBoolean("s3mper.metastore.summary.digest", digest);
+        conf.setLong("s3mper.metastore.summary.digest.grace", grace);
+
+        DynamoDBMetastore metastore = new DynamoDBMetastore(fake.client());
+        metastore.initalize(URI.create("s3n://s3mper-test"), conf);
+        return metastore;
+    }
+
+    @After
+    public void tearDown() {
+        meta.close();
+    }
+
+    @Test
+    public void testSummaryStampedAhead() throws Exception {
+        initialize(60000, false);
+        Path dir = new Path(testPath, "ahead");
+
+        long start = System.currentTimeMillis();
+        meta.add(new Path(dir, "a"), false);
+        meta.add(new Path(dir, "b"), false);
+
+        assertTrue(meta.getSummary(dir).getLastWrite() >= start + 60000);
+
+        // Two entries and their timeseries items, but only one summary
+        assertEquals(5, fake.count(PutItemRequest.class));
+
+        // Still ahead, so closing a file of the directory needs no write
+        meta.stampSummary(dir);
+        assertEquals(5, fake.count(PutItemRequest.class));
+    }
+
+    @Test
+    public void testStampSummaryAfterGranularity() throws Exception {
+        initialize(10, false);
+        Path dir = new Path(testPath, "stamp");
+
+        meta.add(new Path(dir, "a"), false);
+        Thread.sleep(50);
+
+        long closed = System.currentTimeMillis();
+        meta.stampSummary(dir);
+
+        assertTrue(meta.getSummary(dir).getLastWrite() >= closed);
+    }
+
+    @Test
+    public void testStampSummaryKeepsDigest() throws Exception {
+        initialize(10, true);
+        Path dir = new Path(testPath, "digest");
+
+        meta.add(new Path(dir, "a"), false);
+        meta.add(new Path(dir, "b"), false);
+        meta.rebuildSummary(dir);
+        Thread.sleep(20);
+
+        long closed = System.currentTimeMillis();
+        meta.stampSummary(dir);
+
+        DirectorySummary summary = meta.getSummary(dir);
+        assertTrue(summary.getLastWrite() >= closed);
+        assertTrue(summary.hasDigest());
+        assertEquals(2, summary.getEntries());
+        assertEquals(DirectorySummary.hash("a") + DirectorySummary.hash("b"), summary.getDigest());
+    }
+
+    @Test
+    public void testDigestFollowsWrites() throws Exception {
+        initialize(10, true);
+        Path dir = new Path(testPath, "follows");
+
+        meta.add(new Path(dir, "a"), false);
+        assertFalse(meta.getSummary(dir).hasDigest());
+
+        meta.rebuildSummary(dir);
+        meta.add(new Path(dir, "b"), false);
+        meta.add(new Path(dir, "c"), false);
+        meta.delete(new Path(dir, "a"));
+
+        // Neither changes the entries
+        meta.add(new Path(dir, "b"), false);
+        meta.delete(new Path(dir, "missing"));
+
+        DirectorySummary summary = meta.getSummary(dir);
+        assertTrue(summary.hasDigest());
+        assertEquals(2, summary.getEntries());
+        assertEquals(DirectorySummary.hash("b") + DirectorySummary.hash("c"), summary.getDigest());
+
+        // Each write marks itself pending, writes the entry and its timeseries item, and finishes
+        int updates = fake.count(UpdateItemRequest.class);
+        meta.add(new Path(dir, "d"), false);
+        assertEquals(updates + 2, fake.count(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void testRebuildLosesToConcurrentWrite() throws Exception {
+        initialize(10, true);
+        final Path dir = new Path(testPath, "concurrent");
+
+        meta.add(new Path(dir, "a"), false);
+
+        // Another writer starts after the rebuild read the summary
+        fake.before(QueryRequest.class, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    meta.add(new Path(dir, "b"), false);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        meta.rebuildSummary(dir);
+        assertFalse(meta.getSummary(dir).hasDigest());
+
+        meta.rebuildSummary(dir);
+        DirectorySummary summary = meta.getSummary(dir);
+        assertTrue(summary.hasDigest());
+        assertEquals(2, summary.getEntries());
+    }
+
+    @Test
+    public void testPendingWriteBlocksDigest() throws Exception {
+        initialize(10, true);
+        Path dir = new Path(testPath, "pending");
+
+        meta.add(new Path(dir, "a"), false);
+        meta.rebuildSummary(dir);
+        assertTrue(meta.getSummary(dir).hasDigest());
+
+        // A writer died between marking itself pending and finishing
+        fake.client().updateItem(new UpdateItemRequest()
+                .withTableName("ConsistentListingMetastore")
+                .withKey(DynamoDBMetastore.summaryKey(dir))
+                .withAttributeUpdates(Collections.singletonMap(DynamoDBMetastore.PENDING_VALUE,
+                        new AttributeValueUpdate(new AttributeValue().withN("1"), AttributeAction.ADD))));
+
+        assertFalse(meta.getSummary(dir).hasDigest());
+
+        meta.rebuildSummary(dir);
+        assertFalse(meta.getSummary(dir).hasDigest());
+
+        // Past the grace period the writer is assumed to have failed
+        DynamoDBMetastore later = metastore(10, true, 0);
+
+        try {
+            later.rebuildSummary(dir);
+        } finally {
+            later.close();
+        }
+
+        DirectorySummary summary = meta.getSummary(dir);
+        assertTrue(summary.hasDigest());
+        assertEquals(1, summary.getEntries());
+    }
+
+    @Test
+    public void testRetriedWriteDropsDigest() throws Exception {
+        initialize(10, true);
+        Path dir = new Path(testPath, "retried");
+
+        meta.add(new Path(dir, "a"), false);
+        meta.rebuildSummary(dir);
+
+        // The retry cannot tell whether the first attempt wrote the entry
+        fake.before(PutItemRequest.class, new Runnable() {
+            @Override
+            public void run() {
+                throw new AmazonServiceException("Injected failure");
+            }
+        });
+
+        meta.add(new Path(dir, "b"), false);
+
+        assertFalse(meta.getSummary(dir).hasDigest());
+        assertEquals(2, meta.list(Collections.singletonList(dir)).size());
+    }
+}
@@ -0,0 +1,132 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.String.format;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs HBaseMetastore against an HBase mini-cluster with a pre-split table
+ * spread over several region servers and compares batched commits with
+ * per-file registration.  Excluded from the test task; run it with
+ * gradle performanceTest.
+ */
+public class HBaseMetastorePerformanceTest {
+
+    private static final String TABLE = "s3mper-perf";
+    private static final int DIRECTORIES = 50;
+    private static final int FILES = 40;
+
+    private static HBaseTestingUtility cluster;
+    private static HBaseMetastore meta;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        cluster = new HBaseTestingUtility();
+        cluster.startMiniCluster(3);
+
+        byte[][] splits = new byte[9][];
+        for (int i = 0; i < splits.length; i++) {
+            splits[i] = Bytes.toBytes("s3n://s3mper-perf/part-" + (i + 1));
+        }
+        cluster.createTable(TableName.valueOf(TABLE), new byte[][] { HBaseMetastore.COLUMN_FAMILY_NAME }, splits);
+
+        Configuration conf = new Configuration(cluster.getConfiguration());
+        conf.set("s3mper.metastore.name", TABLE);
+
+        meta = new HBaseMetastore();
+        meta.initalize(URI.create("s3n://s3mper-perf"), conf);
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        if (meta != null) {
+            meta.close();
+        }
+
+        if (cluster != null) {
+            cluster.shutdownMiniCluster();
+        }
+    }
+
+    @Test
+    public void testBatchedCommit() throws Exception {
+        List<FileInfo> files = files("batch");
+        List<Path> dirs = directories("batch");
+
+        long start = System.currentTimeMillis();
+        meta.add(files);
+        long batched = System.currentTimeMillis() - start;
+
+        assertEquals(files.size(), meta.list(dirs).size());
+
+        List<FileInfo> single = files("single");
+
+        start = System.currentTimeMillis();
+        for (FileInfo file : single) {
+            meta.add(file.getPath(), file.isDirectory());
+        }
+        long serial = System.currentTimeMillis() - start;
+
+        assertEquals(single.size(), meta.list(directories("single")).size());
+
+        System.out.println(format("Registered %d files in %d directories: batched=%d (ms), per-file=%d (ms)",
+                files.size(), DIRECTORIES, batched, serial));
+    }
+
+    @Test
+    public void testBatchedDelete() throws Exception {
+        List<FileInfo> files = files("delete");
+        List<Path> dirs = directories("delete");
+
+        meta.add(files);
+
+        List<Path> paths = new ArrayList<Path>();
+        for (FileInfo file : files) {
+            paths.add(file.getPath());
+        }
+
+        long start = System.currentTimeMillis();
+        meta.delete(paths);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(0, meta.list(dirs).size());
+
+        System.out.println(format("Deleted %d files in %d directories: %d (ms)", paths.size(), DIRECTORIES, elapsed));
+    }
+
+    private static List<Path> directories(String prefix) {
+        List<Path> dirs = new ArrayList<Path>();
+
+        for (int d = 0; d < DIRECTORIES; d++) {
+            dirs.add(new Path("s3n://s3mper-perf/part-" + (d % 10) + "/" + prefix + "-" + d));
+        }
+
+        return dirs;
+    }
+
+    private static List<FileInfo> files(String prefix) {
+        List<FileInfo> files = new ArrayList<FileInfo>();
+
+        for (Path dir : directories(prefix)) {
+            for (int f = 0; f < FILES; f++) {
+                files.add(new FileInfo(new Path(dir, "file-" + f)));
+            }
+        }
+
+        return files;
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.amazonaws.services.dynamodb.AmazonDynamoDB;
+import com.amazonaws.services.dynamodb.model.AttributeAction;
+import com.amazonaws.services.dynamodb.model.AttributeValue;
+import com.amazonaws.services.dynamodb.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodb.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodb.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodb.model.DeleteItemResult;
+import com.amazonaws.services.dynamodb.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodb.model.GetItemRequest;
+import com.amazonaws.services.dynamodb.model.GetItemResult;
+import com.amazonaws.services.dynamodb.model.Key;
+import com.amazonaws.services.dynamodb.model.PutItemRequest;
+import com.amazonaws.services.dynamodb.model.PutItemResult;
+import com.amazonaws.services.dynamodb.model.QueryRequest;
+import com.amazonaws.services.dynamodb.model.QueryResult;
+import com.amazonaws.services.dynamodb.model.ReturnValue;
+import com.amazonaws.services.dynamodb.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodb.model.UpdateItemResult;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Synchronous DynamoDB client keeping the table in memory, for the requests
+ * DynamoDBMetastore makes.  Items are keyed by the "path" and "file"
+ * attributes and queries return a single page.
+ */
+class InMemoryDynamoDB implements InvocationHandler {
+    final Map<String, TreeMap<String, Map<String, AttributeValue>>> table =
+            new HashMap<String, TreeMap<String, Map<String, AttributeValue>>>();
+    final List<Object> requests = new ArrayList<Object>();
+
+    private Class<?> hookType;
+    private Runnable hook;
+
+    AmazonDynamoDB client() {
+        return (AmazonDynamoDB) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {AmazonDynamoDB.class}, this);
+    }
+
+    /**
+     * Runs the hook once, before the next request of the given type is
+     * applied, e.g. to interleave a concurrent writer or fail the request.
+     */
+    synchronized void before(Class<?> type, Runnable hook) {
+        this.hookType = type;
+        this.hook = hook;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Runnable run = null;
+
+        synchronized (this) {
+            if (hook != null && hookType.isInstance(args[0])) {
+                run = hook;
+                hook = null;
+            }
+        }
+
+        if (run != null) {
+            run.run();
+        }
+
+        synchronized (this) {
+            requests.add(args[0]);
+
+            if (method.getName().equals("putItem")) {
+                return put((PutItemRequest) args[0]);
+            }
+            if (method.getName().equals("getItem")) {
+                Key key = ((GetItemRequest) args[0]).getKey();
+                return new GetItemResult().withItem(copy(item(key)));
+            }
+            if (method.getName().equals("query")) {
+                QueryRequest query = (QueryRequest) args[0];
+                List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+
+                for (Map<String, AttributeValue> item : partition(query.getHashKeyValue().getS()).values()) {
+                    items.add(copy(item));
+                }
+                return new QueryResult().withItems(items);
+            }
+            if (method.getName().equals("deleteItem")) {
+                DeleteItemRequest delete = (DeleteItemRequest) args[0];
+                Key key = delete.getKey();
+                Map<String, AttributeValue> old = partition(key.getHashKeyElement().getS()).remove(key.getRangeKeyElement().getS());
+
+                return new DeleteItemResult().withAttributes(returned(delete.getReturnValues(), old));
+            }
+            if (method.getName().equals("updateItem")) {
+                return update((UpdateItemRequest) args[0]);
+            }
+        }
+        throw new UnsupportedOperationException(method.getName());
+    }
+
+    /**
+     * @return the number of requests of the given type made so far
+     */
+    synchronized int count(Class<?> type) {
+        int count = 0;
+
+        for (Object request : requests) {
+            if (type.isInstance(request)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private PutItemResult put(PutItemRequest put) {
+        Map<String, AttributeValue> item = put.getItem();
+        Map<String, AttributeValue> old = partition(item.get("path").getS()).get(item.get("file").getS());
+
+        check(put.getExpected(), old);
+        partition(item.get("path").getS()).put(item.get("file").getS(), copy(item));
+
+        return new PutItemResult().withAttributes(returned(put.getReturnValues(), old));
+    }
+
+    /**
+     * Applies PUT, ADD (to numbers) and DELETE attribute updates, creating
+     * the item if it does not exist.
+     */
+    private UpdateItemResult update(UpdateItemRequest update) {
+        Key key = update.getKey();
+        Map<String, AttributeValue> old = item(key);
+        Map<String, AttributeValue> item = old == null ? new HashMap<String, AttributeValue>() : copy(old);
+
+        item.put("path", key.getHashKeyElement());
+        item.put("file", key.getRangeKeyElement());
+
+        for (Map.Entry<String, AttributeValueUpdate> entry : update.getAttributeUpdates().entrySet()) {
+            String action = entry.getValue().getAction();
+
+            if (AttributeAction.DELETE.toString().equals(action)) {
+                item.remove(entry.getKey());
+            } else if (AttributeAction.ADD.toString().equals(action)) {
+                AttributeValue current = item.get(entry.getKey());
+                long sum = Long.parseLong(entry.getValue().getValue().getN())
+                        + (current == null ? 0 : Long.parseLong(current.getN()));
+                item.put(entry.getKey(), new AttributeValue().withN(sum + ""));
+            } else {
+                item.put(entry.getKey(), entry.getValue().getValue());
+            }
+        }
+
+        partition(key.getHashKeyElement().getS()).put(key.getRangeKeyElement().getS(), item);
+
+        return new UpdateItemResult().withAttributes(returned(update.getReturnValues(), old));
+    }
+
+    private static void check(Map<String, ExpectedAttributeValue> expected, Map<String, AttributeValue> old) {
+        if (expected == null) {
+            return;
+        }
+
+        for (Map.Entry<String, ExpectedAttributeValue> entry : expected.entrySet()) {
+            AttributeValue value = old == null ? null : old.get(entry.getKey());
+            boolean holds = Boolean.FALSE.equals(entry.getValue().getExists())
+                    ? value == null
+                    : value != null && value.equals(entry.getValue().getValue());
+
+            if (!holds) {
+                throw new ConditionalCheckFailedException("The conditional request failed");
+            }
+        }
+    }
+
+    private static Map<String, AttributeValue> returned(String returnValues, Map<String, AttributeValue> old) {
+        return ReturnValue.ALL_OLD.toString().equals(returnValues) ? copy(old) : null;
+    }
+
+    synchronized Map<String, AttributeValue> item(Key key) {
+        return partition(key.getHashKeyElement().getS()).get(key.getRangeKeyElement().getS());
+    }
+
+    private TreeMap<String, Map<String, AttributeValue>> partition(String hash) {
+        if (!table.containsKey(hash)) {
+            table.put(hash, new TreeMap<String, Map<String, AttributeValue>>());
+        }
+        return table.get(hash);
+    }
+
+    private static Map<String, AttributeValue> copy(Map<String, AttributeValue> item) {
+        return item == null ? null : new HashMap<String, AttributeValue>(item);
+    }
+}
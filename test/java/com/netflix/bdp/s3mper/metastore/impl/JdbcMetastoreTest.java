@@ -0,0 +1,205 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises the JDBC metastore against an embedded H2 database.
+ */
+public class JdbcMetastoreTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/jdbc");
+
+    private Configuration conf;
+    private JdbcMetastore meta;
+
+    @Before
+    public void setUp() throws Exception {
+        String runId = Integer.toHexString(new Random().nextInt());
+
+        conf = new Configuration(false);
+        conf.set("s3mper.metastore.jdbc.url", "jdbc:h2:mem:s3mper-" + runId + ";DB_CLOSE_DELAY=-1");
+        conf.set("s3mper.metastore.jdbc.driver", "org.h2.Driver");
+        conf.setBoolean("s3mper.metastore.create", true);
+
+        meta = new JdbcMetastore();
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        meta.close();
+    }
+
+    @Test
+    public void testAddListDelete() throws Exception {
+        Path file = new Path(testPath, "file.test");
+        Path dir = new Path(testPath, "dir.test");
+
+        meta.add(file, false);
+        meta.add(dir, true);
+
+        List<FileInfo> listing = meta.list(asList(testPath));
+        assertEquals(2, listing.size());
+        assertTrue(listing.contains(new FileInfo(file, false, false)));
+        assertTrue(listing.contains(new FileInfo(dir, false, true)));
+
+        meta.delete(file);
+
+        listing = meta.list(asList(testPath));
+        assertEquals(1, listing.size());
+        assertEquals(dir, listing.get(0).getPath());
+    }
+
+    @Test
+    public void testReAddReplacesEntry() throws Exception {
+        Path file = new Path(testPath, "readd.test");
+
+        meta.add(file, false);
+        meta.add(file, true);
+
+        List<FileInfo> listing = meta.list(asList(testPath));
+        assertEquals(1, listing.size());
+        assertTrue(listing.get(0).isDirectory());
+    }
+
+    @Test
+    public void testBatchWithDuplicatePaths() throws Exception {
+        Path file = new Path(testPath, "duplicate.test");
+
+        meta.add(asList(new FileInfo(file, false, false), new FileInfo(new Path(testPath, "other.test")), new FileInfo(file, false, true)));
+
+        List<FileInfo> listing = meta.list(asList(testPath));
+        assertEquals(2, listing.size());
+        assertTrue(listing.contains(new FileInfo(file, false, true)));
+    }
+
+    @Test
+    public void testBatchAcrossDirectories() throws Exception {
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        List<Path> dirs = new ArrayList<Path>();
+
+        for (int d = 0; d < 5; d++) {
+            Path dir = new Path(testPath, "part-" + d);
+            dirs.add(dir);
+
+            for (int f = 0; f < 200; f++) {
+                files.add(new FileInfo(new Path(dir, "file-" + f)));
+            }
+        }
+
+        meta.add(files);
+
+        List<FileInfo> listing = meta.list(dirs);
+        assertEquals(files.size(), listing.size());
+
+        List<Path> deletes = new ArrayList<Path>();
+        for (FileInfo file : files.subList(0, 500)) {
+            deletes.add(file.getPath());
+        }
+
+        meta.delete(deletes);
+
+        listing = meta.list(dirs);
+        assertEquals(files.size() - deletes.size(), listing.size());
+
+        Set<Path> remaining = new HashSet<Path>();
+        for (FileInfo file : listing) {
+            remaining.add(file.getPath());
+        }
+
+        for (Path deleted : deletes) {
+            assertFalse(remaining.contains(deleted));
+        }
+    }
+
+    @Test
+    public void testDeleteMarker() throws Exception {
+        Configuration markerConf = new Configuration(conf);
+        markerConf.setBoolean("s3mper.metastore.deleteMarker.enabled", true);
+
+        JdbcMetastore markerMeta = new JdbcMetastore();
+        markerMeta.initalize(URI.create("s3n://s3mper-test"), markerConf);
+
+        try {
+            Path file = new Path(testPath, "marker.test");
+
+            markerMeta.add(file, false);
+            markerMeta.delete(file);
+
+            List<FileInfo> listing = markerMeta.list(asList(testPath));
+            assertEquals(1, listing.size());
+            assertTrue(listing.get(0).isDeleted());
+
+            assertTrue(meta.list(asList(testPath)).isEmpty());
+
+            markerMeta.add(file, false);
+
+            listing = markerMeta.list(asList(testPath));
+            assertEquals(1, listing.size());
+            assertFalse(listing.get(0).isDeleted());
+        } finally {
+            markerMeta.close();
+        }
+    }
+
+    @Test
+    public void testDeleteMarkerWithoutEntry() throws Exception {
+        Configuration markerConf = new Configuration(conf);
+        markerConf.setBoolean("s3mper.metastore.deleteMarker.enabled", true);
+
+        JdbcMetastore markerMeta = new JdbcMetastore();
+        markerMeta.initalize(URI.create("s3n://s3mper-test"), markerConf);
+
+        try {
+            Path unregistered = new Path(testPath, "unregistered.test");
+            Path dir = new Path(testPath, "dir.test");
+
+            markerMeta.add(dir, true);
+            markerMeta.delete(asList(unregistered, dir, unregistered));
+            markerMeta.delete(dir);
+
+            List<FileInfo> listing = markerMeta.list(asList(testPath));
+            assertEquals(2, listing.size());
+            assertTrue(listing.contains(new FileInfo(unregistered, true, false)));
+            assertTrue(listing.contains(new FileInfo(dir, true, true)));
+        } finally {
+            markerMeta.close();
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.io.Files;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedListingCacheTest {
+
+    private static final String KEY = "//s3mper-test/mapped";
+
+    private File dir;
+    private MappedListingCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        cache = new MappedListingCache(dir, 16, 1024, 60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testSharedBetweenInstances() throws Exception {
+        List<FileInfo> listing = listing(3);
+        cache.put(KEY, listing, cache.generation(KEY));
+
+        MappedListingCache other = new MappedListingCache(dir, 16, 1024, 60000);
+
+        try {
+            assertEquals(listing, other.get(KEY));
+            assertTrue(other.get(KEY).get(1).isDirectory());
+            assertTrue(other.get(KEY).get(2).isDeleted());
+
+            other.invalidate(KEY);
+            assertNull(cache.get(KEY));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        MappedListingCache expiring = new MappedListingCache(dir, 16, 1024, 50);
+
+        try {
+            expiring.put(KEY, listing(1), expiring.generation(KEY));
+            assertEquals(1, expiring.get(KEY).size());
+
+            Thread.sleep(100);
+            assertNull(expiring.get(KEY));
+        } finally {
+            expiring.close();
+        }
+    }
+
+    @Test
+    public void testPutSkippedAfterInvalidate() throws Exception {
+        long generation = cache.generation(KEY);
+
+        cache.invalidate(KEY);
+        cache.put(KEY, listing(1), generation);
+        assertNull(cache.get(KEY));
+
+        cache.put(KEY, listing(1), cache.generation(KEY));
+        assertEquals(1, cache.get(KEY).size());
+    }
+
+    @Test
+    public void testOversizedListingSkipped() throws Exception {
+        cache.put(KEY, listing(100), cache.generation(KEY));
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void testTornSlotIsMiss() throws Exception {
+        cache.put(KEY, listing(1), cache.generation(KEY));
+        long generation = cache.generation(KEY);
+
+        // Flip a payload byte behind the cache's back so the checksum fails
+        RandomAccessFile raw = new RandomAccessFile(dir.listFiles()[0], "rw");
+
+        try {
+            for (long slot = 0; slot < 16; slot++) {
+                raw.seek(slot * 1024);
+
+                if (raw.readLong() == generation) {
+                    raw.seek(slot * 1024 + 30);
+                    int b = raw.read();
+                    raw.seek(slot * 1024 + 30);
+                    raw.write(b ^ 0xff);
+                }
+            }
+        } finally {
+            raw.close();
+        }
+
+        assertNull(cache.get(KEY));
+    }
+
+    private static List<FileInfo> listing(int size) {
+        List<FileInfo> listing = new ArrayList<FileInfo>();
+
+        for (int i = 0; i < size; i++) {
+            listing.add(new FileInfo(new Path("s3n:" + KEY + "/file-" + i), i % 3 == 2, i % 3 == 1));
+        }
+
+        return listing;
+    }
+}
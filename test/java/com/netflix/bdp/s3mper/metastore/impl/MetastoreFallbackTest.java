@@ -0,0 +1,85 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import com.netflix.bdp.s3mper.metastore.MetastoreBatchException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetastoreFallbackTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/fallback");
+
+    private SlowMetastore meta;
+
+    @Before
+    public void setUp() throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.setInt("s3mper.metastore.fallback.threads", 8);
+        conf.setInt("s3mper.metastore.fallback.chunk", 4);
+
+        meta = new SlowMetastore();
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+    }
+
+    @Test
+    public void testChunksRunConcurrently() throws Exception {
+        long start = System.currentTimeMillis();
+
+        meta.add(files(32));
+
+        // 32 serial adds would take 1.6s
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(32, meta.list(Collections.singletonList(testPath)).size());
+    }
+
+    @Test
+    public void testFailuresAreAggregated() throws Exception {
+        meta.failing = "file-3|file-17";
+
+        try {
+            meta.add(files(20));
+            fail("Expected the batch to fail");
+        } catch (MetastoreBatchException e) {
+            assertEquals(2, e.getFailures().size());
+            assertTrue(e.getFailures().containsKey(new Path(testPath, "file-17")));
+        }
+
+        assertEquals(18, meta.list(Collections.singletonList(testPath)).size());
+    }
+
+    private static List<FileInfo> files(int count) {
+        List<FileInfo> files = new ArrayList<FileInfo>();
+
+        for (int i = 0; i < count; i++) {
+            files.add(new FileInfo(new Path(testPath, "file-" + i), false, false));
+        }
+
+        return files;
+    }
+
+    private static class SlowMetastore extends InMemoryMetastore {
+        volatile String failing = "";
+
+        @Override
+        public void add(Path path, boolean directory) throws Exception {
+            Thread.sleep(50);
+
+            if (path.getName().matches(failing)) {
+                throw new IllegalStateException("unavailable");
+            }
+
+            super.add(path, directory);
+        }
+    }
+}
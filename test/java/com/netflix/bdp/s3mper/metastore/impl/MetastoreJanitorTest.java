@@ -0,0 +1,70 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.metastore.DirectorySummary;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetastoreJanitorTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/janitor");
+
+    private DynamoDBMetastore meta;
+    private MetastoreJanitor janitor;
+
+    @Before
+    public void setUp() throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.setLong("s3mper.metastore.summary.granularity", 10);
+
+        meta = new DynamoDBMetastore(new InMemoryDynamoDB().client());
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+        janitor = new MetastoreJanitor(meta);
+    }
+
+    @After
+    public void tearDown() {
+        meta.close();
+    }
+
+    @Test
+    public void testSeal() throws Exception {
+        Path dir = new Path(testPath, "sealed");
+        meta.add(new Path(dir, "a"), false);
+        meta.add(new Path(dir, "b"), false);
+
+        assertFalse(janitor.seal(dir, TimeUnit.MINUTES, 1));
+        assertEquals(2, meta.list(Collections.singletonList(dir)).size());
+
+        Thread.sleep(50);
+        long lastWrite = Math.max(meta.getLastEntryWrite(dir), meta.getSummary(dir).getLastWrite());
+
+        assertTrue(janitor.seal(dir, TimeUnit.MILLISECONDS, 20));
+        assertEquals(0, meta.list(Collections.singletonList(dir)).size());
+        assertEquals(-1, meta.getLastEntryWrite(dir));
+
+        // The summary keeps the last write, not the time of sealing
+        DirectorySummary summary = meta.getSummary(dir);
+        assertEquals(lastWrite, summary.getLastWrite());
+        assertFalse(summary.hasDigest());
+    }
+
+    @Test
+    public void testNeverWrittenNotSealed() throws Exception {
+        Path dir = new Path(testPath, "empty");
+
+        assertFalse(janitor.seal(dir, TimeUnit.MILLISECONDS, 0));
+        assertNull(meta.getSummary(dir));
+    }
+}
@@ -0,0 +1,158 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs SidecarMetastore clients against a MetastoreSidecar on localhost backed
+ * by a slow in-memory metastore.
+ */
+public class MetastoreSidecarTest {
+
+    private static final URI uri = URI.create("s3n://s3mper-test");
+    private static final Path testPath = new Path("s3n://s3mper-test/sidecar");
+    private static final int CLIENTS = 16;
+
+    private Configuration conf;
+    private MetastoreSidecar sidecar;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration(false);
+        conf.setInt("s3mper.sidecar.port", 0);
+        conf.setBoolean("s3mper.sidecar.cache.enabled", false);
+
+        sidecar = new MetastoreSidecar(new SlowMetastore());
+        sidecar.start(uri, conf);
+
+        conf.setInt("s3mper.sidecar.port", sidecar.getPort());
+
+        executor = Executors.newFixedThreadPool(CLIENTS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        sidecar.close();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        SidecarMetastore meta = client();
+
+        Path file = new Path(testPath, "file");
+        Path dir = new Path(testPath, "dir");
+
+        meta.add(file, false);
+        meta.add(dir, true);
+
+        List<FileInfo> listing = meta.list(Collections.singletonList(testPath));
+        assertEquals(2, listing.size());
+
+        for (FileInfo info : listing) {
+            assertEquals(info.getPath().equals(dir), info.isDirectory());
+        }
+
+        meta.delete(file);
+        assertEquals(1, meta.list(Collections.singletonList(testPath)).size());
+
+        meta.close();
+    }
+
+    @Test
+    public void testWritesAreBatched() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+
+        for (int i = 0; i < CLIENTS; i++) {
+            final Path file = new Path(testPath, "file-" + i);
+
+            results.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    SidecarMetastore meta = client();
+                    start.await();
+                    meta.add(file, false);
+                    meta.close();
+                    return null;
+                }
+            }));
+        }
+
+        start.countDown();
+
+        for (Future<Object> result : results) {
+            result.get();
+        }
+
+        assertEquals(CLIENTS, client().list(Collections.singletonList(testPath)).size());
+        assertEquals(CLIENTS, sidecar.getWriteCount());
+        assertTrue("Expected fewer backend calls than writes: " + sidecar.getCommitCount(),
+                sidecar.getCommitCount() < CLIENTS);
+    }
+
+    @Test
+    public void testConcurrentReadsAreShared() throws Exception {
+        client().add(new Path(testPath, "file"), false);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<FileInfo>>> results = new ArrayList<Future<List<FileInfo>>>();
+
+        for (int i = 0; i < CLIENTS; i++) {
+            results.add(executor.submit(new Callable<List<FileInfo>>() {
+                @Override
+                public List<FileInfo> call() throws Exception {
+                    SidecarMetastore meta = client();
+                    start.await();
+                    return meta.list(Collections.singletonList(testPath));
+                }
+            }));
+        }
+
+        start.countDown();
+
+        for (Future<List<FileInfo>> result : results) {
+            assertEquals(1, result.get().size());
+        }
+
+        assertTrue("Expected concurrent listings to share a query", sidecar.getSharedReadCount() > 0);
+    }
+
+    private SidecarMetastore client() throws Exception {
+        SidecarMetastore meta = new SidecarMetastore();
+        meta.initalize(uri, conf);
+        return meta;
+    }
+
+    private static class SlowMetastore extends InMemoryMetastore {
+        @Override
+        public List<FileInfo> list(List<Path> pathList) throws Exception {
+            Thread.sleep(200);
+            return super.list(pathList);
+        }
+
+        @Override
+        public void add(List<FileInfo> path) throws Exception {
+            Thread.sleep(100);
+            super.add(path);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.io.Files;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import static com.netflix.bdp.s3mper.common.PathUtil.normalize;
+import static org.junit.Assert.assertEquals;
+
+public class SharedCachingMetastoreTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/shared");
+
+    private File dir;
+    private CountingMetastore backend;
+    private SharedCachingMetastore meta;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+
+        Configuration conf = new Configuration(false);
+        conf.set("s3mper.metastore.cache.shared.dir", dir.getPath());
+        conf.setInt("s3mper.metastore.cache.shared.slots", 16);
+        conf.setInt("s3mper.metastore.cache.shared.slot.size", 1024);
+
+        backend = new CountingMetastore();
+        meta = new SharedCachingMetastore(backend);
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        meta.close();
+
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testWritesExpireListing() throws Exception {
+        Path listed = new Path(testPath, "listed");
+
+        assertEquals(0, list(listed).size());
+        assertEquals(0, list(listed).size());
+        assertEquals(1, backend.lists);
+        assertEquals(1, meta.getHitCount());
+        assertEquals(1, meta.getMissCount());
+
+        meta.add(new Path(listed, "file"), false);
+        assertEquals(1, list(listed).size());
+        assertEquals(2, backend.lists);
+
+        meta.delete(new Path(listed, "file"));
+        assertEquals(0, list(listed).size());
+        assertEquals(3, backend.lists);
+    }
+
+    @Test
+    public void testStaleFetchNotStored() throws Exception {
+        final Path raced = new Path(testPath, "raced");
+        final MappedListingCache other = new MappedListingCache(dir, 16, 1024, 60000);
+
+        // Another process adds and expires the entry while this one fetches
+        backend.during = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    backend.add(new Path(raced, "file"), false);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                other.invalidate(normalize(raced));
+            }
+        };
+
+        try {
+            assertEquals(0, list(raced).size());
+            backend.during = null;
+
+            assertEquals(1, list(raced).size());
+            assertEquals(2, backend.lists);
+        } finally {
+            other.close();
+        }
+    }
+
+    private List<FileInfo> list(Path path) throws Exception {
+        return meta.list(Collections.singletonList(path));
+    }
+
+    private static class CountingMetastore extends InMemoryMetastore {
+        int lists = 0;
+        Runnable during;
+
+        @Override
+        public List<FileInfo> list(List<Path> pathList) throws Exception {
+            lists++;
+            List<FileInfo> listing = super.list(pathList);
+
+            if (during != null) {
+                during.run();
+            }
+
+            return listing;
+        }
+    }
+}
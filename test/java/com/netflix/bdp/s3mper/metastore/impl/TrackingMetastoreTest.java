@@ -0,0 +1,133 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrackingMetastoreTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/tracking");
+
+    private CountingMetastore backend;
+    private TrackingMetastore meta;
+
+    @Before
+    public void setUp() throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.setInt("s3mper.metastore.tracking.depth", 2);
+
+        backend = new CountingMetastore();
+        meta = new TrackingMetastore(backend);
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+    }
+
+    @Test
+    public void testUntrackedListingsBypassMetastore() throws Exception {
+        Path output = new Path(testPath, "output/part-0");
+        meta.complete(testPath);
+        meta.add(new Path(output, "file"), false);
+
+        // The first listing loads the registry stored by the add
+        assertEquals(1, list(output).size());
+        assertEquals(2, backend.lists);
+
+        assertTrue(meta.isTracked(new Path(testPath, "output")));
+        assertFalse(meta.isTracked(new Path(testPath, "reference")));
+
+        assertEquals(0, list(new Path(testPath, "reference/part-0")).size());
+        assertEquals(0, list(new Path(testPath, "reference")).size());
+        assertEquals(2, backend.lists);
+        assertEquals(2, meta.getBypassCount());
+    }
+
+    @Test
+    public void testEmptyDirectoriesAreCached() throws Exception {
+        Path dir = new Path(testPath, "output/empty");
+        meta.add(new Path(testPath, "output/file"), false);
+
+        assertEquals(0, list(dir).size());
+        int lists = backend.lists;
+
+        assertEquals(0, list(dir).size());
+        assertEquals(lists, backend.lists);
+        assertEquals(1, meta.getEmptyHitCount());
+
+        meta.add(new Path(dir, "file"), false);
+        assertEquals(1, list(dir).size());
+        assertEquals(lists + 1, backend.lists);
+    }
+
+    @Test
+    public void testIncompleteRegistryTracksEverything() throws Exception {
+        Path reference = new Path(testPath, "reference/part-0");
+        backend.add(new Path(reference, "file"), false);
+
+        // Written before tracking was enabled
+        meta.add(new Path(testPath, "output/file"), false);
+        assertTrue(meta.isTracked(reference));
+        assertEquals(1, list(reference).size());
+
+        meta.track(Collections.singletonList(reference));
+        meta.complete(testPath);
+
+        assertTrue(meta.isTracked(reference));
+        assertTrue(meta.isTracked(new Path(testPath, "output")));
+        assertFalse(meta.isTracked(new Path(testPath, "other")));
+        assertEquals(1, list(reference).size());
+    }
+
+    @Test
+    public void testAddDuringEmptyListingNotLost() throws Exception {
+        Path dir = new Path(testPath, "output/racing");
+        final Path file = new Path(dir, "file");
+        meta.add(new Path(testPath, "output/file"), false);
+        list(new Path(testPath, "output"));
+
+        // The add lands after the backend answered, before the answer is remembered
+        backend.afterList = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    meta.add(file, false);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        assertEquals(0, list(dir).size());
+        assertEquals(1, list(dir).size());
+    }
+
+    private List<FileInfo> list(Path path) throws Exception {
+        return meta.list(Collections.singletonList(path));
+    }
+
+    private static class CountingMetastore extends InMemoryMetastore {
+        int lists = 0;
+        Runnable afterList;
+
+        @Override
+        public List<FileInfo> list(List<Path> pathList) throws Exception {
+            lists++;
+            List<FileInfo> listing = super.list(pathList);
+
+            if (afterList != null) {
+                Runnable run = afterList;
+                afterList = null;
+                run.run();
+            }
+            return listing;
+        }
+    }
+}
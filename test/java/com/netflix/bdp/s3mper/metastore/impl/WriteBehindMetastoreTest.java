@@ -0,0 +1,98 @@
+package com.netflix.bdp.s3mper.metastore.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.netflix.bdp.s3mper.metastore.FileInfo;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteBehindMetastoreTest {
+
+    private static final Path testPath = new Path("s3n://s3mper-test/write-behind");
+
+    private CountingMetastore backend;
+    private WriteBehindMetastore meta;
+
+    @Before
+    public void setUp() throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.setLong("s3mper.metastore.writeBehind.linger", 50);
+
+        backend = new CountingMetastore();
+        meta = new WriteBehindMetastore(backend, 4);
+        meta.initalize(URI.create("s3n://s3mper-test"), conf);
+    }
+
+    @After
+    public void tearDown() {
+        meta.close();
+    }
+
+    @Test
+    public void testAddsAreGroupCommitted() throws Exception {
+        List<ListenableFuture<Void>> adds = new ArrayList<ListenableFuture<Void>>();
+
+        for (int i = 0; i < 100; i++) {
+            adds.add(meta.addAsync(new Path(testPath, "file-" + i), false));
+        }
+
+        // Listing waits for the queued adds
+        assertEquals(100, meta.list(Collections.singletonList(testPath)).size());
+        assertTrue("Adds were not batched: " + backend.calls.get(), backend.calls.get() < 10);
+
+        for (ListenableFuture<Void> add : adds) {
+            assertTrue(add.isDone());
+        }
+    }
+
+    @Test
+    public void testFlushReportsFailedAdds() throws Exception {
+        backend.failing = true;
+        ListenableFuture<Void> add = meta.addAsync(new Path(testPath, "file"), false);
+
+        try {
+            meta.flush();
+            fail("Expected the flush to report the failed add");
+        } catch (Exception e) {
+            // expected
+        }
+
+        assertTrue(add.isDone());
+        backend.failing = false;
+        meta.flush();
+    }
+
+    private static class CountingMetastore extends InMemoryMetastore {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile boolean failing = false;
+
+        @Override
+        public void add(List<FileInfo> paths) throws Exception {
+            calls.incrementAndGet();
+            if (failing) {
+                throw new IllegalStateException("unavailable");
+            }
+            super.add(paths);
+        }
+
+        @Override
+        public void add(Path path, boolean directory) throws Exception {
+            if (failing) {
+                throw new IllegalStateException("unavailable");
+            }
+            super.add(path, directory);
+        }
+    }
+}